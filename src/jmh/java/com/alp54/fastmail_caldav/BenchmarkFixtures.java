@@ -0,0 +1,201 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+
+/**
+ * Synthetic calendar data for the benchmarks.
+ *
+ * Resources cycle through four shapes: an all-day event, a timed UTC event, a
+ * weekly series with a TZID, an UNTIL and EXDATEs, and a daily series carrying
+ * its own VTIMEZONE. The data is a function of the event count only, so runs
+ * are comparable.
+ */
+final class BenchmarkFixtures {
+
+    /**
+     * Keeps ical4j from fetching time zone definitions from tzurl.org, so runs
+     * work offline and do not time the network.
+     */
+    static final String OFFLINE = "-Dnet.fortuna.ical4j.timezone.update.enabled=false";
+
+    static final String BASE_URL = "https://caldav.example.com";
+
+    static final String COLLECTION = "/dav/calendars/user/bench@example.com/Default/";
+
+    private static final DateTimeFormatter DAY = DateTimeFormatter.BASIC_ISO_DATE;
+
+    private static final LocalDate FIRST_DAY = LocalDate.of(2025, 1, 1);
+
+    private static final String BERLIN = String.join("\r\n",
+            "BEGIN:VTIMEZONE",
+            "TZID:Europe/Berlin",
+            "BEGIN:DAYLIGHT",
+            "TZOFFSETFROM:+0100",
+            "TZOFFSETTO:+0200",
+            "TZNAME:CEST",
+            "DTSTART:19700329T020000",
+            "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=-1SU",
+            "END:DAYLIGHT",
+            "BEGIN:STANDARD",
+            "TZOFFSETFROM:+0200",
+            "TZOFFSETTO:+0100",
+            "TZNAME:CET",
+            "DTSTART:19701025T030000",
+            "RRULE:FREQ=YEARLY;BYMONTH=10;BYDAY=-1SU",
+            "END:STANDARD",
+            "END:VTIMEZONE");
+
+    private static final String NEW_YORK = String.join("\r\n",
+            "BEGIN:VTIMEZONE",
+            "TZID:America/New_York",
+            "BEGIN:DAYLIGHT",
+            "TZOFFSETFROM:-0500",
+            "TZOFFSETTO:-0400",
+            "TZNAME:EDT",
+            "DTSTART:19700308T020000",
+            "RRULE:FREQ=YEARLY;BYMONTH=3;BYDAY=2SU",
+            "END:DAYLIGHT",
+            "BEGIN:STANDARD",
+            "TZOFFSETFROM:-0400",
+            "TZOFFSETTO:-0500",
+            "TZNAME:EST",
+            "DTSTART:19701101T020000",
+            "RRULE:FREQ=YEARLY;BYMONTH=11;BYDAY=1SU",
+            "END:STANDARD",
+            "END:VTIMEZONE");
+
+    private BenchmarkFixtures() {
+    }
+
+    static String href(int i) {
+        return COLLECTION + "event-" + i + ".ics";
+    }
+
+    /**
+     * The {@code calendar-data} of resource {@code i}.
+     */
+    static String icalendar(int i) {
+        String day = FIRST_DAY.plusDays(i % 365).format(DAY);
+        String next = FIRST_DAY.plusDays(i % 365 + 1).format(DAY);
+        StringBuilder ics = new StringBuilder(1024)
+                .append("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//fastmail-caldav-mcp//bench//EN\r\n");
+        switch (i % 4) {
+            case 0:
+                begin(ics, i, "All-day offsite " + i);
+                ics.append("DTSTART;VALUE=DATE:").append(day).append("\r\n");
+                ics.append("DTEND;VALUE=DATE:").append(next).append("\r\n");
+                break;
+            case 1:
+                begin(ics, i, "Call with supplier " + i);
+                ics.append("DTSTART:").append(day).append("T093000Z\r\n");
+                ics.append("DTEND:").append(day).append("T100000Z\r\n");
+                ics.append("LOCATION:Room ").append(i % 17).append("\r\n");
+                break;
+            case 2:
+                begin(ics, i, "Weekly sync " + i);
+                ics.append("DTSTART;TZID=Europe/Berlin:").append(day).append("T110000\r\n");
+                ics.append("DTEND;TZID=Europe/Berlin:").append(day).append("T113000\r\n");
+                ics.append("RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR;UNTIL=20271231T235959Z\r\n");
+                ics.append("EXDATE;TZID=Europe/Berlin:").append(FIRST_DAY.plusDays(i % 365 + 14).format(DAY))
+                        .append("T110000,").append(FIRST_DAY.plusDays(i % 365 + 28).format(DAY))
+                        .append("T110000\r\n");
+                break;
+            default:
+                ics.append(i % 8 == 3 ? BERLIN : NEW_YORK).append("\r\n");
+                String tzid = i % 8 == 3 ? "Europe/Berlin" : "America/New_York";
+                begin(ics, i, "Standup " + i);
+                ics.append("DTSTART;TZID=").append(tzid).append(':').append(day).append("T090000\r\n");
+                ics.append("DTEND;TZID=").append(tzid).append(':').append(day).append("T091500\r\n");
+                ics.append("RRULE:FREQ=DAILY;INTERVAL=1;COUNT=200\r\n");
+                break;
+        }
+        ics.append("DESCRIPTION:Agenda item ").append(i).append(" \\, notes & follow-ups\r\n");
+        ics.append("END:VEVENT\r\nEND:VCALENDAR\r\n");
+        return ics.toString();
+    }
+
+    private static void begin(StringBuilder ics, int i, String summary) {
+        ics.append("BEGIN:VEVENT\r\n");
+        ics.append("UID:bench-").append(i).append("@example.com\r\n");
+        ics.append("DTSTAMP:20250101T000000Z\r\n");
+        ics.append("SUMMARY:").append(summary).append("\r\n");
+    }
+
+    static List<String> icalendars(int events) {
+        List<String> calendars = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            calendars.add(icalendar(i));
+        }
+        return calendars;
+    }
+
+    static List<Calendar> calendars(int events) throws Exception {
+        List<Calendar> calendars = new ArrayList<>(events);
+        for (int i = 0; i < events; i++) {
+            calendars.add(ICalendarParser.parse(icalendar(i)));
+        }
+        return calendars;
+    }
+
+    /**
+     * A calendar-query multistatus with one response per resource, as the
+     * server sends it.
+     */
+    static byte[] multistatus(int events) {
+        StringBuilder xml = new StringBuilder(events * 1200)
+                .append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<d:multistatus xmlns:d=\"DAV:\" xmlns:cal=\"urn:ietf:params:xml:ns:caldav\">\n");
+        for (int i = 0; i < events; i++) {
+            xml.append("<d:response><d:href>").append(href(i)).append("</d:href><d:propstat><d:prop>")
+                    .append("<d:getetag>\"etag-").append(i).append("\"</d:getetag>")
+                    .append("<cal:calendar-data>").append(escape(icalendar(i))).append("</cal:calendar-data>")
+                    .append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+        }
+        xml.append("</d:multistatus>\n");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static InputStream stream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes);
+    }
+
+    /**
+     * The query window used for expansion: the whole first quarter.
+     */
+    static Period queryPeriod() throws Exception {
+        return new Period(new DateTime("20250101T000000Z"), new DateTime("20250401T000000Z"));
+    }
+
+    static CaldavMetrics metrics() {
+        return new CaldavMetrics(new StaticListableBeanFactory().getBeanProvider(MeterRegistry.class));
+    }
+
+    /**
+     * A client with only what the parse and conversion paths use; nothing in
+     * it talks to a server.
+     */
+    static FastmailCaldavClient client(ICalendarParsingPipeline pipeline, CaldavMetrics metrics) {
+        FastmailCaldavClient client = new FastmailCaldavClient(null, null, pipeline, null, null, null, null,
+                new UidIndex(), null, null, null, metrics, null);
+        ReflectionTestUtils.setField(client, "caldavUrl", BASE_URL);
+        return client;
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+}
@@ -0,0 +1,58 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fortuna.ical4j.model.Date;
+import net.fortuna.ical4j.model.DateTime;
+
+/**
+ * The per-occurrence date conversions: formatting event dates for the result
+ * and turning tool arguments into iCalendar UTC times.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = BenchmarkFixtures.OFFLINE)
+public class DateFormatBenchmark {
+
+    private FastmailCaldavClient client;
+
+    private DateTime dateTime;
+
+    private Date date;
+
+    @Setup
+    public void setUp() throws Exception {
+        client = BenchmarkFixtures.client(null, BenchmarkFixtures.metrics());
+        dateTime = new DateTime("20250314T093000Z");
+        date = new Date("20250314");
+    }
+
+    @Benchmark
+    public String formatDateTime() {
+        return client.formatIcal4jDate(dateTime, false);
+    }
+
+    @Benchmark
+    public String formatDate() {
+        return client.formatIcal4jDate(date, true);
+    }
+
+    @Benchmark
+    public String toIcalFormat() {
+        return client.toIcalFormat("2025-03-14", "0930");
+    }
+}
@@ -0,0 +1,91 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Period;
+
+/**
+ * Turning parsed calendars into the tool result: {@code convert} builds the
+ * {@link CalendarEvent}s (recurrences expanded, dates formatted), {@code json}
+ * serializes them as the MCP server does, and {@code query} runs a whole
+ * multistatus response through {@link FastmailCaldavClient#parseEvents}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", BenchmarkFixtures.OFFLINE })
+public class EventEmissionBenchmark {
+
+    @Param({ "100", "10000", "100000" })
+    public int events;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private ICalendarParsingPipeline pipeline;
+
+    private FastmailCaldavClient client;
+
+    private List<Calendar> calendars;
+
+    private List<CalendarEvent> converted;
+
+    private byte[] multistatus;
+
+    private Period period;
+
+    @Setup
+    public void setUp() throws Exception {
+        CaldavMetrics metrics = BenchmarkFixtures.metrics();
+        pipeline = new ICalendarParsingPipeline(0, metrics);
+        client = BenchmarkFixtures.client(pipeline, metrics);
+        calendars = BenchmarkFixtures.calendars(events);
+        period = BenchmarkFixtures.queryPeriod();
+        converted = convert();
+        multistatus = BenchmarkFixtures.multistatus(events);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.destroy();
+    }
+
+    @Benchmark
+    public List<CalendarEvent> convert() {
+        List<CalendarEvent> result = new ArrayList<>();
+        for (int i = 0; i < calendars.size(); i++) {
+            result.addAll(client.toEvents(calendars.get(i), BenchmarkFixtures.href(i), "\"etag-" + i + "\"",
+                    period, event -> true));
+        }
+        return result;
+    }
+
+    @Benchmark
+    public byte[] json() throws Exception {
+        return mapper.writeValueAsBytes(converted);
+    }
+
+    @Benchmark
+    public List<CalendarEvent> query() throws Exception {
+        return client.parseEvents(BenchmarkFixtures.stream(multistatus), period, event -> true);
+    }
+}
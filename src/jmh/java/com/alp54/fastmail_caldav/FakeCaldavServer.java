@@ -0,0 +1,1102 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.CalendarComponent;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * In-process stand-in for a CalDAV server, for integration and performance
+ * runs without a live account.
+ *
+ * It serves one principal with a calendar home set under {@link #HOME}, and
+ * understands what {@link FastmailCaldavClient} sends: PROPFIND, the
+ * calendar-query, calendar-multiget, sync-collection and free-busy-query
+ * REPORTs, GET with {@code If-None-Match}, and PUT and DELETE with
+ * {@code If-Match}/{@code If-None-Match}. Every change bumps the collection's
+ * ctag and sync-token. Calendar data is returned as stored: {@code expand} and
+ * {@code limit-recurrence-set} are accepted but not applied.
+ *
+ * Faults are injected per request, after the request has been read: a fixed
+ * latency plus random jitter before the response, a bandwidth cap on the
+ * response, and 429, 503 or a TCP reset at configurable rates. Settings can be
+ * changed while the server runs. Credentials are not checked.
+ *
+ * The client is pointed at it with {@code fastmail.caldav.url} set to
+ * {@link #getBaseUrl()} and {@code fastmail.calendar.path} to
+ * {@link #calendarPath(String)}.
+ */
+public final class FakeCaldavServer implements Closeable {
+
+    public static final String PRINCIPAL = "/dav/principals/user/bench@example.com/";
+
+    public static final String HOME = "/dav/calendars/user/bench@example.com/";
+
+    private static final String DAV_NS = "DAV:";
+
+    private static final String CALDAV_NS = "urn:ietf:params:xml:ns:caldav";
+
+    private static final String CS_NS = "http://calendarserver.org/ns/";
+
+    private static final String SYNC_TOKEN_PREFIX = "https://fake-caldav.invalid/sync/";
+
+    private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static final DocumentBuilderFactory XML = DocumentBuilderFactory.newInstance();
+
+    static {
+        XML.setNamespaceAware(true);
+        XML.setExpandEntityReferences(false);
+    }
+
+    private static final class Resource {
+
+        private final String href;
+
+        private final String etag;
+
+        private final String data;
+
+        private final long revision;
+
+        private volatile Calendar calendar;
+
+        private Resource(String href, String etag, String data, long revision) {
+            this.href = href;
+            this.etag = etag;
+            this.data = data;
+            this.revision = revision;
+        }
+
+        /**
+         * Parsed on first use, only time-range filters need it.
+         */
+        private Calendar calendar() throws IOException {
+            Calendar parsed = calendar;
+            if (parsed == null) {
+                try {
+                    parsed = ICalendarParser.parse(data);
+                } catch (net.fortuna.ical4j.data.ParserException e) {
+                    throw new IOException(e);
+                }
+                calendar = parsed;
+            }
+            return parsed;
+        }
+    }
+
+    private static final class Collection {
+
+        private final String path;
+
+        private final String displayName;
+
+        private final Map<String, Resource> resources = new LinkedHashMap<>();
+
+        /**
+         * Revision at which each removed href was deleted, for sync reports.
+         */
+        private final Map<String, Long> deleted = new LinkedHashMap<>();
+
+        private long revision = 1;
+
+        private Collection(String path, String displayName) {
+            this.path = path;
+            this.displayName = displayName;
+        }
+
+        private String syncToken() {
+            return SYNC_TOKEN_PREFIX + revision;
+        }
+    }
+
+    /**
+     * A parsed HTTP request.
+     */
+    private record Request(String method, String path, Map<String, String> headers, byte[] body) {
+
+        String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * A response to write, with its extra headers.
+     */
+    private record Response(int status, String reason, String contentType, byte[] body,
+            Map<String, String> headers) {
+
+        static Response of(int status, String reason) {
+            return new Response(status, reason, null, new byte[0], new LinkedHashMap<>());
+        }
+
+        static Response xml(int status, String reason, String xml) {
+            return new Response(status, reason, "application/xml; charset=utf-8",
+                    xml.getBytes(StandardCharsets.UTF_8), new LinkedHashMap<>());
+        }
+
+        Response header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    private final Map<String, Collection> collections = new LinkedHashMap<>();
+
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<>();
+
+    private final Random random = new Random(42);
+
+    private volatile long latencyMillis;
+
+    private volatile long jitterMillis;
+
+    private volatile long bytesPerSecond;
+
+    private volatile double throttleRate;
+
+    private volatile double unavailableRate;
+
+    private volatile double resetRate;
+
+    private volatile int syncPageSize;
+
+    private ServerSocket serverSocket;
+
+    private ExecutorService connections;
+
+    /**
+     * Listens on the loopback interface.
+     *
+     * @param port The port, or 0 for any free one
+     */
+    public FakeCaldavServer start(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        AtomicInteger threadNumber = new AtomicInteger();
+        connections = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "fake-caldav-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        connections.execute(this::accept);
+        return this;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (serverSocket != null) {
+            serverSocket.close();
+            connections.shutdownNow();
+        }
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort();
+    }
+
+    public static String calendarPath(String name) {
+        return HOME + name + "/";
+    }
+
+    public synchronized FakeCaldavServer createCalendar(String name, String displayName) {
+        collections.computeIfAbsent(calendarPath(name), path -> new Collection(path, displayName));
+        return this;
+    }
+
+    /**
+     * Fills a calendar with {@link BenchmarkFixtures} resources
+     * {@code event-0.ics} to {@code event-(events-1).ics}, creating it if
+     * needed.
+     */
+    public synchronized FakeCaldavServer seed(String name, int events) {
+        createCalendar(name, name);
+        for (int i = 0; i < events; i++) {
+            put(name, "event-" + i + ".ics", BenchmarkFixtures.icalendar(i));
+        }
+        return this;
+    }
+
+    /**
+     * Stores a resource as another client would, so the next sync sees it.
+     */
+    public synchronized void put(String calendar, String resource, String icalendar) {
+        Collection collection = collections.get(calendarPath(calendar));
+        if (collection == null) {
+            throw new IllegalArgumentException("No calendar " + calendar);
+        }
+        store(collection, collection.path + resource, icalendar);
+    }
+
+    public synchronized void delete(String calendar, String resource) {
+        Collection collection = collections.get(calendarPath(calendar));
+        if (collection != null) {
+            remove(collection, collection.path + resource);
+        }
+    }
+
+    /**
+     * Delays every response by {@code fixedMillis} plus up to
+     * {@code jitterMillis}.
+     */
+    public FakeCaldavServer setLatency(long fixedMillis, long jitterMillis) {
+        this.latencyMillis = fixedMillis;
+        this.jitterMillis = jitterMillis;
+        return this;
+    }
+
+    /**
+     * Caps response bodies at this many bytes per second, 0 for no cap.
+     */
+    public FakeCaldavServer setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of requests answered with 429, 503, or a connection
+     * reset. Requests draw once, in that order.
+     */
+    public FakeCaldavServer setFaultRates(double throttleRate, double unavailableRate, double resetRate) {
+        this.throttleRate = throttleRate;
+        this.unavailableRate = unavailableRate;
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    /**
+     * Truncates sync-collection responses to this many changes, with a 507
+     * for the collection as in RFC 6578, 0 for complete responses.
+     */
+    public FakeCaldavServer setSyncPageSize(int changes) {
+        this.syncPageSize = changes;
+        return this;
+    }
+
+    public FakeCaldavServer setSeed(long seed) {
+        random.setSeed(seed);
+        return this;
+    }
+
+    /**
+     * Requests served by method, and injected faults ({@code 429},
+     * {@code 503}, {@code reset}).
+     */
+    public Map<String, Long> getCounts() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counts.forEach((key, count) -> snapshot.put(key, count.get()));
+        return snapshot;
+    }
+
+    /**
+     * Runs the server until the process is stopped, seeded with calendars of
+     * fixture events.
+     *
+     * Options: {@code --port}, {@code --calendars}, {@code --events} (per
+     * calendar), {@code --latency-ms}, {@code --jitter-ms},
+     * {@code --bandwidth-kbps}, {@code --throttle-rate},
+     * {@code --unavailable-rate}, {@code --reset-rate}, {@code --seed}.
+     */
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        FakeCaldavServer server = new FakeCaldavServer()
+                .setSeed(Long.parseLong(options.getOrDefault("seed", "42")))
+                .setLatency(Long.parseLong(options.getOrDefault("latency-ms", "0")),
+                        Long.parseLong(options.getOrDefault("jitter-ms", "0")))
+                .setBandwidth(Long.parseLong(options.getOrDefault("bandwidth-kbps", "0")) * 1024)
+                .setFaultRates(Double.parseDouble(options.getOrDefault("throttle-rate", "0")),
+                        Double.parseDouble(options.getOrDefault("unavailable-rate", "0")),
+                        Double.parseDouble(options.getOrDefault("reset-rate", "0")));
+        int calendars = Integer.parseInt(options.getOrDefault("calendars", "1"));
+        int events = Integer.parseInt(options.getOrDefault("events", "1000"));
+        server.seed("Default", events);
+        for (int i = 1; i < calendars; i++) {
+            server.seed("Calendar-" + i, events);
+        }
+        server.start(Integer.parseInt(options.getOrDefault("port", "8900")));
+        System.out.println("Fake CalDAV server with " + calendars + " x " + events + " events, point the client at:");
+        System.out.println("  fastmail.caldav.url=" + server.getBaseUrl());
+        System.out.println("  fastmail.calendar.path=" + calendarPath("Default"));
+        Thread.currentThread().join();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Fake CalDAV server: accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves requests on one keep-alive connection until the client closes it.
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(60_000);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                Request request = readRequest(in);
+                if (request == null) {
+                    return;
+                }
+                count(request.method());
+                delay();
+                double draw = random.nextDouble();
+                Response response;
+                if (draw < throttleRate) {
+                    count("429");
+                    response = Response.of(429, "Too Many Requests").header("Retry-After", "1");
+                } else if (draw < throttleRate + unavailableRate) {
+                    count("503");
+                    response = Response.of(503, "Service Unavailable").header("Retry-After", "1");
+                } else if (draw < throttleRate + unavailableRate + resetRate) {
+                    count("reset");
+                    // Closing with a zero linger time sends RST instead of FIN
+                    socket.setSoLinger(true, 0);
+                    return;
+                } else {
+                    response = handle(request);
+                }
+                write(out, response);
+                if ("close".equalsIgnoreCase(request.header("Connection"))) {
+                    return;
+                }
+            }
+        } catch (SocketException | SocketTimeoutException | EOFException e) {
+            // Client went away or left the connection idle
+        } catch (IOException e) {
+            System.err.println("Fake CalDAV server: " + e.getMessage());
+        }
+    }
+
+    private void count(String key) {
+        counts.computeIfAbsent(key, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private void delay() {
+        long millis = latencyMillis + (jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0);
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Response handle(Request request) {
+        try {
+            switch (request.method()) {
+                case "PROPFIND":
+                    return propfind(request);
+                case "REPORT":
+                    return report(request);
+                case "GET":
+                    return get(request);
+                case "PUT":
+                    return put(request);
+                case "DELETE":
+                    return delete(request);
+                default:
+                    return Response.of(405, "Method Not Allowed")
+                            .header("Allow", "PROPFIND, REPORT, GET, PUT, DELETE");
+            }
+        } catch (Exception e) {
+            System.err.println("Fake CalDAV server: " + request.method() + " " + request.path() + " failed: " + e);
+            return Response.of(500, "Internal Server Error");
+        }
+    }
+
+    // --- PROPFIND ---
+
+    private synchronized Response propfind(Request request) throws Exception {
+        String path = request.path();
+        List<String> wanted = new ArrayList<>();
+        boolean all = true;
+        if (request.body().length > 0) {
+            Element prop = child(parse(request.body()).getDocumentElement(), DAV_NS, "prop");
+            if (prop != null) {
+                all = false;
+                for (Element property : children(prop)) {
+                    wanted.add(property.getNamespaceURI() + " " + property.getLocalName());
+                }
+            }
+        }
+        if (all) {
+            wanted.addAll(List.of(DAV_NS + " resourcetype", DAV_NS + " displayname", DAV_NS + " getetag",
+                    CS_NS + " getctag", DAV_NS + " sync-token"));
+        }
+        boolean depthOne = !"0".equals(request.header("Depth"));
+
+        StringBuilder xml = multistatus();
+        Collection collection = collectionOf(path);
+        if (collection != null && path.equals(collection.path)) {
+            propResponse(xml, path, wanted, collection, null);
+            if (depthOne) {
+                for (Resource resource : collection.resources.values()) {
+                    propResponse(xml, resource.href, wanted, collection, resource);
+                }
+            }
+        } else if (collection != null) {
+            Resource resource = collection.resources.get(path);
+            if (resource == null) {
+                return Response.of(404, "Not Found");
+            }
+            propResponse(xml, path, wanted, collection, resource);
+        } else if (path.startsWith("/dav")) {
+            propResponse(xml, path, wanted, null, null);
+            if (depthOne && path.equals(HOME)) {
+                for (Collection each : collections.values()) {
+                    propResponse(xml, each.path, wanted, each, null);
+                }
+            }
+        } else {
+            return Response.of(404, "Not Found");
+        }
+        return Response.xml(207, "Multi-Status", xml.append("</d:multistatus>\n").toString());
+    }
+
+    /**
+     * Writes the response for one resource: a collection when
+     * {@code resource} is null, a principal or home set when both are.
+     */
+    private void propResponse(StringBuilder xml, String href, List<String> wanted, Collection collection,
+            Resource resource) {
+        StringBuilder found = new StringBuilder();
+        StringBuilder missing = new StringBuilder();
+        for (String name : wanted) {
+            String ns = name.substring(0, name.lastIndexOf(' '));
+            String localName = name.substring(name.lastIndexOf(' ') + 1);
+            String value = property(ns, localName, href, collection, resource);
+            if (value != null) {
+                found.append(value);
+            } else {
+                missing.append("<x:").append(localName).append(" xmlns:x=\"").append(escape(ns)).append("\"/>");
+            }
+        }
+        xml.append("<d:response><d:href>").append(escape(href)).append("</d:href>");
+        if (found.length() > 0) {
+            xml.append("<d:propstat><d:prop>").append(found)
+                    .append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat>");
+        }
+        if (missing.length() > 0) {
+            xml.append("<d:propstat><d:prop>").append(missing)
+                    .append("</d:prop><d:status>HTTP/1.1 404 Not Found</d:status></d:propstat>");
+        }
+        xml.append("</d:response>\n");
+    }
+
+    private static String property(String ns, String localName, String href, Collection collection,
+            Resource resource) {
+        String name = ns + " " + localName;
+        if (name.equals(DAV_NS + " current-user-principal")) {
+            return "<d:current-user-principal><d:href>" + PRINCIPAL + "</d:href></d:current-user-principal>";
+        }
+        if (resource != null) {
+            if (name.equals(DAV_NS + " getetag")) {
+                return "<d:getetag>" + escape(resource.etag) + "</d:getetag>";
+            }
+            if (name.equals(DAV_NS + " getcontenttype")) {
+                return "<d:getcontenttype>text/calendar; charset=utf-8</d:getcontenttype>";
+            }
+            if (name.equals(DAV_NS + " resourcetype")) {
+                return "<d:resourcetype/>";
+            }
+            return null;
+        }
+        if (collection != null) {
+            switch (name) {
+                case DAV_NS + " resourcetype":
+                    return "<d:resourcetype><d:collection/><c:calendar/></d:resourcetype>";
+                case DAV_NS + " displayname":
+                    return "<d:displayname>" + escape(collection.displayName) + "</d:displayname>";
+                case CS_NS + " getctag":
+                    return "<cs:getctag>" + collection.revision + "</cs:getctag>";
+                case DAV_NS + " sync-token":
+                    return "<d:sync-token>" + escape(collection.syncToken()) + "</d:sync-token>";
+                case DAV_NS + " supported-report-set":
+                    StringBuilder reports = new StringBuilder("<d:supported-report-set>");
+                    for (String report : List.of("d:sync-collection", "c:calendar-query", "c:calendar-multiget",
+                            "c:free-busy-query")) {
+                        reports.append("<d:supported-report><d:report><").append(report)
+                                .append("/></d:report></d:supported-report>");
+                    }
+                    return reports.append("</d:supported-report-set>").toString();
+                default:
+                    return null;
+            }
+        }
+        switch (name) {
+            case CALDAV_NS + " calendar-home-set":
+                return "<c:calendar-home-set><d:href>" + HOME + "</d:href></c:calendar-home-set>";
+            case DAV_NS + " resourcetype":
+                return href.equals(PRINCIPAL) ? "<d:resourcetype><d:principal/></d:resourcetype>"
+                        : "<d:resourcetype><d:collection/></d:resourcetype>";
+            default:
+                return null;
+        }
+    }
+
+    // --- REPORT ---
+
+    private Response report(Request request) throws Exception {
+        Element root = parse(request.body()).getDocumentElement();
+        String report = root.getLocalName();
+        synchronized (this) {
+            Collection collection = collectionOf(request.path());
+            if (collection == null || !request.path().equals(collection.path)) {
+                return Response.of(404, "Not Found");
+            }
+            switch (report) {
+                case "sync-collection":
+                    return syncCollection(collection, root);
+                case "calendar-multiget":
+                    return multiget(collection, root);
+                case "calendar-query":
+                    return calendarQuery(collection, root);
+                case "free-busy-query":
+                    return freeBusyQuery(collection, root);
+                default:
+                    return Response.xml(403, "Forbidden",
+                            "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<d:error xmlns:d=\"DAV:\">"
+                                    + "<d:supported-report/></d:error>");
+            }
+        }
+    }
+
+    private Response syncCollection(Collection collection, Element root) {
+        Element tokenElement = child(root, DAV_NS, "sync-token");
+        String token = tokenElement == null ? "" : tokenElement.getTextContent().trim();
+        long since = 0;
+        if (!token.isEmpty()) {
+            since = -1;
+            if (token.startsWith(SYNC_TOKEN_PREFIX)) {
+                try {
+                    since = Long.parseLong(token.substring(SYNC_TOKEN_PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+            if (since < 0 || since > collection.revision) {
+                return Response.xml(403, "Forbidden", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<d:error xmlns:d=\"DAV:\"><d:valid-sync-token/></d:error>");
+            }
+        }
+        boolean withData = wantsCalendarData(root);
+        // Changes by revision, each either a resource or a removed href, so a page can end at any revision
+        TreeMap<Long, Object> changes = new TreeMap<>();
+        for (Resource resource : collection.resources.values()) {
+            if (resource.revision > since) {
+                changes.put(resource.revision, resource);
+            }
+        }
+        if (since > 0) {
+            for (Map.Entry<String, Long> removed : collection.deleted.entrySet()) {
+                if (removed.getValue() > since) {
+                    changes.put(removed.getValue(), removed.getKey());
+                }
+            }
+        }
+        int pageSize = syncPageSize;
+        boolean truncated = pageSize > 0 && changes.size() > pageSize;
+        String syncToken = collection.syncToken();
+        if (truncated) {
+            long last = changes.keySet().stream().skip(pageSize - 1).findFirst().orElseThrow();
+            changes = new TreeMap<>(changes.headMap(last, true));
+            syncToken = SYNC_TOKEN_PREFIX + last;
+        }
+        StringBuilder xml = multistatus();
+        for (Object change : changes.values()) {
+            if (change instanceof Resource) {
+                resourceResponse(xml, (Resource) change, withData);
+            } else {
+                xml.append("<d:response><d:href>").append(escape((String) change))
+                        .append("</d:href><d:status>HTTP/1.1 404 Not Found</d:status></d:response>\n");
+            }
+        }
+        if (truncated) {
+            // RFC 6578 section 3.6: the rest follows on a request with the token of this page
+            xml.append("<d:response><d:href>").append(escape(collection.path))
+                    .append("</d:href><d:status>HTTP/1.1 507 Insufficient Storage</d:status>")
+                    .append("<d:error><d:number-of-matches-within-limits/></d:error></d:response>\n");
+        }
+        xml.append("<d:sync-token>").append(escape(syncToken)).append("</d:sync-token>\n");
+        return Response.xml(207, "Multi-Status", xml.append("</d:multistatus>\n").toString());
+    }
+
+    private Response multiget(Collection collection, Element root) {
+        boolean withData = wantsCalendarData(root);
+        StringBuilder xml = multistatus();
+        for (Element href : children(root)) {
+            if (!DAV_NS.equals(href.getNamespaceURI()) || !"href".equals(href.getLocalName())) {
+                continue;
+            }
+            String path = URI.create(href.getTextContent().trim()).getRawPath();
+            Resource resource = collection.resources.get(path);
+            if (resource == null) {
+                xml.append("<d:response><d:href>").append(escape(path))
+                        .append("</d:href><d:status>HTTP/1.1 404 Not Found</d:status></d:response>\n");
+            } else {
+                resourceResponse(xml, resource, withData);
+            }
+        }
+        return Response.xml(207, "Multi-Status", xml.append("</d:multistatus>\n").toString());
+    }
+
+    private Response calendarQuery(Collection collection, Element root) throws IOException {
+        Element filter = child(root, CALDAV_NS, "filter");
+        Element calendarFilter = filter == null ? null : child(filter, CALDAV_NS, "comp-filter");
+        boolean withData = wantsCalendarData(root);
+        StringBuilder xml = multistatus();
+        for (Resource resource : collection.resources.values()) {
+            if (calendarFilter == null || matchesCalendar(resource, calendarFilter)) {
+                resourceResponse(xml, resource, withData);
+            }
+        }
+        return Response.xml(207, "Multi-Status", xml.append("</d:multistatus>\n").toString());
+    }
+
+    /**
+     * Busy time of the opaque, not cancelled events in the range, as one
+     * VFREEBUSY (RFC 4791 section 7.10).
+     */
+    private Response freeBusyQuery(Collection collection, Element root) throws IOException {
+        Element range = child(root, CALDAV_NS, "time-range");
+        long from = parseUtc(range == null ? null : range.getAttribute("start"), Long.MIN_VALUE / 2);
+        long to = parseUtc(range == null ? null : range.getAttribute("end"), Long.MAX_VALUE / 2);
+        StringBuilder ics = new StringBuilder("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//fake-caldav//EN\r\n"
+                + "BEGIN:VFREEBUSY\r\nDTSTAMP:20250101T000000Z\r\n");
+        ics.append("DTSTART:").append(UTC_FORMAT.format(Instant.ofEpochMilli(from))).append("\r\n");
+        ics.append("DTEND:").append(UTC_FORMAT.format(Instant.ofEpochMilli(to))).append("\r\n");
+        for (Resource resource : collection.resources.values()) {
+            List<VEvent> events = resource.calendar().getComponents(Component.VEVENT);
+            for (OccurrenceIndex.Occurrence occ : OccurrenceIndex.occurrencesOf(resource.calendar(), from, to)) {
+                VEvent event = events.get(occ.component());
+                Property transp = event.getProperty(Property.TRANSP);
+                Property status = event.getProperty(Property.STATUS);
+                if ((transp != null && "TRANSPARENT".equals(transp.getValue()))
+                        || (status != null && "CANCELLED".equals(status.getValue()))) {
+                    continue;
+                }
+                ics.append("FREEBUSY;FBTYPE=BUSY:").append(UTC_FORMAT.format(Instant.ofEpochMilli(occ.start())))
+                        .append('/').append(UTC_FORMAT.format(Instant.ofEpochMilli(occ.end()))).append("\r\n");
+            }
+        }
+        ics.append("END:VFREEBUSY\r\nEND:VCALENDAR\r\n");
+        return new Response(200, "OK", "text/calendar; charset=utf-8", ics.toString().getBytes(StandardCharsets.UTF_8),
+                new LinkedHashMap<>());
+    }
+
+    private static boolean wantsCalendarData(Element report) {
+        Element prop = child(report, DAV_NS, "prop");
+        return prop != null && child(prop, CALDAV_NS, "calendar-data") != null;
+    }
+
+    private static void resourceResponse(StringBuilder xml, Resource resource, boolean withData) {
+        xml.append("<d:response><d:href>").append(escape(resource.href)).append("</d:href><d:propstat><d:prop>")
+                .append("<d:getetag>").append(escape(resource.etag)).append("</d:getetag>");
+        if (withData) {
+            xml.append("<c:calendar-data>").append(escape(resource.data)).append("</c:calendar-data>");
+        }
+        xml.append("</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n");
+    }
+
+    // --- calendar-query filters (RFC 4791 section 9.7) ---
+
+    private static boolean matchesCalendar(Resource resource, Element filter) throws IOException {
+        if (!"VCALENDAR".equalsIgnoreCase(filter.getAttribute("name"))) {
+            return false;
+        }
+        Calendar calendar = resource.calendar();
+        for (Element test : children(filter)) {
+            switch (test.getLocalName()) {
+                case "comp-filter": {
+                    boolean found = false;
+                    List<CalendarComponent> components = calendar.getComponents(test.getAttribute("name"));
+                    if (child(test, CALDAV_NS, "is-not-defined") != null) {
+                        found = components.isEmpty();
+                    } else {
+                        List<VEvent> events = calendar.getComponents(Component.VEVENT);
+                        for (CalendarComponent component : components) {
+                            if (matchesComponent(calendar, component, indexOf(events, component), test)) {
+                                found = true;
+                                break;
+                            }
+                        }
+                    }
+                    if (!found) {
+                        return false;
+                    }
+                    break;
+                }
+                case "prop-filter":
+                    if (!matchesProperty(calendar.getProperties(test.getAttribute("name")), test)) {
+                        return false;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(List<VEvent> events, CalendarComponent component) {
+        for (int i = 0; i < events.size(); i++) {
+            if (events.get(i) == component) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param index Position among the resource's VEVENTs, for the time range
+     */
+    private static boolean matchesComponent(Calendar calendar, Component component, int index, Element filter) {
+        for (Element test : children(filter)) {
+            switch (test.getLocalName()) {
+                case "time-range": {
+                    if (index < 0) {
+                        return false;
+                    }
+                    long from = parseUtc(test.getAttribute("start"), Long.MIN_VALUE / 2);
+                    long to = parseUtc(test.getAttribute("end"), Long.MAX_VALUE / 2);
+                    boolean overlaps = false;
+                    for (OccurrenceIndex.Occurrence occ : OccurrenceIndex.occurrencesOf(calendar, from, to)) {
+                        if (occ.component() == index) {
+                            overlaps = true;
+                            break;
+                        }
+                    }
+                    if (!overlaps) {
+                        return false;
+                    }
+                    break;
+                }
+                case "prop-filter":
+                    if (!matchesProperty(component.getProperties(test.getAttribute("name")), test)) {
+                        return false;
+                    }
+                    break;
+                case "comp-filter": {
+                    List<Component> nested = component instanceof VEvent
+                            ? new ArrayList<>(((VEvent) component).getAlarms())
+                            : List.of();
+                    nested.removeIf(c -> !c.getName().equalsIgnoreCase(test.getAttribute("name")));
+                    boolean found = child(test, CALDAV_NS, "is-not-defined") != null ? nested.isEmpty()
+                            : nested.stream().anyMatch(c -> matchesComponent(calendar, c, -1, test));
+                    if (!found) {
+                        return false;
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesProperty(List<Property> properties, Element filter) {
+        if (child(filter, CALDAV_NS, "is-not-defined") != null) {
+            return properties.isEmpty();
+        }
+        if (properties.isEmpty()) {
+            return false;
+        }
+        Element textMatch = child(filter, CALDAV_NS, "text-match");
+        if (textMatch == null) {
+            return true;
+        }
+        // A substring match, case-insensitive in i;ascii-casemap, the default collation, and exact in i;octet
+        boolean octet = "i;octet".equals(textMatch.getAttribute("collation"));
+        String needle = octet ? textMatch.getTextContent() : textMatch.getTextContent().toLowerCase(Locale.ROOT);
+        boolean negate = "yes".equalsIgnoreCase(textMatch.getAttribute("negate-condition"));
+        for (Property property : properties) {
+            String value = property.getValue() == null ? "" : property.getValue();
+            if (!octet) {
+                value = value.toLowerCase(Locale.ROOT);
+            }
+            if (value.contains(needle) != negate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long parseUtc(String value, long missing) {
+        if (value == null || value.isEmpty()) {
+            return missing;
+        }
+        return Instant.from(UTC_FORMAT.parse(value)).toEpochMilli();
+    }
+
+    // --- GET, PUT, DELETE ---
+
+    private synchronized Response get(Request request) {
+        Collection collection = collectionOf(request.path());
+        Resource resource = collection == null ? null : collection.resources.get(request.path());
+        if (resource == null) {
+            return Response.of(404, "Not Found");
+        }
+        if (resource.etag.equals(request.header("If-None-Match"))) {
+            return Response.of(304, "Not Modified").header("ETag", resource.etag);
+        }
+        return new Response(200, "OK", "text/calendar; charset=utf-8", resource.data.getBytes(StandardCharsets.UTF_8),
+                new LinkedHashMap<>()).header("ETag", resource.etag);
+    }
+
+    private synchronized Response put(Request request) {
+        String path = request.path();
+        Collection collection = collectionOf(path);
+        if (collection == null || path.endsWith("/")) {
+            return Response.of(409, "Conflict");
+        }
+        Resource existing = collection.resources.get(path);
+        Response failed = preconditionFailed(request, existing);
+        if (failed != null) {
+            return failed;
+        }
+        String data = new String(request.body(), StandardCharsets.UTF_8);
+        try {
+            ICalendarParser.parse(data);
+        } catch (Exception e) {
+            return Response.xml(400, "Bad Request", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                    + "<d:error xmlns:d=\"DAV:\" xmlns:c=\"" + CALDAV_NS + "\"><c:valid-calendar-data/></d:error>");
+        }
+        Resource stored = store(collection, path, data);
+        return (existing == null ? Response.of(201, "Created") : Response.of(204, "No Content"))
+                .header("ETag", stored.etag);
+    }
+
+    private synchronized Response delete(Request request) {
+        String path = request.path();
+        Collection collection = collectionOf(path);
+        Resource existing = collection == null ? null : collection.resources.get(path);
+        if (existing == null) {
+            return Response.of(404, "Not Found");
+        }
+        Response failed = preconditionFailed(request, existing);
+        if (failed != null) {
+            return failed;
+        }
+        remove(collection, path);
+        return Response.of(204, "No Content");
+    }
+
+    private static Response preconditionFailed(Request request, Resource existing) {
+        String ifMatch = request.header("If-Match");
+        String ifNoneMatch = request.header("If-None-Match");
+        if (ifMatch != null && (existing == null || !("*".equals(ifMatch) || existing.etag.equals(ifMatch)))) {
+            return Response.of(412, "Precondition Failed");
+        }
+        if ("*".equals(ifNoneMatch) && existing != null) {
+            return Response.of(412, "Precondition Failed");
+        }
+        return null;
+    }
+
+    private Resource store(Collection collection, String href, String data) {
+        long revision = ++collection.revision;
+        Resource resource = new Resource(href,
+                "\"" + Long.toHexString(revision) + "-" + Integer.toHexString(data.hashCode()) + "\"", data,
+                revision);
+        collection.resources.put(href, resource);
+        collection.deleted.remove(href);
+        return resource;
+    }
+
+    private void remove(Collection collection, String href) {
+        if (collection.resources.remove(href) != null) {
+            collection.deleted.put(href, ++collection.revision);
+        }
+    }
+
+    private Collection collectionOf(String path) {
+        for (Collection collection : collections.values()) {
+            if (path.startsWith(collection.path) || path.equals(collection.path.substring(0,
+                    collection.path.length() - 1))) {
+                return collection;
+            }
+        }
+        return null;
+    }
+
+    // --- HTTP ---
+
+    /**
+     * Reads one request, or returns null at the end of the stream.
+     */
+    private static Request readRequest(InputStream in) throws IOException {
+        String requestLine = readLine(in);
+        if (requestLine == null) {
+            return null;
+        }
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2) {
+            throw new IOException("Malformed request line: " + requestLine);
+        }
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        byte[] body;
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            int size;
+            while ((size = Integer.parseInt(readLine(in).split(";")[0].trim(), 16)) > 0) {
+                chunks.write(in.readNBytes(size));
+                readLine(in);
+            }
+            while ((line = readLine(in)) != null && !line.isEmpty()) {
+                // Trailers
+            }
+            body = chunks.toByteArray();
+        } else {
+            String length = headers.get("content-length");
+            body = length == null ? new byte[0] : in.readNBytes(Integer.parseInt(length));
+        }
+        String path = URI.create(parts[1]).getRawPath();
+        return new Request(parts[0].toUpperCase(Locale.ROOT), path, headers, body);
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0) {
+            if (b == '\n') {
+                int end = line.length();
+                return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+            }
+            line.append((char) b);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private void write(OutputStream out, Response response) throws IOException {
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(response.status()).append(' ')
+                .append(response.reason()).append("\r\n");
+        if (response.contentType() != null) {
+            head.append("Content-Type: ").append(response.contentType()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.body().length).append("\r\n");
+        response.headers().forEach((name, value) -> head.append(name).append(": ").append(value).append("\r\n"));
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        long cap = bytesPerSecond;
+        if (cap <= 0) {
+            out.write(response.body());
+            out.flush();
+            return;
+        }
+        // Send in slices of ~20 ms worth of bytes, sleeping to stay under the cap
+        int slice = (int) Math.max(512, cap / 50);
+        long started = System.nanoTime();
+        byte[] body = response.body();
+        for (int sent = 0; sent < body.length;) {
+            int n = Math.min(slice, body.length - sent);
+            out.write(body, sent, n);
+            out.flush();
+            sent += n;
+            long due = started + sent * TimeUnit.SECONDS.toNanos(1) / cap;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+        }
+    }
+
+    // --- XML ---
+
+    private static StringBuilder multistatus() {
+        return new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n<d:multistatus xmlns:d=\"DAV:\""
+                + " xmlns:c=\"" + CALDAV_NS + "\" xmlns:cs=\"" + CS_NS + "\">\n");
+    }
+
+    private static Document parse(byte[] body) throws Exception {
+        return XML.newDocumentBuilder().parse(new ByteArrayInputStream(body));
+    }
+
+    private static Element child(Element parent, String ns, String localName) {
+        for (Element element : children(parent)) {
+            if (ns.equals(element.getNamespaceURI()) && localName.equals(element.getLocalName())) {
+                return element;
+            }
+        }
+        return null;
+    }
+
+    private static List<Element> children(Element parent) {
+        List<Element> elements = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                elements.add((Element) node);
+            }
+        }
+        return elements;
+    }
+
+    private static String escape(String text) {
+        return HttpDavRequest.xmlEscape(text);
+    }
+}
@@ -0,0 +1,47 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing raw {@code calendar-data} into ical4j calendars on one thread, as
+ * each worker of {@link ICalendarParsingPipeline} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", BenchmarkFixtures.OFFLINE })
+public class ICalendarParseBenchmark {
+
+    @Param({ "100", "10000", "100000" })
+    public int events;
+
+    private List<String> icalendars;
+
+    @Setup
+    public void setUp() {
+        icalendars = BenchmarkFixtures.icalendars(events);
+    }
+
+    @Benchmark
+    public void parse(Blackhole blackhole) throws Exception {
+        for (String icalendar : icalendars) {
+            blackhole.consume(ICalendarParser.parse(icalendar));
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.File;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+import io.modelcontextprotocol.client.McpClient;
+import io.modelcontextprotocol.client.McpSyncClient;
+import io.modelcontextprotocol.client.transport.HttpClientSseClientTransport;
+import io.modelcontextprotocol.spec.McpSchema;
+
+/**
+ * Drives the MCP server over its SSE transport the way concurrent agents do,
+ * and reports throughput, latency percentiles and error rates per tool.
+ *
+ * Unless {@code --url} names a running server, it starts a
+ * {@link FakeCaldavServer} and the application in this JVM, pointed at it.
+ * {@code --clients} MCP sessions then call tools from a weighted mix at a
+ * fixed total {@code --rate}. Calls are scheduled ahead (open loop) and their
+ * latency is measured from the scheduled time, so a slow server shows up as
+ * latency rather than as a lower request rate. Calls made during
+ * {@code --warmup} are not recorded.
+ *
+ * The report is written as JSON to {@code --report}. With
+ * {@code --slo-p99-ms} or {@code --max-error-rate}, a tool above either limit
+ * makes the run exit with status 1.
+ */
+public final class McpLoadGenerator {
+
+    private static final String DEFAULT_MIX = "getCalendarEventsByDate=40,getCalendarEventsByDateRange=20,"
+            + "searchCalendarEvents=15,getFreeBusy=10,createCalendarEvent=7,updateCalendarEvent=5,"
+            + "deleteCalendarEvent=3";
+
+    private static final String[] SEARCH_WORDS = { "standup", "weekly", "call", "offsite", "agenda", "supplier" };
+
+    /**
+     * Latencies and failures of one tool, in nanoseconds.
+     */
+    private static final class Samples {
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        private int errors;
+
+        private synchronized void record(long nanos, boolean error) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            if (error) {
+                errors++;
+            }
+        }
+    }
+
+    private final Map<String, String> options;
+
+    private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+    private final ConcurrentMap<String, Samples> samples = new ConcurrentHashMap<>();
+
+    /**
+     * Fixture events are deleted from the top and updated from the bottom, so
+     * an update never targets a deleted event.
+     */
+    private final AtomicInteger nextDeleted;
+
+    private final int events;
+
+    private final int days;
+
+    private String calendarUrl;
+
+    private McpLoadGenerator(Map<String, String> options) {
+        this.options = options;
+        for (String entry : option("mix", DEFAULT_MIX).split(",")) {
+            String[] weight = entry.split("=");
+            mix.put(weight[0].trim(), Integer.parseInt(weight[1].trim()));
+        }
+        this.events = Integer.parseInt(option("events", "2000"));
+        this.days = Integer.parseInt(option("days", "365"));
+        this.nextDeleted = new AtomicInteger(events - 1);
+    }
+
+    /**
+     * Options: {@code --url}, {@code --clients} (8), {@code --rate} (calls
+     * per second, 20), {@code --duration} (seconds, 60), {@code --warmup}
+     * (seconds, 10), {@code --mix} (tool=weight,...), {@code --report},
+     * {@code --slo-p99-ms}, {@code --max-error-rate}, {@code --seed},
+     * {@code --days} (distinct query dates from 2025-01-01, 365),
+     * {@code --app} (application properties, key=value,...), and for
+     * the fake backend {@code --events} (2000), {@code --latency-ms},
+     * {@code --jitter-ms}, {@code --bandwidth-kbps}, {@code --throttle-rate},
+     * {@code --unavailable-rate}, {@code --reset-rate}.
+     */
+    public static void main(String[] args) throws Exception {
+        // As in the benchmarks, see BenchmarkFixtures.OFFLINE
+        if (System.getProperty("net.fortuna.ical4j.timezone.update.enabled") == null) {
+            System.setProperty("net.fortuna.ical4j.timezone.update.enabled", "false");
+        }
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        System.exit(new McpLoadGenerator(options).run() ? 0 : 1);
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    private boolean run() throws Exception {
+        FakeCaldavServer backend = null;
+        ConfigurableApplicationContext application = null;
+        String url = options.get("url");
+        try {
+            if (url == null) {
+                backend = new FakeCaldavServer().seed("Default", events)
+                        .setSeed(Long.parseLong(option("seed", "42")))
+                        .setLatency(Long.parseLong(option("latency-ms", "0")),
+                                Long.parseLong(option("jitter-ms", "0")))
+                        .setBandwidth(Long.parseLong(option("bandwidth-kbps", "0")) * 1024)
+                        .setFaultRates(Double.parseDouble(option("throttle-rate", "0")),
+                                Double.parseDouble(option("unavailable-rate", "0")),
+                                Double.parseDouble(option("reset-rate", "0")))
+                        .start(0);
+                calendarUrl = backend.getBaseUrl() + FakeCaldavServer.calendarPath("Default");
+                List<String> arguments = new ArrayList<>(List.of(
+                        "--server.port=0",
+                        "--spring.profiles.active=default",
+                        "--fastmail.caldav.url=" + backend.getBaseUrl(),
+                        "--fastmail.calendar.path=" + FakeCaldavServer.calendarPath("Default"),
+                        "--fastmail-username=load@example.com",
+                        "--fastmail.app.password=load",
+                        "--fastmail.snapshot.path=",
+                        "--logging.level.org.springframework.ai=WARN",
+                        "--logging.level.com.alp54.fastmail_caldav=WARN"));
+                for (String property : option("app", "").split(",")) {
+                    if (!property.isBlank()) {
+                        arguments.add("--" + property.trim());
+                    }
+                }
+                application = new SpringApplicationBuilder(App.class).run(arguments.toArray(String[]::new));
+                url = "http://127.0.0.1:" + application.getEnvironment().getProperty("local.server.port");
+            } else {
+                calendarUrl = option("calendar-url", "");
+            }
+            Map<String, Object> report = load(url);
+            if (backend != null) {
+                report.put("backendRequests", backend.getCounts());
+            }
+            return writeReport(report);
+        } finally {
+            if (application != null) {
+                application.close();
+            }
+            if (backend != null) {
+                backend.close();
+            }
+        }
+    }
+
+    private Map<String, Object> load(String url) throws Exception {
+        int clients = Integer.parseInt(option("clients", "8"));
+        double rate = Double.parseDouble(option("rate", "20"));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("warmup", "10")));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(option("duration", "60")));
+        long seed = Long.parseLong(option("seed", "42"));
+
+        List<McpSyncClient> sessions = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            McpSyncClient client = McpClient.sync(HttpClientSseClientTransport.builder(url).sseEndpoint("/sse").build())
+                    .requestTimeout(Duration.ofSeconds(60)).build();
+            client.initialize();
+            sessions.add(client);
+        }
+        System.out.println("Load: " + clients + " MCP sessions on " + url + ", " + rate + " calls/s for "
+                + option("duration", "60") + " s after " + option("warmup", "10") + " s warmup");
+
+        // Client i makes calls i, i + clients, i + 2 * clients, ... of one schedule at the total rate
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long started = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long measuredFrom = started + warmupNanos;
+        long end = measuredFrom + durationNanos;
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+            McpSyncClient client = sessions.get(i);
+            int first = i;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(seed + first);
+                try {
+                    for (long call = first;; call += clients) {
+                        long scheduled = started + call * interval;
+                        if (scheduled >= end) {
+                            return;
+                        }
+                        long wait = scheduled - System.nanoTime();
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.sleep(wait);
+                        }
+                        McpSchema.CallToolRequest request = nextCall(random);
+                        boolean error;
+                        try {
+                            McpSchema.CallToolResult result = client.callTool(request);
+                            error = Boolean.TRUE.equals(result.isError());
+                        } catch (RuntimeException e) {
+                            error = true;
+                        }
+                        if (scheduled >= measuredFrom) {
+                            samples.computeIfAbsent(request.name(), name -> new Samples())
+                                    .record(System.nanoTime() - scheduled, error);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            }, "mcp-load-" + i);
+            thread.start();
+        }
+        done.await();
+        long measuredNanos = Math.max(1, Math.min(System.nanoTime(), end) - measuredFrom);
+        for (McpSyncClient client : sessions) {
+            client.closeGracefully();
+        }
+        return summarize(url, clients, rate, measuredNanos);
+    }
+
+    private McpSchema.CallToolRequest nextCall(Random random) {
+        int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+        int pick = random.nextInt(total);
+        String tool = null;
+        for (Map.Entry<String, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if (pick < 0) {
+                tool = entry.getKey();
+                break;
+            }
+        }
+        LocalDate day = LocalDate.of(2025, 1, 1).plusDays(random.nextInt(days));
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        switch (tool) {
+            case "getCalendarEventsByDate":
+                arguments.put("date", day.toString());
+                break;
+            case "getCalendarEventsByDateRange":
+            case "getFreeBusy":
+                arguments.put("startDate", day.toString());
+                arguments.put("endDate", day.plusDays(6).toString());
+                break;
+            case "getCalendarEventsByTitleOrDescription":
+                arguments.put("date", day.toString());
+                arguments.put("title", SEARCH_WORDS[random.nextInt(SEARCH_WORDS.length)]);
+                arguments.put("description", "");
+                break;
+            case "searchCalendarEvents":
+                arguments.put("query", SEARCH_WORDS[random.nextInt(SEARCH_WORDS.length)]);
+                arguments.put("startDate", day.toString());
+                arguments.put("endDate", day.plusDays(30).toString());
+                break;
+            case "getConflictingEvents":
+                arguments.put("date", day.toString());
+                arguments.put("startTime", "0900");
+                arguments.put("endTime", "1000");
+                break;
+            case "createCalendarEvent":
+                arguments.put("summary", "Load test " + random.nextInt(1_000_000));
+                arguments.put("date", day.toString());
+                arguments.put("startTime", "1400");
+                arguments.put("endTime", "1430");
+                break;
+            case "updateCalendarEvent":
+                arguments.put("eventUrl", calendarUrl + "event-" + random.nextInt(Math.max(1, events / 2)) + ".ics");
+                arguments.put("summary", "Updated " + random.nextInt(1_000_000));
+                arguments.put("date", "");
+                arguments.put("startTime", "");
+                arguments.put("endTime", "");
+                break;
+            case "deleteCalendarEvent":
+                arguments.put("uid", "bench-" + Math.max(events / 2, nextDeleted.getAndDecrement()) + "@example.com");
+                break;
+            default:
+                // Tools without arguments, e.g. getCalendarEvents
+                break;
+        }
+        return new McpSchema.CallToolRequest(tool, arguments);
+    }
+
+    private Map<String, Object> summarize(String url, int clients, double rate, long measuredNanos) {
+        double seconds = measuredNanos / 1e9;
+        Map<String, Object> tools = new LinkedHashMap<>();
+        long calls = 0;
+        long errors = 0;
+        for (String tool : mix.keySet()) {
+            Samples tool_samples = samples.get(tool);
+            if (tool_samples == null) {
+                continue;
+            }
+            long[] sorted;
+            int failed;
+            synchronized (tool_samples) {
+                sorted = Arrays.copyOf(tool_samples.latencies, tool_samples.count);
+                failed = tool_samples.errors;
+            }
+            Arrays.sort(sorted);
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("calls", sorted.length);
+            stats.put("errors", failed);
+            stats.put("errorRate", (double) failed / sorted.length);
+            stats.put("throughput", sorted.length / seconds);
+            stats.put("p50Ms", percentile(sorted, 0.50));
+            stats.put("p95Ms", percentile(sorted, 0.95));
+            stats.put("p99Ms", percentile(sorted, 0.99));
+            stats.put("maxMs", sorted[sorted.length - 1] / 1e6);
+            tools.put(tool, stats);
+            calls += sorted.length;
+            errors += failed;
+        }
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("url", url);
+        config.put("clients", clients);
+        config.put("targetRate", rate);
+        config.put("mix", mix);
+        config.put("options", options);
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", Instant.now().toString());
+        report.put("config", config);
+        report.put("durationSeconds", seconds);
+        report.put("calls", calls);
+        report.put("errors", errors);
+        report.put("throughput", calls / seconds);
+        report.put("tools", tools);
+        return report;
+    }
+
+    /**
+     * Nearest-rank percentile, in milliseconds.
+     */
+    private static double percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+        return sorted[Math.max(0, rank - 1)] / 1e6;
+    }
+
+    /**
+     * Prints the summary, writes the JSON report and checks the limits.
+     *
+     * @return false if any tool broke a limit
+     */
+    @SuppressWarnings("unchecked")
+    private boolean writeReport(Map<String, Object> report) throws Exception {
+        Double sloP99 = options.containsKey("slo-p99-ms") ? Double.valueOf(options.get("slo-p99-ms")) : null;
+        Double maxErrorRate = options.containsKey("max-error-rate") ? Double.valueOf(options.get("max-error-rate"))
+                : null;
+        boolean passed = true;
+        System.out.printf("%-40s %7s %7s %9s %9s %9s %9s%n", "tool", "calls", "errors", "calls/s", "p50 ms",
+                "p95 ms", "p99 ms");
+        for (Map.Entry<String, Object> entry : ((Map<String, Object>) report.get("tools")).entrySet()) {
+            Map<String, Object> stats = (Map<String, Object>) entry.getValue();
+            List<String> violations = new ArrayList<>();
+            if (sloP99 != null && (double) stats.get("p99Ms") > sloP99) {
+                violations.add("p99 above " + sloP99 + " ms");
+            }
+            if (maxErrorRate != null && (double) stats.get("errorRate") > maxErrorRate) {
+                violations.add("error rate above " + maxErrorRate);
+            }
+            stats.put("violations", violations);
+            passed &= violations.isEmpty();
+            System.out.printf("%-40s %7d %7d %9.2f %9.1f %9.1f %9.1f %s%n", entry.getKey(), stats.get("calls"),
+                    stats.get("errors"), stats.get("throughput"), stats.get("p50Ms"), stats.get("p95Ms"),
+                    stats.get("p99Ms"), violations.isEmpty() ? "" : "FAIL: " + String.join(", ", violations));
+        }
+        report.put("passed", passed);
+        System.out.printf("Total: %d calls, %d errors, %.2f calls/s%n", report.get("calls"), report.get("errors"),
+                report.get("throughput"));
+
+        File file = new File(option("report", "target/bench/mcp-load-report.json"));
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, report);
+        System.out.println("Report written to " + file.getPath());
+        return passed;
+    }
+}
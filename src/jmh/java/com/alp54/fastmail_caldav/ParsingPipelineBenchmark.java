@@ -0,0 +1,81 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Period;
+
+/**
+ * {@link ICalendarParsingPipeline} with a parallelism of 1, the serial path,
+ * against 4 workers and one per processor ({@code 0}): {@code batch} parses
+ * the blobs alone, {@code parseEvents} runs a whole multistatus response
+ * through {@link FastmailCaldavClient#parseEvents}, reading and converting
+ * included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", BenchmarkFixtures.OFFLINE })
+public class ParsingPipelineBenchmark {
+
+    @Param({ "10000" })
+    public int events;
+
+    @Param({ "1", "4", "0" })
+    public int parallelism;
+
+    private ICalendarParsingPipeline pipeline;
+
+    private FastmailCaldavClient client;
+
+    private List<String> icalendars;
+
+    private byte[] multistatus;
+
+    private Period period;
+
+    @Setup
+    public void setUp() throws Exception {
+        CaldavMetrics metrics = BenchmarkFixtures.metrics();
+        pipeline = new ICalendarParsingPipeline(parallelism, metrics);
+        client = BenchmarkFixtures.client(pipeline, metrics);
+        icalendars = BenchmarkFixtures.icalendars(events);
+        multistatus = BenchmarkFixtures.multistatus(events);
+        period = BenchmarkFixtures.queryPeriod();
+    }
+
+    @TearDown
+    public void tearDown() {
+        pipeline.destroy();
+    }
+
+    @Benchmark
+    public List<Calendar> batch() {
+        ICalendarParsingPipeline.Batch<Calendar> batch = pipeline.batch((href, calendar) -> List.of(calendar));
+        for (int i = 0; i < icalendars.size(); i++) {
+            batch.add(BenchmarkFixtures.href(i), icalendars.get(i));
+        }
+        return batch.join();
+    }
+
+    @Benchmark
+    public List<CalendarEvent> parseEvents() throws Exception {
+        return client.parseEvents(BenchmarkFixtures.stream(multistatus), period, event -> true);
+    }
+}
@@ -0,0 +1,75 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * Expanding parsed calendars over a three-month window: {@code index} is the
+ * expansion behind {@link OccurrenceIndex}, {@code recurrenceSet} the ical4j
+ * expansion done when a REPORT response is converted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", BenchmarkFixtures.OFFLINE })
+public class RecurrenceExpansionBenchmark {
+
+    @Param({ "100", "10000", "100000" })
+    public int events;
+
+    private List<Calendar> calendars;
+
+    private Period period;
+
+    private long from;
+
+    private long to;
+
+    @Setup
+    public void setUp() throws Exception {
+        calendars = BenchmarkFixtures.calendars(events);
+        period = BenchmarkFixtures.queryPeriod();
+        from = period.getStart().getTime();
+        to = period.getEnd().getTime();
+    }
+
+    @Benchmark
+    public void index(Blackhole blackhole) {
+        for (Calendar calendar : calendars) {
+            blackhole.consume(OccurrenceIndex.occurrencesOf(calendar, from, to));
+        }
+    }
+
+    @Benchmark
+    public void recurrenceSet(Blackhole blackhole) {
+        for (Calendar calendar : calendars) {
+            List<VEvent> vevents = calendar.getComponents(Component.VEVENT);
+            for (VEvent event : vevents) {
+                if (event.getProperty(Property.RRULE) != null) {
+                    blackhole.consume(event.calculateRecurrenceSet(period));
+                }
+            }
+        }
+    }
+}
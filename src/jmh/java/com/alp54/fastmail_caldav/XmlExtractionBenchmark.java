@@ -0,0 +1,49 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Reading a calendar-query multistatus into hrefs, ETags and raw
+ * {@code calendar-data}, without parsing the calendars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx3g", BenchmarkFixtures.OFFLINE })
+public class XmlExtractionBenchmark {
+
+    @Param({ "100", "10000", "100000" })
+    public int events;
+
+    private byte[] multistatus;
+
+    @Setup
+    public void setUp() {
+        multistatus = BenchmarkFixtures.multistatus(events);
+    }
+
+    @Benchmark
+    public String read(Blackhole blackhole) throws IOException {
+        return MultistatusReader.read(BenchmarkFixtures.stream(multistatus), response -> {
+            blackhole.consume(response.href());
+            blackhole.consume(response.etag());
+            blackhole.consume(response.calendarData());
+        });
+    }
+}
@@ -0,0 +1,170 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The number of requests let through to the CalDAV server at once.
+ *
+ * With {@code adaptive} set the limit follows the server with AIMD: every
+ * response in normal time raises it by one request per round of the limit,
+ * up to {@code max}. A 429, a 503, a failed request, or a response slower
+ * than {@code tolerance} times the average lowers it by a fifth, down to
+ * {@code min}, at most once per average response time, so one slow burst
+ * counts once. Without it the limit stays at {@code max}.
+ *
+ * Slots are handed out in arrival order, to threads and to non-blocking
+ * callers alike. A lock rather than a monitor, so virtual threads waiting
+ * for a slot do not pin their carriers.
+ */
+final class AdaptiveConcurrencyLimit {
+
+    private static final double DECREASE = 0.8;
+
+    private static final double AVERAGE_WEIGHT = 0.05;
+
+    private final int min;
+
+    private final int max;
+
+    private final boolean adaptive;
+
+    private final double tolerance;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ArrayDeque<CompletableFuture<Void>> waiting = new ArrayDeque<>();
+
+    private double limit;
+
+    private int inFlight;
+
+    private double averageNanos;
+
+    private long decreasedAt;
+
+    AdaptiveConcurrencyLimit(int min, int max, boolean adaptive, double tolerance) {
+        this.max = Math.max(1, max);
+        this.min = Math.max(1, Math.min(min, this.max));
+        this.adaptive = adaptive;
+        this.tolerance = tolerance;
+        this.limit = this.max;
+        this.decreasedAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a slot, waiting while the limit is reached.
+     */
+    void acquire() throws InterruptedException {
+        CompletableFuture<Void> slot = acquireAsync();
+        try {
+            slot.get();
+        } catch (InterruptedException e) {
+            if (!slot.cancel(false)) {
+                release();
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * A slot, completed once it is granted. Cancel it to stop waiting; if
+     * that fails the slot was granted and has to be released.
+     */
+    CompletableFuture<Void> acquireAsync() {
+        lock.lock();
+        try {
+            if (waiting.isEmpty() && inFlight < (int) limit) {
+                inFlight++;
+                return CompletableFuture.completedFuture(null);
+            }
+            CompletableFuture<Void> slot = new CompletableFuture<>();
+            waiting.add(slot);
+            return slot;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+        } finally {
+            lock.unlock();
+        }
+        grant();
+    }
+
+    /**
+     * Adjusts the limit to one response, or failed request.
+     *
+     * @param overloaded The server throttled or failed the request
+     */
+    void onResponse(long elapsedNanos, boolean overloaded) {
+        if (!adaptive) {
+            return;
+        }
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            boolean slow = averageNanos > 0 && elapsedNanos > averageNanos * tolerance;
+            if (overloaded || slow) {
+                if (now - decreasedAt > averageNanos) {
+                    limit = Math.max(min, limit * DECREASE);
+                    decreasedAt = now;
+                }
+            } else if (limit < max) {
+                limit = Math.min(max, limit + 1 / limit);
+            }
+            if (!overloaded) {
+                averageNanos = averageNanos == 0 ? elapsedNanos
+                        : averageNanos + AVERAGE_WEIGHT * (elapsedNanos - averageNanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+        grant();
+    }
+
+    /**
+     * Hands free slots to the longest waiting callers. Their futures are
+     * completed outside the lock, as that runs whatever waits on them.
+     */
+    private void grant() {
+        List<CompletableFuture<Void>> granted = new ArrayList<>();
+        lock.lock();
+        try {
+            while (inFlight < (int) limit && !waiting.isEmpty()) {
+                CompletableFuture<Void> slot = waiting.poll();
+                if (!slot.isDone()) {
+                    inFlight++;
+                    granted.add(slot);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (CompletableFuture<Void> slot : granted) {
+            if (!slot.complete(null)) {
+                // Cancelled in the meantime
+                release();
+            }
+        }
+    }
+
+    int limit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
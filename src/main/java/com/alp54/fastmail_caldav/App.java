@@ -1,24 +1,45 @@
 package com.alp54.fastmail_caldav;
 
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.springframework.ai.tool.ToolCallback;
 import org.springframework.ai.tool.ToolCallbackProvider;
 import org.springframework.ai.tool.method.MethodToolCallbackProvider;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 
+import io.modelcontextprotocol.server.McpServerFeatures;
+
 @SpringBootApplication
 public class App {
 
     public static void main(String[] args) {
+        if ("cli".equals(System.getProperty("spring.profiles.active", System.getenv("SPRING_PROFILES_ACTIVE")))) {
+            // Single commands do not need the web and MCP server stack
+            CliApp.main(args);
+            return;
+        }
         SpringApplication.run(App.class, args);
     }
 
     @Bean
     @ConditionalOnProperty(name = "spring.profiles.active", havingValue = "default")
-    public ToolCallbackProvider alignitTools(FastmailCaldavClient client) {
-        return MethodToolCallbackProvider.builder().toolObjects(client)
-                .build();
+    public ToolCallbackProvider alignitTools(FastmailCaldavClient client, CaldavMetrics metrics,
+            ObjectProvider<List<McpServerFeatures.AsyncToolSpecification>> asyncTools) {
+        ToolCallback[] tools = MethodToolCallbackProvider.builder().toolObjects(client)
+                .build().getToolCallbacks();
+        // Tools that have a non-blocking version in ASYNC mode are served by that instead
+        Set<String> nonBlocking = asyncTools.stream().flatMap(List::stream).map(tool -> tool.tool().name())
+                .collect(Collectors.toSet());
+        return ToolCallbackProvider.from(Arrays.stream(tools)
+                .filter(tool -> !nonBlocking.contains(tool.getToolDefinition().name()))
+                .map(metrics::timed).toList());
     }
 
 }
@@ -0,0 +1,126 @@
+package com.alp54.fastmail_caldav;
+
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.method.MethodToolCallbackProvider;
+import org.springframework.ai.util.json.JsonParser;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.modelcontextprotocol.server.McpServerFeatures;
+import io.modelcontextprotocol.spec.McpSchema;
+import net.fortuna.ical4j.model.Period;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking versions of the query tools for
+ * {@code spring.ai.mcp.server.type=ASYNC}.
+ *
+ * They keep the names, descriptions and input schemas of the
+ * {@link FastmailCaldavClient} tools they replace, which {@link App} then
+ * leaves out of its blocking tools; the other tools run as before, wrapped by
+ * Spring AI. An MCP tool call has a single result, so the events streamed by
+ * {@link ReactiveCaldavClient} are collected into one JSON list.
+ */
+@Configuration
+@ConditionalOnProperty(name = "spring.ai.mcp.server.type", havingValue = "ASYNC")
+public class AsyncToolsConfig {
+
+    private final ToolCallback[] blockingTools;
+
+    private final ReactiveCaldavClient reactiveClient;
+
+    private final CaldavMetrics metrics;
+
+    public AsyncToolsConfig(FastmailCaldavClient client, ReactiveCaldavClient reactiveClient, CaldavMetrics metrics) {
+        this.blockingTools = MethodToolCallbackProvider.builder().toolObjects(client).build().getToolCallbacks();
+        this.reactiveClient = reactiveClient;
+        this.metrics = metrics;
+    }
+
+    /**
+     * A list, since Spring AI collects lists of tool specifications.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "spring.profiles.active", havingValue = "default")
+    public List<McpServerFeatures.AsyncToolSpecification> asyncQueryTools() {
+        return List.of(
+                tool("getCalendarEvents", args -> query(null, FastmailCaldavClient.TextQuery.NONE)),
+                tool("getCalendarEventsByDate", args -> eventsOn(args.get("date"), null, null)),
+                tool("getCalendarEventsByTitleOrDescription",
+                        args -> eventsOn(args.get("date"), args.get("title"), args.get("description"))),
+                tool("getCalendarEventsByDateRange", args -> {
+                    LocalDate[] range = FastmailCaldavClient.dateRange(args.get("startDate"), args.get("endDate"));
+                    return query(FastmailCaldavClient.period(range[0], range[1]),
+                            FastmailCaldavClient.TextQuery.NONE);
+                }),
+                tool("searchCalendarEvents", args -> {
+                    String text = args.get("query");
+                    if (SearchIndex.tokenize(text).isEmpty()) {
+                        throw new IllegalArgumentException("query must contain at least one word");
+                    }
+                    String startDate = args.get("startDate");
+                    String endDate = args.get("endDate");
+                    boolean ranged = (startDate != null && !startDate.isBlank())
+                            || (endDate != null && !endDate.isBlank());
+                    LocalDate[] range = ranged ? FastmailCaldavClient.dateRange(startDate, endDate) : null;
+                    return query(ranged ? FastmailCaldavClient.period(range[0], range[1]) : null,
+                            new FastmailCaldavClient.TextQuery(null, null, text));
+                }));
+    }
+
+    private Flux<CalendarEvent> eventsOn(String date, String title, String description) {
+        LocalDate day = FastmailCaldavClient.parseQueryDate(date);
+        return query(day == null ? null : FastmailCaldavClient.period(day, day.plusDays(1)),
+                new FastmailCaldavClient.TextQuery(title, description, null));
+    }
+
+    /**
+     * Time-ranged results are sorted by start, like the blocking tools sort
+     * them.
+     */
+    private Flux<CalendarEvent> query(Period queryPeriod, FastmailCaldavClient.TextQuery textQuery) {
+        Flux<CalendarEvent> events = reactiveClient.queryEvents(queryPeriod, textQuery);
+        return queryPeriod == null ? events : events.sort(Comparator.comparing(CalendarEvent::dtstart));
+    }
+
+    /**
+     * An async tool with the definition of the blocking tool of that name.
+     */
+    private McpServerFeatures.AsyncToolSpecification tool(String name,
+            Function<Map<String, String>, Flux<CalendarEvent>> query) {
+        ToolDefinition definition = Arrays.stream(blockingTools)
+                .map(ToolCallback::getToolDefinition)
+                .filter(d -> d.name().equals(name))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("No tool named " + name));
+        McpSchema.Tool tool = new McpSchema.Tool(name, definition.description(), definition.inputSchema());
+        return new McpServerFeatures.AsyncToolSpecification(tool, (exchange, arguments) -> {
+            Mono<List<CalendarEvent>> events = Flux.defer(() -> query.apply(stringArguments(arguments)))
+                    .collectList();
+            return metrics.timed(name, events)
+                    .map(list -> new McpSchema.CallToolResult(
+                            List.of(new McpSchema.TextContent(JsonParser.toJson(list))), false))
+                    .onErrorResume(e -> Mono.just(new McpSchema.CallToolResult(
+                            List.of(new McpSchema.TextContent(e.getMessage())), true)));
+        });
+    }
+
+    private static Map<String, String> stringArguments(Map<String, Object> arguments) {
+        Map<String, String> values = new HashMap<>();
+        if (arguments != null) {
+            arguments.forEach((key, value) -> values.put(key, value == null ? null : value.toString()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,228 @@
+package com.alp54.fastmail_caldav;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Shared HTTP transport for all CalDAV calls.
+ *
+ * One pooled {@link CloseableHttpClient} is created per application context so
+ * that TLS sessions and keep-alive connections are reused across tool calls.
+ * Basic credentials are sent preemptively, which saves the 401 challenge round
+ * trip on every request, but only to the scheme, host and port of
+ * {@code fastmail.caldav.url}: a redirect or an absolute href from a server
+ * answer that points elsewhere gets no credentials. Requests that fan out over several calendars run on
+ * a small shared executor sized to stay within the per-route connection limit.
+ *
+ * With {@code spring.threads.virtual.enabled} on a JVM that has virtual
+ * threads, fan-out requests run on a virtual thread each instead, and the
+ * number of requests in flight is capped by
+ * {@code fastmail.http.max-concurrency}, at most the pool's per-route limit,
+ * rather than by the executor.
+ *
+ * The {@code fastmail.http.rate-limit}, {@code adaptive-concurrency},
+ * {@code retry} and {@code circuit-breaker} settings make up one
+ * {@link CaldavResilience}, which all requests go through: those of this
+ * client via {@link ResilientHttpClient}, and those of the ASYNC query tools
+ * as well.
+ */
+@Configuration
+public class CaldavHttpClientConfig {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CaldavHttpClientConfig.class);
+
+    @Value("${fastmail.caldav.url}")
+    private String caldavUrl;
+
+    @Value("${fastmail-username}")
+    private String username;
+
+    @Value("${fastmail.app.password}")
+    private String password;
+
+    @Value("${fastmail.http.max-total:20}")
+    private int maxTotal;
+
+    @Value("${fastmail.http.max-per-route:10}")
+    private int maxPerRoute;
+
+    @Value("${fastmail.http.connect-timeout-ms:5000}")
+    private int connectTimeoutMs;
+
+    @Value("${fastmail.http.socket-timeout-ms:30000}")
+    private int socketTimeoutMs;
+
+    @Value("${fastmail.http.connection-request-timeout-ms:5000}")
+    private int connectionRequestTimeoutMs;
+
+    @Value("${fastmail.http.keep-alive-ms:30000}")
+    private long keepAliveMs;
+
+    @Value("${fastmail.http.idle-evict-ms:30000}")
+    private long idleEvictMs;
+
+    @Value("${fastmail.http.fan-out-parallelism:4}")
+    private int fanOutParallelism;
+
+    @Value("${fastmail.http.max-concurrency:0}")
+    private int maxConcurrency;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    @Value("${fastmail.http.rate-limit.requests-per-second:0}")
+    private double requestsPerSecond;
+
+    @Value("${fastmail.http.rate-limit.burst:20}")
+    private int burst;
+
+    @Value("${fastmail.http.adaptive-concurrency.enabled:true}")
+    private boolean adaptiveConcurrency;
+
+    @Value("${fastmail.http.adaptive-concurrency.min:1}")
+    private int minConcurrency;
+
+    @Value("${fastmail.http.adaptive-concurrency.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${fastmail.http.retry.max-attempts:3}")
+    private int retryMaxAttempts;
+
+    @Value("${fastmail.http.retry.base-delay-ms:200}")
+    private long retryBaseDelayMs;
+
+    @Value("${fastmail.http.retry.max-delay-ms:10000}")
+    private long retryMaxDelayMs;
+
+    @Value("${fastmail.http.circuit-breaker.failure-threshold:5}")
+    private int circuitFailureThreshold;
+
+    @Value("${fastmail.http.circuit-breaker.open-ms:30000}")
+    private long circuitOpenMs;
+
+    @Bean(destroyMethod = "close")
+    public PoolingHttpClientConnectionManager caldavConnectionManager(CaldavMetrics metrics) {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        // Re-check connections that sat idle for a while before handing them out
+        connectionManager.setValidateAfterInactivity(2000);
+        metrics.bindConnectionPool(connectionManager);
+        return connectionManager;
+    }
+
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient caldavHttpClient(PoolingHttpClientConnectionManager caldavConnectionManager,
+            CaldavResilience caldavResilience, CaldavMetrics metrics) {
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeoutMs)
+                .setSocketTimeout(socketTimeoutMs)
+                .setConnectionRequestTimeout(connectionRequestTimeoutMs)
+                .build();
+
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(caldavConnectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    // Honour the server's Keep-Alive header, otherwise fall back to our default
+                    long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE
+                            .getKeepAliveDuration(response, context);
+                    return serverKeepAlive > 0 ? serverKeepAlive : keepAliveMs;
+                })
+                .addInterceptorFirst(preemptiveBasicAuth())
+                .addInterceptorLast(metrics.requestTimer())
+                .addInterceptorFirst(metrics.responseTimer())
+                .evictExpiredConnections()
+                .evictIdleConnections(idleEvictMs, TimeUnit.MILLISECONDS)
+                .build();
+
+        return new ResilientHttpClient(client, caldavResilience);
+    }
+
+    @Bean
+    public CaldavResilience caldavResilience(CaldavMetrics metrics) {
+        int poolLimit = Math.min(maxTotal, maxPerRoute);
+        int cap = maxConcurrency > 0 ? maxConcurrency : poolLimit;
+        if (useVirtualThreads()) {
+            // HttpClient 4.5 waits for a pooled connection inside a monitor, which pins the virtual thread to
+            // its carrier. Never let more requests in than the pool can serve, or waiters can starve the
+            // carriers that the requests holding connections need to finish.
+            cap = Math.min(cap, poolLimit);
+        }
+        return new CaldavResilience(requestsPerSecond > 0 ? new TokenBucket(requestsPerSecond, burst) : null,
+                new AdaptiveConcurrencyLimit(minConcurrency, cap, adaptiveConcurrency, latencyTolerance),
+                new CircuitBreaker(circuitFailureThreshold, circuitOpenMs),
+                retryMaxAttempts, retryBaseDelayMs, retryMaxDelayMs, metrics);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService caldavRequestExecutor() {
+        if (useVirtualThreads()) {
+            return VirtualThreads.newThreadPerTaskExecutor("caldav-request-");
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        return Executors.newFixedThreadPool(Math.max(1, Math.min(fanOutParallelism, maxPerRoute)), task -> {
+            Thread thread = new Thread(task, "caldav-request-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private boolean useVirtualThreads() {
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            LOG.warn("Virtual threads are not available on Java {}, CalDAV requests run on platform threads",
+                    Runtime.version().feature());
+            virtualThreads = false;
+        }
+        return virtualThreads;
+    }
+
+    private HttpRequestInterceptor preemptiveBasicAuth() {
+        String credentials = (username == null ? "" : username) + ":" + (password == null ? "" : password);
+        String header = "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        HttpHost server = origin(caldavUrl);
+        return (request, context) -> {
+            HttpHost target = HttpClientContext.adapt(context).getTargetHost();
+            if (target != null && server.equals(origin(target))
+                    && !request.containsHeader(HttpHeaders.AUTHORIZATION)) {
+                request.addHeader(HttpHeaders.AUTHORIZATION, header);
+            }
+        };
+    }
+
+    /**
+     * The scheme, host and port of a URL, with the scheme's default port
+     * filled in, to compare against the CalDAV server's.
+     */
+    static HttpHost origin(String url) {
+        URI uri = URI.create(url);
+        return origin(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme()));
+    }
+
+    private static HttpHost origin(HttpHost host) {
+        String scheme = host.getSchemeName().toLowerCase(Locale.ROOT);
+        int port = host.getPort() >= 0 ? host.getPort() : "https".equals(scheme) ? 443 : 80;
+        return new HttpHost(host.getHostName(), port, scheme);
+    }
+}
@@ -0,0 +1,259 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpCoreContext;
+import org.springframework.ai.chat.model.ToolContext;
+import org.springframework.ai.tool.ToolCallback;
+import org.springframework.ai.tool.definition.ToolDefinition;
+import org.springframework.ai.tool.metadata.ToolMetadata;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Micrometer instrumentation of the CalDAV client.
+ *
+ * <ul>
+ * <li>{@code caldav.tool}: duration of each MCP tool call, by tool and outcome</li>
+ * <li>{@code caldav.http.requests}: time to the response headers, by method and
+ * status</li>
+ * <li>{@code caldav.phase}: time spent per phase of a query. {@code xml} is the
+ * multistatus read, including the body download it streams; {@code ical} is
+ * one ical4j parse; {@code convert} turns a calendar into events and includes
+ * {@code expand}, the recurrence expansion; {@code sync} and {@code store} are
+ * the incremental sync and the answer from the synced store</li>
+ * <li>{@code caldav.response.bytes}, {@code caldav.events.parsed},
+ * {@code caldav.occurrences.expanded}: counters</li>
+ * <li>{@code caldav.cache}: lookups by cache and result (hit, miss, or
+ * coalesced with an identical lookup in flight); {@code caldav.cache.size}:
+ * entries per cache</li>
+ * <li>{@code caldav.http.pool}: connection pool gauges by state</li>
+ * <li>{@code caldav.http.retries}, {@code caldav.http.rejected},
+ * {@code caldav.fallback}: resilience counters;
+ * {@code caldav.http.concurrency.limit} and {@code caldav.http.circuit}:
+ * the current concurrency limit and breaker state</li>
+ * </ul>
+ *
+ * Without a registry in the context (the CLI) meters go to the global
+ * registry, which drops them unless something is registered there.
+ */
+@Component
+public class CaldavMetrics {
+
+    /**
+     * A unit of work that is timed as one phase.
+     */
+    @FunctionalInterface
+    public interface Phase<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private static final String REQUEST_STARTED = "caldav.metrics.request-started";
+
+    private final MeterRegistry registry;
+
+    private final Counter responseBytes;
+
+    public CaldavMetrics(ObjectProvider<MeterRegistry> registry) {
+        this.registry = registry.getIfAvailable(() -> Metrics.globalRegistry);
+        this.responseBytes = Counter.builder("caldav.response.bytes").baseUnit("bytes")
+                .description("Response body bytes read from the CalDAV server").register(this.registry);
+    }
+
+    public <T, E extends Exception> T phase(String phase, Phase<T, E> work) throws E {
+        Timer.Sample sample = Timer.start(registry);
+        try {
+            return work.run();
+        } finally {
+            sample.stop(registry.timer("caldav.phase", "phase", phase));
+        }
+    }
+
+    public void cache(String cache, boolean hit) {
+        registry.counter("caldav.cache", "cache", cache, "result", hit ? "hit" : "miss").increment();
+    }
+
+    /**
+     * Counts a lookup that waited for an identical one in flight.
+     */
+    public void coalesced(String cache) {
+        registry.counter("caldav.cache", "cache", cache, "result", "coalesced").increment();
+    }
+
+    /**
+     * Counts a request sent again, by the status or error that caused it.
+     */
+    void retried(String method, String reason) {
+        registry.counter("caldav.http.retries", "method", method, "reason", reason).increment();
+    }
+
+    /**
+     * Counts a request failed without being sent, e.g. by the open circuit
+     * breaker.
+     */
+    void rejected(String reason) {
+        registry.counter("caldav.http.rejected", "reason", reason).increment();
+    }
+
+    /**
+     * Counts an answer served from local data because the server was
+     * unavailable.
+     */
+    public void fallback(String source) {
+        registry.counter("caldav.fallback", "source", source).increment();
+    }
+
+    void bindResilience(Supplier<Number> concurrencyLimit, Supplier<Number> circuitState) {
+        Gauge.builder("caldav.http.concurrency.limit", concurrencyLimit).register(registry);
+        Gauge.builder("caldav.http.circuit", circuitState)
+                .description("0 closed, 1 open, 2 half-open").register(registry);
+    }
+
+    void bindCacheSize(String cache, Supplier<Number> size) {
+        Gauge.builder("caldav.cache.size", size).tag("cache", cache).register(registry);
+    }
+
+    public void eventsParsed(boolean success) {
+        registry.counter("caldav.events.parsed", "result", success ? "success" : "failure").increment();
+    }
+
+    public void occurrencesExpanded(int count) {
+        registry.counter("caldav.occurrences.expanded").increment(count);
+    }
+
+    /**
+     * Wraps a tool so that every call is timed under its name.
+     */
+    public ToolCallback timed(ToolCallback tool) {
+        String name = tool.getToolDefinition().name();
+        return new ToolCallback() {
+            @Override
+            public ToolDefinition getToolDefinition() {
+                return tool.getToolDefinition();
+            }
+
+            @Override
+            public ToolMetadata getToolMetadata() {
+                return tool.getToolMetadata();
+            }
+
+            @Override
+            public String call(String toolInput) {
+                return time(name, () -> tool.call(toolInput));
+            }
+
+            @Override
+            public String call(String toolInput, ToolContext toolContext) {
+                return time(name, () -> tool.call(toolInput, toolContext));
+            }
+        };
+    }
+
+    /**
+     * Times requests up to the response headers and counts the body bytes read.
+     */
+    HttpRequestInterceptor requestTimer() {
+        return (request, context) -> context.setAttribute(REQUEST_STARTED, System.nanoTime());
+    }
+
+    HttpResponseInterceptor responseTimer() {
+        return (response, context) -> {
+            Object started = context.getAttribute(REQUEST_STARTED);
+            HttpRequest request = (HttpRequest) context.getAttribute(HttpCoreContext.HTTP_REQUEST);
+            if (started instanceof Long && request != null) {
+                httpResponse(request.getRequestLine().getMethod(), response.getStatusLine().getStatusCode(),
+                        System.nanoTime() - (Long) started);
+            }
+            HttpEntity entity = response.getEntity();
+            if (entity != null) {
+                response.setEntity(new HttpEntityWrapper(entity) {
+                    @Override
+                    public InputStream getContent() throws IOException {
+                        return new FilterInputStream(super.getContent()) {
+                            @Override
+                            public int read() throws IOException {
+                                int b = super.read();
+                                if (b >= 0) {
+                                    responseBytes.increment();
+                                }
+                                return b;
+                            }
+
+                            @Override
+                            public int read(byte[] buffer, int offset, int length) throws IOException {
+                                int n = super.read(buffer, offset, length);
+                                if (n > 0) {
+                                    responseBytes.increment(n);
+                                }
+                                return n;
+                            }
+                        };
+                    }
+                });
+            }
+        };
+    }
+
+    void httpResponse(String method, int status, long elapsedNanos) {
+        registry.timer("caldav.http.requests", "method", method, "status", Integer.toString(status))
+                .record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void responseBytes(long bytes) {
+        responseBytes.increment(bytes);
+    }
+
+    void bindConnectionPool(PoolingHttpClientConnectionManager pool) {
+        Gauge.builder("caldav.http.pool", pool, p -> p.getTotalStats().getLeased()).tag("state", "leased")
+                .register(registry);
+        Gauge.builder("caldav.http.pool", pool, p -> p.getTotalStats().getAvailable()).tag("state", "available")
+                .register(registry);
+        Gauge.builder("caldav.http.pool", pool, p -> p.getTotalStats().getPending()).tag("state", "pending")
+                .register(registry);
+        Gauge.builder("caldav.http.pool", pool, p -> p.getTotalStats().getMax()).tag("state", "max")
+                .register(registry);
+    }
+
+    /**
+     * Times a reactive tool call from subscription to completion under its
+     * name.
+     */
+    public <T> Mono<T> timed(String tool, Mono<T> call) {
+        return Mono.defer(() -> {
+            Timer.Sample sample = Timer.start(registry);
+            return call.doOnSuccess(result -> sample.stop(registry.timer("caldav.tool", "tool", tool, "outcome",
+                    "success")))
+                    .doOnError(e -> sample.stop(registry.timer("caldav.tool", "tool", tool, "outcome", "error")));
+        });
+    }
+
+    private <T> T time(String tool, Phase<T, RuntimeException> call) {
+        Timer.Sample sample = Timer.start(registry);
+        String outcome = "error";
+        try {
+            T result = call.run();
+            outcome = "success";
+            return result;
+        } finally {
+            sample.stop(registry.timer("caldav.tool", "tool", tool, "outcome", outcome));
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.http.client.utils.DateUtils;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Keeps requests to the CalDAV server within what it can take, and rides out
+ * short outages, whichever HTTP client sends them.
+ *
+ * Every attempt at a request, in this order:
+ * <ol>
+ * <li>takes a token from the {@link TokenBucket}, if a rate is set;</li>
+ * <li>waits for a slot of the {@link AdaptiveConcurrencyLimit}, held until
+ * its response has been read;</li>
+ * <li>passes the {@link CircuitBreaker}, which fails it at once while the
+ * server is considered down.</li>
+ * </ol>
+ * A 429 or 503, which the server sends before doing any work, is retried for
+ * every method; a 502, a 504 or an I/O error only for reads. The delay is the
+ * server's {@code Retry-After} if it sent one, otherwise a random delay up to
+ * an exponentially growing cap. A request whose retries run out fails with
+ * {@link CaldavUnavailableException} rather than returning the error
+ * response, so callers never mistake throttling for a rejection of the
+ * request itself.
+ *
+ * {@link ResilientHttpClient} applies this to the blocking client, and
+ * {@link ReactiveCaldavClient} to its non-blocking requests, so both share
+ * one rate, one limit and one breaker.
+ */
+public final class CaldavResilience {
+
+    /**
+     * Methods that can be sent again after an I/O error or a gateway error
+     * without changing anything twice.
+     */
+    private static final Set<String> SAFE_METHODS = Set.of("GET", "HEAD", "OPTIONS", "PROPFIND", "REPORT");
+
+    private final TokenBucket rateLimit;
+
+    private final AdaptiveConcurrencyLimit concurrency;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final int maxAttempts;
+
+    private final long baseDelayMs;
+
+    private final long maxDelayMs;
+
+    private final CaldavMetrics metrics;
+
+    /**
+     * One attempt let through. It must report its outcome with
+     * {@link #onResponse(int)} or {@link #onError()}, and be released once
+     * the response has been read.
+     */
+    final class Permit {
+
+        private final long started = System.nanoTime();
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        void onResponse(int status) {
+            concurrency.onResponse(System.nanoTime() - started, status == 429 || status == 503);
+            if (status == 429 || status >= 500) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+        }
+
+        void onError() {
+            concurrency.onResponse(System.nanoTime() - started, true);
+            circuitBreaker.onFailure();
+        }
+
+        /**
+         * Frees the slot; only the first call counts.
+         */
+        void release() {
+            if (released.compareAndSet(false, true)) {
+                concurrency.release();
+            }
+        }
+    }
+
+    /**
+     * @param rateLimit   Null for no rate limit
+     * @param maxAttempts Attempts per request, including the first
+     */
+    CaldavResilience(TokenBucket rateLimit, AdaptiveConcurrencyLimit concurrency, CircuitBreaker circuitBreaker,
+            int maxAttempts, long baseDelayMs, long maxDelayMs, CaldavMetrics metrics) {
+        this.rateLimit = rateLimit;
+        this.concurrency = concurrency;
+        this.circuitBreaker = circuitBreaker;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.metrics = metrics;
+        metrics.bindResilience(concurrency::limit, () -> circuitBreaker.state().ordinal());
+    }
+
+    /**
+     * Lets an attempt through, waiting for a token and a slot.
+     */
+    Permit acquire(String request) throws IOException {
+        try {
+            if (rateLimit != null) {
+                rateLimit.acquire();
+            }
+            concurrency.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to send " + request);
+        }
+        return admit();
+    }
+
+    /**
+     * Lets an attempt through once a token and a slot are free, without
+     * blocking a thread meanwhile.
+     */
+    Mono<Permit> acquireAsync() {
+        Mono<Void> token = Mono.defer(() -> {
+            long waitNanos = rateLimit == null ? 0 : rateLimit.reserve();
+            return waitNanos > 0 ? Mono.delay(Duration.ofNanos(waitNanos)).then() : Mono.<Void>empty();
+        });
+        return token.then(Mono.create(sink -> {
+            CompletableFuture<Void> slot = concurrency.acquireAsync();
+            sink.onCancel(() -> {
+                if (!slot.cancel(false)) {
+                    concurrency.release();
+                }
+            });
+            slot.thenRun(() -> {
+                try {
+                    sink.success(admit());
+                } catch (CaldavUnavailableException e) {
+                    sink.error(e);
+                }
+            });
+        }));
+    }
+
+    /**
+     * Whether a response with this status is retried rather than returned.
+     */
+    boolean isRetried(String method, int status) {
+        return status == 429 || status == 503 || (SAFE_METHODS.contains(method) && (status == 502 || status == 504));
+    }
+
+    /**
+     * The delay before retrying after a status {@link #isRetried retried}
+     * for this method.
+     *
+     * @param retryAfter The {@code Retry-After} header, or null
+     * @throws CaldavUnavailableException If the request is not retried again
+     */
+    long retryDelay(String method, String uri, int attempt, int status, String retryAfter, boolean repeatable)
+            throws CaldavUnavailableException {
+        long delay = retryAfter(retryAfter);
+        if (delay < 0) {
+            delay = backoff(attempt);
+        }
+        if (attempt >= maxAttempts || delay > maxDelayMs || !repeatable) {
+            throw new CaldavUnavailableException(method + " " + uri + " answered " + status + " after " + attempt
+                    + (attempt == 1 ? " attempt" : " attempts")
+                    + (delay > maxDelayMs ? ", the server asked to wait " + delay / 1000 + " s" : ""));
+        }
+        metrics.retried(method, Integer.toString(status));
+        return delay;
+    }
+
+    /**
+     * The delay before retrying after an I/O error, or -1 if it is not
+     * retried.
+     */
+    long retryDelay(String method, int attempt, IOException error, boolean repeatable) {
+        if (!SAFE_METHODS.contains(method) || !isTransient(error) || attempt >= maxAttempts || !repeatable) {
+            return -1;
+        }
+        metrics.retried(method, "io-error");
+        return backoff(attempt);
+    }
+
+    private Permit admit() throws CaldavUnavailableException {
+        try {
+            circuitBreaker.acquire();
+        } catch (CaldavUnavailableException e) {
+            concurrency.release();
+            metrics.rejected("circuit-open");
+            throw e;
+        }
+        return new Permit();
+    }
+
+    /**
+     * A full-jitter delay: random, up to the base delay doubled per attempt.
+     */
+    private long backoff(int attempt) {
+        long cap = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+
+    /**
+     * The delay asked for in {@code Retry-After}, in seconds or as a date, or
+     * -1 if the server did not say.
+     */
+    private static long retryAfter(String header) {
+        if (header == null) {
+            return -1;
+        }
+        String value = header.trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? -1 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * A timed out or broken connection, as opposed to an interrupted thread.
+     */
+    private static boolean isTransient(IOException e) {
+        return !(e instanceof InterruptedIOException) || e instanceof SocketTimeoutException;
+    }
+}
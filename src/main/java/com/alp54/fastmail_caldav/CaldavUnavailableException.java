@@ -0,0 +1,17 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+
+/**
+ * The CalDAV server is not taking requests right now: it kept answering 429
+ * or 5xx through every retry, or the circuit breaker is open after repeated
+ * failures. Reads may still be answered from local data.
+ */
+public class CaldavUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public CaldavUnavailableException(String message) {
+        super(message);
+    }
+}
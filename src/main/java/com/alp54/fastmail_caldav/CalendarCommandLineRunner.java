@@ -5,20 +5,23 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Component;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.StreamWriteFeature;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.time.format.DateTimeParseException;
+import java.io.IOException;
 import java.util.List;
-import java.util.Locale;
 
 @Component
 @ConditionalOnProperty(name = "spring.profiles.active", havingValue = "cli")
 public class CalendarCommandLineRunner implements CommandLineRunner {
 
+    // System.out must stay open after an event listing is written
+    private static final JsonFactory JSON_FACTORY = JsonFactory.builder()
+            .disable(StreamWriteFeature.AUTO_CLOSE_TARGET).build();
+
     private final FastmailCaldavClient caldavClient;
 
     @org.springframework.beans.factory.annotation.Value("${fastmail.caldav.url}")
@@ -68,8 +71,10 @@ public class CalendarCommandLineRunner implements CommandLineRunner {
         if (args.length == 0) {
             System.out.println("Usage:");
             System.out.println("  get [date] [title] [description]");
+            System.out.println("  get from=<YYYY-MM-DD> to=<YYYY-MM-DD> [title=...] [desc=...]");
             System.out.println("  create <summary> <startDate:YYYYMMDDTHHmmssZ> <endDate:YYYYMMDDTHHmmssZ>");
             System.out.println("  update <eventUrl> <summary> <startDate:YYYYMMDDTHHmmssZ> <endDate:YYYYMMDDTHHmmssZ>");
+            System.out.println("  batch <operations.json>");
             return;
         }
 
@@ -88,6 +93,9 @@ public class CalendarCommandLineRunner implements CommandLineRunner {
                 case "delete":
                     handleDelete(args);
                     break;
+                case "batch":
+                    handleBatch(args);
+                    break;
                 default:
                     System.out.println("Unknown command: " + command);
             }
@@ -111,19 +119,42 @@ public class CalendarCommandLineRunner implements CommandLineRunner {
         }
     }
 
+    private void handleBatch(String[] args) throws Exception {
+        if (args.length != 2) {
+            System.out.println("Usage: batch <operations.json>");
+            return;
+        }
+        ObjectMapper objectMapper = new ObjectMapper();
+        List<FastmailCaldavClient.BatchOperation> operations = objectMapper.readValue(new java.io.File(args[1]),
+                objectMapper.getTypeFactory().constructCollectionType(List.class,
+                        FastmailCaldavClient.BatchOperation.class));
+        FastmailCaldavClient.BatchResult result = caldavClient.batchCalendarEvents(operations);
+        for (FastmailCaldavClient.BatchItemResult item : result.results()) {
+            System.out.println(objectMapper.writeValueAsString(item));
+        }
+        System.out.println(result.succeeded() + " succeeded, " + result.failed() + " failed in "
+                + result.elapsedMs() + " ms");
+    }
+
     private void handleGet(String[] args) throws Exception {
-        List<String> events;
+        List<CalendarEvent> events;
 
         String date = null;
         String title = null;
         String description = null;
         String freq = null;
+        String from = null;
+        String to = null;
 
         // Parse named parameters like freq=recurring, desc=foo, date=YYYY-MM-DD,
-        // title=Meeting
+        // title=Meeting, from=YYYY-MM-DD, to=YYYY-MM-DD
         for (int i = 1; i < args.length; i++) {
             String arg = args[i];
-            if (arg.startsWith("freq=")) {
+            if (arg.startsWith("from=")) {
+                from = arg.substring(5);
+            } else if (arg.startsWith("to=")) {
+                to = arg.substring(3);
+            } else if (arg.startsWith("freq=")) {
                 freq = arg.substring(5);
             } else if (arg.startsWith("desc=")) {
                 description = arg.substring(5);
@@ -140,7 +171,11 @@ public class CalendarCommandLineRunner implements CommandLineRunner {
             }
         }
 
-        if (freq != null) {
+        if (from != null || to != null) {
+            // One range query instead of one query per day
+            events = caldavClient.getCalendarEventsByDateRange(from != null ? from : to, to != null ? to : from,
+                    title, description);
+        } else if (freq != null) {
             // For now, freq filter will be handled in client after fetching events
             events = caldavClient.getCalendarEvents(date, title, description);
             // Filter recurring events in Java after fetching
@@ -161,7 +196,7 @@ public class CalendarCommandLineRunner implements CommandLineRunner {
             // }
             // Exclude events with invalid date "0001-01-01 01:05"
             events = events.stream()
-                    .filter(eventJson -> !eventJson.contains("\"dtstart\":\"0001-01-01 01:05\""))
+                    .filter(event -> !"0001-01-01 01:05".equals(event.dtstart()))
                     .toList();
         }
 
@@ -169,69 +204,30 @@ public class CalendarCommandLineRunner implements CommandLineRunner {
             System.out.println("No events found.");
             return;
         }
-
-        ObjectMapper objectMapper = new ObjectMapper();
-        for (String eventJsonString : events) {
-            try {
-                JsonNode rootNode = objectMapper.readTree(eventJsonString);
-                if (rootNode.isObject()) {
-                    ObjectNode eventObject = (ObjectNode) rootNode;
-
-                    if (eventObject.has("dtstart")) {
-                        String dtstart = eventObject.get("dtstart").asText();
-                        eventObject.put("dtstart", formatDateString(dtstart));
-                    }
-
-                    if (eventObject.has("dtend")) {
-                        String dtend = eventObject.get("dtend").asText();
-                        eventObject.put("dtend", formatDateString(dtend));
-                    }
-                    System.out.println(objectMapper.writeValueAsString(eventObject));
-                } else {
-                    System.out.println(eventJsonString); // Print as is if not a JSON object
-                }
-            } catch (Exception e) {
-                System.err.println("Error processing event JSON: " + eventJsonString + " - " + e.getMessage());
-                System.out.println(eventJsonString); // Print original on error
-            }
-        }
+        writeEvents(events);
     }
 
-    private String formatDateString(String dateStr) {
-        if (dateStr == null || dateStr.isEmpty()) {
-            return dateStr;
-        }
-
-        DateTimeFormatter outputFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm", Locale.ENGLISH);
-
-        // Try parsing "yyyyMMdd'T'HHmmss"
-        try {
-            DateTimeFormatter inputFormatter1 = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss", Locale.ENGLISH);
-            LocalDateTime dateTime = LocalDateTime.parse(dateStr, inputFormatter1);
-            return dateTime.format(outputFormatter);
-        } catch (DateTimeParseException e1) {
-            // Ignore and try next format
-        }
-
-        // Try parsing "yyyy-MM-dd HH:mm" (already in desired or similar format)
-        try {
-            // This pattern handles cases where seconds might be present or not
-            DateTimeFormatter inputFormatter2 = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm[:ss]", Locale.ENGLISH);
-            LocalDateTime dateTime = LocalDateTime.parse(dateStr, inputFormatter2);
-            return dateTime.format(outputFormatter);
-        } catch (DateTimeParseException e2) {
-            // Ignore and try next format
-        }
-
-        // Try parsing "yyyy-MM-dd HH:mm:ss" explicitly if the above general one fails
-        try {
-            DateTimeFormatter inputFormatter3 = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH);
-            LocalDateTime dateTime = LocalDateTime.parse(dateStr, inputFormatter3);
-            return dateTime.format(outputFormatter);
-        } catch (DateTimeParseException e3) {
-            // If all parsing attempts fail, return the original string
-            // System.err.println("Could not parse date string: " + dateStr);
-            return dateStr;
+    /**
+     * Prints one JSON object per line through a single generator, so no
+     * intermediate strings or trees are built per event.
+     */
+    private static void writeEvents(List<CalendarEvent> events) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(System.out)) {
+            generator.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+            for (CalendarEvent event : events) {
+                generator.writeStartObject();
+                generator.writeStringField("uid", event.uid());
+                generator.writeStringField("dtstart", event.dtstart());
+                generator.writeStringField("dtend", event.dtend());
+                generator.writeStringField("summary", event.summary());
+                generator.writeStringField("description", event.description());
+                generator.writeStringField("location", event.location());
+                generator.writeStringField("rrule", event.rrule());
+                generator.writeStringField("href", event.href());
+                generator.writeStringField("etag", event.etag());
+                generator.writeEndObject();
+            }
+            generator.writeRaw('\n');
         }
     }
 
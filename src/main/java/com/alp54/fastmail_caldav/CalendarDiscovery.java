@@ -0,0 +1,203 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Finds the calendars of the account via PROPFIND:
+ * {@code current-user-principal} → {@code calendar-home-set} → the calendar
+ * collections in the home set, together with their ctag and sync-token.
+ *
+ * The home set is looked up once. The calendar listing, including ctags, is
+ * cached for {@code fastmail.discovery.refresh-seconds} and can be invalidated
+ * after local changes.
+ */
+@Component
+public class CalendarDiscovery {
+
+    /**
+     * One calendar collection in the home set.
+     */
+    public record CalendarInfo(String url, String displayName, String ctag, String syncToken) {
+    }
+
+    @Value("${fastmail.caldav.url}")
+    private String caldavUrl;
+
+    @Value("${fastmail.calendar.path}")
+    private String calendarPath;
+
+    @Value("${fastmail.calendars:}")
+    private String selection;
+
+    @Value("${fastmail.discovery.refresh-seconds:30}")
+    private long refreshSeconds;
+
+    private final CloseableHttpClient httpclient;
+
+    private volatile String homeSetUrl;
+
+    private volatile List<CalendarInfo> calendars;
+
+    private volatile long listedAt;
+
+    private final ReentrantLock listLock = new ReentrantLock();
+
+    public CalendarDiscovery(CloseableHttpClient caldavHttpClient) {
+        this.httpclient = caldavHttpClient;
+    }
+
+    /**
+     * Whether queries should fan out over discovered calendars instead of the
+     * single configured {@code fastmail.calendar.path}.
+     */
+    public boolean isEnabled() {
+        return selection != null && !selection.isBlank();
+    }
+
+    /**
+     * Returns the calendars selected by {@code fastmail.calendars} ("all" or a
+     * comma-separated list of display names or path segments).
+     */
+    public List<CalendarInfo> selectedCalendars() throws IOException {
+        return select(selection);
+    }
+
+    /**
+     * Returns the calendars matching a selection in the format of
+     * {@code fastmail.calendars}.
+     */
+    public List<CalendarInfo> select(String selection) throws IOException {
+        List<CalendarInfo> all = listCalendars();
+        if ("all".equalsIgnoreCase(selection.trim())) {
+            return all;
+        }
+        Set<String> wanted = Arrays.stream(selection.split(","))
+                .map(name -> name.trim().toLowerCase(Locale.ROOT))
+                .filter(name -> !name.isEmpty())
+                .collect(Collectors.toSet());
+        List<CalendarInfo> selected = new ArrayList<>();
+        for (CalendarInfo calendar : all) {
+            String segment = calendar.url().replaceAll("/+$", "");
+            segment = segment.substring(segment.lastIndexOf('/') + 1);
+            if (wanted.contains(segment.toLowerCase(Locale.ROOT)) || (calendar.displayName() != null
+                    && wanted.contains(calendar.displayName().toLowerCase(Locale.ROOT)))) {
+                selected.add(calendar);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns all calendars of the home set, from cache while it is fresh.
+     */
+    public List<CalendarInfo> listCalendars() throws IOException {
+        List<CalendarInfo> cached = calendars;
+        if (cached != null && System.currentTimeMillis() - listedAt < refreshSeconds * 1000) {
+            return cached;
+        }
+        listLock.lock();
+        try {
+            if (calendars != null && System.currentTimeMillis() - listedAt < refreshSeconds * 1000) {
+                return calendars;
+            }
+            List<CalendarInfo> listed = fetchCalendars(homeSetUrl());
+            calendars = listed;
+            listedAt = System.currentTimeMillis();
+            return listed;
+        } finally {
+            listLock.unlock();
+        }
+    }
+
+    /**
+     * Forces the next {@link #listCalendars()} to re-read ctags from the server.
+     */
+    public void invalidate() {
+        listedAt = 0;
+    }
+
+    private String homeSetUrl() throws IOException {
+        String home = homeSetUrl;
+        if (home != null) {
+            return home;
+        }
+        String principal = findProperty(caldavUrl + calendarPath, "current-user-principal",
+                "<d:current-user-principal />");
+        if (principal != null && !principal.isEmpty()) {
+            home = findProperty(resolve(principal), "calendar-home-set", "<c:calendar-home-set />");
+        }
+        // Servers without principal support: treat the configured path as the home set
+        homeSetUrl = home == null || home.isEmpty() ? caldavUrl + calendarPath : resolve(home);
+        return homeSetUrl;
+    }
+
+    private String findProperty(String url, String property, String propXml) throws IOException {
+        String propfindXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                "<d:propfind xmlns:d=\"DAV:\" xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
+                "  <d:prop>" + propXml + "</d:prop>\n" +
+                "</d:propfind>";
+        try (CloseableHttpResponse response = httpclient.execute(HttpDavRequest.propfind(url, "0", propfindXml))) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_MULTI_STATUS) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return null;
+            }
+            String[] value = new String[1];
+            MultistatusReader.read(response.getEntity().getContent(), r -> {
+                if (value[0] == null) {
+                    value[0] = r.properties().get(property);
+                }
+            });
+            return value[0];
+        }
+    }
+
+    private List<CalendarInfo> fetchCalendars(String homeUrl) throws IOException {
+        String propfindXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                "<d:propfind xmlns:d=\"DAV:\" xmlns:cs=\"http://calendarserver.org/ns/\">\n" +
+                "  <d:prop>\n" +
+                "    <d:resourcetype />\n" +
+                "    <d:displayname />\n" +
+                "    <cs:getctag />\n" +
+                "    <d:sync-token />\n" +
+                "  </d:prop>\n" +
+                "</d:propfind>";
+        try (CloseableHttpResponse response = httpclient
+                .execute(HttpDavRequest.propfind(homeUrl, "1", propfindXml))) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_MULTI_STATUS) {
+                String responseBody = EntityUtils.toString(response.getEntity());
+                throw new IOException("Calendar discovery failed: " + statusCode + " - " + responseBody);
+            }
+            List<CalendarInfo> found = new ArrayList<>();
+            MultistatusReader.read(response.getEntity().getContent(), r -> {
+                if (r.markers().contains("calendar")) {
+                    found.add(new CalendarInfo(resolve(r.href()), r.properties().get("displayname"),
+                            r.properties().get("getctag"), r.properties().get("sync-token")));
+                }
+            });
+            return found;
+        }
+    }
+
+    private String resolve(String href) {
+        if (href.startsWith("http")) {
+            return href;
+        }
+        String base = caldavUrl.endsWith("/") ? caldavUrl.substring(0, caldavUrl.length() - 1) : caldavUrl;
+        return base + href;
+    }
+}
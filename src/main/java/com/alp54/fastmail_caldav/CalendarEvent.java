@@ -0,0 +1,14 @@
+package com.alp54.fastmail_caldav;
+
+/**
+ * One event, or one occurrence of a recurring event, as returned by the query
+ * tools.
+ *
+ * Dates are local to the server's time zone: {@code yyyy-MM-dd HH:mm} for
+ * timed events and {@code yyyy-MM-dd} for all-day events. Missing properties
+ * are empty strings, never null. {@code href} is the absolute URL of the
+ * resource and {@code etag} its ETag as sent by the server.
+ */
+public record CalendarEvent(String uid, String dtstart, String dtend, String summary, String description,
+        String location, String rrule, String href, String etag) {
+}
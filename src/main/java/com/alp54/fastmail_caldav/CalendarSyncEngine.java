@@ -0,0 +1,404 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Calendar;
+
+/**
+ * Keeps {@link EventStore}s in step with the server using RFC 6578
+ * {@code sync-collection}.
+ *
+ * The first sync of a collection lists every resource; later syncs send the
+ * stored sync-token and only receive what changed since. Changed resources are
+ * then fetched in batches with {@code calendar-multiget}, deleted ones are
+ * dropped from the store. Collections that are not calendars or do not
+ * advertise {@code sync-collection} are remembered as unsupported and the caller
+ * falls back to a plain {@code calendar-query}.
+ *
+ * Every change is also written to the {@link EventSnapshot}, and the stores
+ * are restored from it on start, so a restart continues from the saved
+ * sync-token instead of downloading every calendar again.
+ */
+@Component
+public class CalendarSyncEngine implements InitializingBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CalendarSyncEngine.class);
+
+    @Value("${fastmail.sync.enabled:true}")
+    private boolean enabled;
+
+    @Value("${fastmail.sync.multiget-batch-size:100}")
+    private int multigetBatchSize;
+
+    private final CloseableHttpClient httpclient;
+
+    private final ICalendarParsingPipeline parsingPipeline;
+
+    private final List<EventStore.Listener> storeListeners;
+
+    private final EventSnapshot snapshot;
+
+    private final CaldavMetrics metrics;
+
+    private final Map<String, EventStore> stores = new ConcurrentHashMap<>();
+
+    private final Set<String> supported = ConcurrentHashMap.newKeySet();
+
+    private final Set<String> unsupported = ConcurrentHashMap.newKeySet();
+
+    private final Map<String, Lock> syncLocks = new ConcurrentHashMap<>();
+
+    public CalendarSyncEngine(CloseableHttpClient caldavHttpClient, ICalendarParsingPipeline parsingPipeline,
+            List<EventStore.Listener> storeListeners, EventSnapshot snapshot, CaldavMetrics metrics) {
+        this.httpclient = caldavHttpClient;
+        this.parsingPipeline = parsingPipeline;
+        this.storeListeners = storeListeners;
+        this.snapshot = snapshot;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Restores the stores saved by a previous run.
+     */
+    @Override
+    public void afterPropertiesSet() {
+        if (!enabled || !snapshot.isEnabled()) {
+            return;
+        }
+        long started = System.nanoTime();
+        int restored = 0;
+        for (EventSnapshot.Saved saved : snapshot.load()) {
+            EventStore store = new EventStore(saved.collectionUrl(), storeListeners);
+            Map<String, EventSnapshot.Resource> unparsed = new ConcurrentHashMap<>();
+            ICalendarParsingPipeline.Batch<EventStore.StoredEvent> batch = parsingPipeline.batch((href, calendar) -> {
+                EventSnapshot.Resource resource = unparsed.remove(href);
+                return List.of(new EventStore.StoredEvent(href, resource.etag(), resource.icalendar(), calendar));
+            });
+            for (EventSnapshot.Resource resource : saved.resources()) {
+                unparsed.put(resource.href(), resource);
+                batch.add(resource.href(), resource.icalendar());
+            }
+            for (EventStore.StoredEvent event : batch.join()) {
+                store.put(event);
+            }
+            for (EventSnapshot.Resource resource : unparsed.values()) {
+                store.put(new EventStore.StoredEvent(resource.href(), resource.etag(), resource.icalendar(), null));
+            }
+            store.setSyncToken(saved.syncToken());
+            stores.put(saved.collectionUrl(), store);
+            // It supported sync-collection when it was saved
+            supported.add(saved.collectionUrl());
+            restored += store.size();
+        }
+        if (!stores.isEmpty()) {
+            LOG.info("Restored {} events of {} calendars from snapshot in {} ms", restored, stores.size(),
+                    (System.nanoTime() - started) / 1_000_000);
+        }
+    }
+
+    /**
+     * Brings the store of the given collection up to date.
+     *
+     * @param collectionUrl Absolute URL of the calendar collection
+     * @return The synced store, or null if sync is disabled or not supported for
+     *         this collection
+     */
+    public EventStore sync(String collectionUrl) throws IOException {
+        return sync(collectionUrl, null);
+    }
+
+    /**
+     * Like {@link #sync(String)}, but skips the round trip when the collection's
+     * current sync-token (e.g. from a home-set PROPFIND) matches the stored one.
+     */
+    public EventStore sync(String collectionUrl, String currentSyncToken) throws IOException {
+        if (!enabled || unsupported.contains(collectionUrl)) {
+            return null;
+        }
+        EventStore store = stores.computeIfAbsent(collectionUrl,
+                url -> new EventStore(url, storeListeners));
+        // A lock rather than a monitor, so a virtual thread waiting on the server does not pin its carrier
+        Lock lock = syncLocks.computeIfAbsent(collectionUrl, url -> new ReentrantLock());
+        lock.lock();
+        try {
+            if (!supported.contains(collectionUrl)) {
+                if (!supportsSyncCollection(collectionUrl)) {
+                    LOG.info("sync-collection not available for {}, falling back to calendar-query", collectionUrl);
+                    unsupported.add(collectionUrl);
+                    stores.remove(collectionUrl);
+                    return null;
+                }
+                supported.add(collectionUrl);
+            }
+            boolean unchanged = currentSyncToken != null && currentSyncToken.equals(store.getSyncToken());
+            metrics.cache("sync-token", unchanged);
+            if (unchanged) {
+                return store;
+            }
+            try {
+                metrics.phase("sync", () -> {
+                    boolean hadToken = store.getSyncToken() != null;
+                    if (!syncOnce(store)) {
+                        if (!hadToken) {
+                            throw new IOException("Initial sync-collection was rejected for " + collectionUrl);
+                        }
+                        // The server no longer accepts our token, start over with a full listing
+                        store.clear();
+                        snapshot.clear(collectionUrl);
+                        if (!syncOnce(store)) {
+                            throw new IOException("Initial sync-collection was rejected for " + collectionUrl);
+                        }
+                    }
+                    return null;
+                });
+            } catch (CaldavUnavailableException e) {
+                if (store.getSyncToken() == null) {
+                    throw e;
+                }
+                // Answer from what was synced last rather than fail while the server is down
+                LOG.warn("Serving the last synced state of {}: {}", collectionUrl, e.getMessage());
+                metrics.fallback("store");
+            }
+        } finally {
+            lock.unlock();
+        }
+        return store;
+    }
+
+    /**
+     * Returns the store of a collection without contacting the server.
+     */
+    public EventStore getStore(String collectionUrl) {
+        return stores.get(collectionUrl);
+    }
+
+    /**
+     * Applies a successful PUT made by this client to the store that holds the
+     * resource, so the next sync does not fetch it again. Without an ETag the
+     * store is left alone and the next sync picks the change up.
+     */
+    public void recordPut(String eventUrl, String etag, String icalendar) {
+        EventStore store = storeFor(eventUrl);
+        if (store == null || etag == null) {
+            return;
+        }
+        Calendar calendar;
+        try {
+            calendar = ICalendarParser.parse(icalendar);
+        } catch (Exception e) {
+            calendar = null;
+        }
+        EventStore.StoredEvent event = new EventStore.StoredEvent(URI.create(eventUrl).getRawPath(), etag, icalendar,
+                calendar);
+        store.put(event);
+        snapshot.put(store.getCollectionUrl(), event);
+        snapshot.flush();
+    }
+
+    /**
+     * Drops a resource deleted by this client from its store.
+     */
+    public void recordDelete(String eventUrl) {
+        EventStore store = storeFor(eventUrl);
+        if (store != null) {
+            String href = URI.create(eventUrl).getRawPath();
+            store.remove(href);
+            snapshot.remove(store.getCollectionUrl(), href);
+            snapshot.flush();
+        }
+    }
+
+    private EventStore storeFor(String eventUrl) {
+        for (EventStore store : stores.values()) {
+            if (eventUrl.startsWith(store.getCollectionUrl())) {
+                return store;
+            }
+        }
+        return null;
+    }
+
+    private boolean supportsSyncCollection(String collectionUrl) throws IOException {
+        String propfindXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                "<d:propfind xmlns:d=\"DAV:\">\n" +
+                "  <d:prop>\n" +
+                "    <d:resourcetype />\n" +
+                "    <d:supported-report-set />\n" +
+                "  </d:prop>\n" +
+                "</d:propfind>";
+        try (CloseableHttpResponse response = httpclient
+                .execute(HttpDavRequest.propfind(collectionUrl, "0", propfindXml))) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_MULTI_STATUS) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return false;
+            }
+            Set<String> markers = new HashSet<>();
+            MultistatusReader.read(response.getEntity().getContent(), r -> markers.addAll(r.markers()));
+            boolean isCalendar = markers.contains("calendar");
+            boolean advertisesReports = markers.contains("report");
+            return isCalendar && (!advertisesReports || markers.contains("sync-collection"));
+        }
+    }
+
+    /**
+     * Runs one sync-collection round.
+     *
+     * A server may truncate the result, marking the collection itself with a
+     * 507 (RFC 6578 section 3.6). The page is applied and the report sent
+     * again with the token it returned, until a page is complete. Only then
+     * is the new token stored, so an interrupted round starts over from the
+     * old one.
+     *
+     * @return false if the server rejected the sync-token, true otherwise
+     */
+    private boolean syncOnce(EventStore store) throws IOException {
+        String token = store.getSyncToken();
+        // A full listing does not report deletions, so anything restored but no longer listed is gone
+        Set<String> listed = token == null ? new HashSet<>() : null;
+        boolean truncated;
+        do {
+            String syncXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                    "<d:sync-collection xmlns:d=\"DAV:\">\n" +
+                    "  <d:sync-token>" + (token == null ? "" : HttpDavRequest.xmlEscape(token)) + "</d:sync-token>\n" +
+                    "  <d:sync-level>1</d:sync-level>\n" +
+                    "  <d:prop>\n" +
+                    "    <d:getetag />\n" +
+                    "  </d:prop>\n" +
+                    "</d:sync-collection>";
+
+            List<String> changed = new ArrayList<>();
+            boolean[] insufficientStorage = new boolean[1];
+            String newToken;
+            try (CloseableHttpResponse response = httpclient
+                    .execute(HttpDavRequest.report(store.getCollectionUrl(), "1", syncXml))) {
+                int statusCode = response.getStatusLine().getStatusCode();
+                if (statusCode == HttpStatus.SC_FORBIDDEN || statusCode == HttpStatus.SC_CONFLICT) {
+                    // DAV:valid-sync-token precondition failed
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    return false;
+                }
+                if (statusCode != HttpStatus.SC_MULTI_STATUS) {
+                    String responseBody = EntityUtils.toString(response.getEntity());
+                    throw new IOException("sync-collection failed: " + statusCode + " - " + responseBody);
+                }
+                newToken = MultistatusReader.read(response.getEntity().getContent(), r -> {
+                    String href = r.href();
+                    if (r.isInsufficientStorage() && isCollection(href, store.getCollectionUrl())) {
+                        insufficientStorage[0] = true;
+                        return;
+                    }
+                    if (href.endsWith("/")) {
+                        return;
+                    }
+                    if (r.isNotFound()) {
+                        store.remove(href);
+                        snapshot.remove(store.getCollectionUrl(), href);
+                        return;
+                    }
+                    if (listed != null) {
+                        listed.add(href);
+                    }
+                    String etag = r.etag();
+                    EventStore.StoredEvent existing = store.get(href);
+                    if (existing == null || etag == null || !etag.equals(existing.etag())) {
+                        changed.add(href);
+                    }
+                });
+            }
+
+            for (int from = 0; from < changed.size(); from += multigetBatchSize) {
+                multiget(store, changed.subList(from, Math.min(changed.size(), from + multigetBatchSize)));
+            }
+            truncated = insufficientStorage[0];
+            if (truncated && (newToken == null || newToken.equals(token))) {
+                throw new IOException("sync-collection of " + store.getCollectionUrl()
+                        + " was truncated without a new sync-token");
+            }
+            token = newToken;
+        } while (truncated);
+
+        if (listed != null) {
+            for (EventStore.StoredEvent stale : List.copyOf(store.values())) {
+                if (!listed.contains(stale.href())) {
+                    store.remove(stale.href());
+                    snapshot.remove(store.getCollectionUrl(), stale.href());
+                }
+            }
+        }
+        store.setSyncToken(token);
+        snapshot.checkpoint(store, stores.values());
+        return true;
+    }
+
+    /**
+     * Whether an href, a path or a full URL, names the collection.
+     */
+    private static boolean isCollection(String href, String collectionUrl) {
+        String path = href.replaceAll("/+$", "");
+        return !path.isEmpty() && collectionUrl.replaceAll("/+$", "").endsWith(path);
+    }
+
+    private void multiget(EventStore store, List<String> hrefs) throws IOException {
+        StringBuilder multigetXml = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                "<c:calendar-multiget xmlns:d=\"DAV:\" xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
+                "  <d:prop>\n" +
+                "    <d:getetag />\n" +
+                "    <c:calendar-data />\n" +
+                "  </d:prop>\n");
+        for (String href : hrefs) {
+            multigetXml.append("  <d:href>").append(HttpDavRequest.xmlEscape(href)).append("</d:href>\n");
+        }
+        multigetXml.append("</c:calendar-multiget>");
+
+        try (CloseableHttpResponse response = httpclient
+                .execute(HttpDavRequest.report(store.getCollectionUrl(), "1", multigetXml.toString()))) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_MULTI_STATUS) {
+                String responseBody = EntityUtils.toString(response.getEntity());
+                throw new IOException("calendar-multiget failed: " + statusCode + " - " + responseBody);
+            }
+            Map<String, MultistatusReader.Response> fetched = new ConcurrentHashMap<>();
+            ICalendarParsingPipeline.Batch<EventStore.StoredEvent> batch = parsingPipeline.batch((href, calendar) -> {
+                MultistatusReader.Response r = fetched.get(href);
+                return List.of(new EventStore.StoredEvent(href, r.etag(), r.calendarData(), calendar));
+            });
+            MultistatusReader.read(response.getEntity().getContent(), r -> {
+                String calendarData = r.calendarData();
+                if (calendarData == null || calendarData.isEmpty()) {
+                    return;
+                }
+                fetched.put(r.href(), r);
+                batch.add(r.href(), calendarData);
+            });
+            for (EventStore.StoredEvent event : batch.join()) {
+                store.put(event);
+                snapshot.put(store.getCollectionUrl(), event);
+                fetched.remove(event.href());
+            }
+            // Keep unparseable resources too, so their unchanged ETag is not refetched on every sync
+            for (MultistatusReader.Response r : fetched.values()) {
+                EventStore.StoredEvent event = new EventStore.StoredEvent(r.href(), r.etag(), r.calendarData(), null);
+                store.put(event);
+                snapshot.put(store.getCollectionUrl(), event);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.alp54.fastmail_caldav;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stops sending requests to a CalDAV server that keeps failing.
+ *
+ * After {@code failureThreshold} failures in a row (no response, a 5xx or a
+ * 429) the breaker opens, and requests fail at once with
+ * {@link CaldavUnavailableException} for {@code openMillis}. Then a single
+ * request is let through; if it succeeds the breaker closes again, otherwise
+ * it stays open for another period. A threshold of 0 never opens it.
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    private boolean probing;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1_000_000;
+    }
+
+    /**
+     * Lets a request through, or fails it while the breaker is open. A request
+     * that was let through must report back with {@link #onSuccess()} or
+     * {@link #onFailure()}.
+     */
+    synchronized void acquire() throws CaldavUnavailableException {
+        if (failureThreshold <= 0) {
+            return;
+        }
+        if (state == State.OPEN) {
+            long remaining = openedAt + openNanos - System.nanoTime();
+            if (remaining > 0) {
+                throw new CaldavUnavailableException("CalDAV server unavailable after " + failureThreshold
+                        + " failed requests, next attempt in " + (remaining / 1_000_000_000 + 1) + " s");
+            }
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probing) {
+                throw new CaldavUnavailableException("CalDAV server unavailable, a trial request is running");
+            }
+            probing = true;
+        }
+    }
+
+    synchronized void onSuccess() {
+        failures = 0;
+        probing = false;
+        state = State.CLOSED;
+    }
+
+    synchronized void onFailure() {
+        failures++;
+        probing = false;
+        if (failureThreshold > 0 && (state == State.HALF_OPEN || failures >= failureThreshold)) {
+            if (state != State.OPEN) {
+                LOG.warn("CalDAV circuit breaker opened after {} failed requests", failures);
+            }
+            state = State.OPEN;
+            openedAt = System.nanoTime();
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+}
@@ -0,0 +1,71 @@
+package com.alp54.fastmail_caldav;
+
+import java.lang.management.ManagementFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.context.event.ApplicationStartedEvent;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+
+/**
+ * Launches {@link CalendarCommandLineRunner} without auto-configuration.
+ *
+ * Only the CalDAV client and the beans it depends on are registered: no web
+ * server, MCP server, actuator or springdoc. Beans are created lazily, so a
+ * command only builds what it uses. The time to a ready context and the JVM
+ * uptime at that point are printed to stderr, to track the effect of the
+ * class-data-sharing archive built by the {@code cli} Maven profile.
+ */
+public final class CliApp {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CliApp.class);
+
+    private static final Class<?>[] SOURCES = {
+            PropertySourcesPlaceholderConfigurer.class,
+            CaldavMetrics.class,
+            CaldavHttpClientConfig.class,
+            ICalendarParsingPipeline.class,
+            EventSnapshot.class,
+            OccurrenceIndex.class,
+            UidIndex.class,
+            SearchIndex.class,
+            CalendarSyncEngine.class,
+            RecurrenceExpansionSelector.class,
+            CalendarDiscovery.class,
+            EventResourceCache.class,
+            FreeBusyService.class,
+            QueryResultCache.class,
+            FastmailCaldavClient.class,
+            CalendarCommandLineRunner.class,
+    };
+
+    private CliApp() {
+    }
+
+    public static void main(String[] args) {
+        long started = System.nanoTime();
+        ConfigurableApplicationContext context = application()
+                .listeners(event -> {
+                    if (event instanceof ApplicationStartedEvent) {
+                        LOG.info("Startup: context ready in {} ms, JVM uptime {} ms",
+                                (System.nanoTime() - started) / 1_000_000,
+                                ManagementFactory.getRuntimeMXBean().getUptime());
+                    }
+                })
+                .run(args);
+        context.close();
+    }
+
+    static SpringApplicationBuilder application() {
+        return new SpringApplicationBuilder(SOURCES)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .logStartupInfo(false)
+                .lazyInitialization(true)
+                .properties("spring.profiles.active=cli");
+    }
+}
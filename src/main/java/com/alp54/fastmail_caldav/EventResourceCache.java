@@ -0,0 +1,100 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bodies and ETags of individual event resources, re-read with conditional
+ * GETs.
+ *
+ * A re-read of a cached resource sends {@code If-None-Match}, so an unchanged
+ * event costs a 304 instead of the full body. The cache is a small LRU; writes
+ * made through the client update or drop the entry.
+ */
+@Component
+public class EventResourceCache {
+
+    /**
+     * One event resource; the ETag may be null if the server did not send one.
+     */
+    public record Resource(String url, String etag, String icalendar) {
+    }
+
+    private final CloseableHttpClient httpclient;
+
+    private final Map<String, Resource> resources;
+
+    private final CaldavMetrics metrics;
+
+    public EventResourceCache(CloseableHttpClient caldavHttpClient,
+            @Value("${fastmail.resources.cache-size:1000}") int cacheSize, CaldavMetrics metrics) {
+        this.httpclient = caldavHttpClient;
+        this.metrics = metrics;
+        this.resources = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Resource> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the current version of a resource.
+     *
+     * @return The resource, or null if it does not exist
+     */
+    public Resource fetch(String url) throws IOException {
+        Resource cached;
+        synchronized (resources) {
+            cached = resources.get(url);
+        }
+        HttpGet get = new HttpGet(url);
+        if (cached != null && cached.etag() != null) {
+            get.setHeader(HttpHeaders.IF_NONE_MATCH, cached.etag());
+        }
+        try (CloseableHttpResponse response = httpclient.execute(get)) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            boolean hit = statusCode == HttpStatus.SC_NOT_MODIFIED && cached != null;
+            metrics.cache("resource", hit);
+            if (hit) {
+                return cached;
+            }
+            if (statusCode == HttpStatus.SC_NOT_FOUND || statusCode == HttpStatus.SC_GONE) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                invalidate(url);
+                return null;
+            }
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity(), "UTF-8");
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new IOException("GET " + url + " failed: " + statusCode + " - " + body);
+            }
+            Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+            Resource fetched = new Resource(url, etag == null ? null : etag.getValue(), body);
+            put(fetched);
+            return fetched;
+        }
+    }
+
+    public void put(Resource resource) {
+        synchronized (resources) {
+            resources.put(resource.url(), resource);
+        }
+    }
+
+    public void invalidate(String url) {
+        synchronized (resources) {
+            resources.remove(url);
+        }
+    }
+}
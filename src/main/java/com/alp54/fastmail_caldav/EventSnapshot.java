@@ -0,0 +1,452 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Append-only log of the synced {@link EventStore}s, so a restart only needs
+ * an incremental sync from the saved sync-token.
+ *
+ * The file starts with a magic number and a format version, followed by
+ * records of {@code [length][CRC32][type, fields...]}. A put record holds the
+ * href, ETag and raw iCalendar of one resource; the sync-token is written
+ * after the changes it covers, so replaying any prefix of the log gives a
+ * state the next sync can continue from. On start the file is memory-mapped
+ * and replayed. A torn record at the end (a crash during a write) is cut off;
+ * a checksum mismatch or an unknown version discards the whole file and the
+ * calendars are synced from scratch. When the log holds more than twice the
+ * live entries it is rewritten with only those.
+ *
+ * One process at a time owns the file, through a lock on a {@code .lock}
+ * file next to it, which outlives the swaps of compaction. A second process,
+ * e.g. the CLI while the server runs, neither reads nor writes the snapshot.
+ */
+@Component
+public class EventSnapshot implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EventSnapshot.class);
+
+    /**
+     * A saved resource; the calendar is parsed again on load.
+     */
+    public record Resource(String href, String etag, String icalendar) {
+    }
+
+    /**
+     * The saved state of one collection.
+     */
+    public record Saved(String collectionUrl, String syncToken, Collection<Resource> resources) {
+    }
+
+    private static final int MAGIC = 0x464d4353; // "FMCS"
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final byte PUT = 1;
+
+    private static final byte REMOVE = 2;
+
+    private static final byte TOKEN = 3;
+
+    private static final byte CLEAR = 4;
+
+    private static final class CorruptSnapshotException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        CorruptSnapshotException(String message) {
+            super(message);
+        }
+    }
+
+    private final Path path;
+
+    private final int compactionMinRecords;
+
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+    private final CRC32 crc = new CRC32();
+
+    private FileChannel lockChannel;
+
+    private FileLock lock;
+
+    private DataOutputStream out;
+
+    private long records;
+
+    public EventSnapshot(@Value("${fastmail.snapshot.path:}") String path,
+            @Value("${fastmail.snapshot.compaction-min-records:1000}") int compactionMinRecords) {
+        this.path = path == null || path.isBlank() ? null : Paths.get(path);
+        this.compactionMinRecords = compactionMinRecords;
+    }
+
+    public boolean isEnabled() {
+        return path != null;
+    }
+
+    /**
+     * Replays the log and opens it for appending.
+     *
+     * @return The saved collections, or an empty list if there is no usable
+     *         snapshot or another process owns it
+     */
+    public synchronized List<Saved> load() {
+        if (path == null || !lock()) {
+            return List.of();
+        }
+        Map<String, String> tokens = new LinkedHashMap<>();
+        Map<String, Map<String, Resource>> collections = new LinkedHashMap<>();
+        try {
+            if (Files.exists(path)) {
+                replay(tokens, collections);
+            }
+        } catch (IOException e) {
+            LOG.warn("Discarding event snapshot {}: {}", path, e.getMessage());
+            tokens.clear();
+            collections.clear();
+            records = 0;
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException deleteFailed) {
+                LOG.warn("Failed to delete event snapshot: {}", deleteFailed.getMessage());
+            }
+        }
+        open();
+
+        List<Saved> saved = new ArrayList<>();
+        collections.forEach((collectionUrl, resources) -> saved
+                .add(new Saved(collectionUrl, tokens.get(collectionUrl), resources.values())));
+        return saved;
+    }
+
+    public synchronized void put(String collectionUrl, EventStore.StoredEvent event) {
+        append(PUT, collectionUrl, event.href(), event.etag(), event.icalendar());
+    }
+
+    public synchronized void remove(String collectionUrl, String href) {
+        append(REMOVE, collectionUrl, href);
+    }
+
+    /**
+     * Records that a collection was emptied, e.g. after its sync-token expired.
+     */
+    public synchronized void clear(String collectionUrl) {
+        append(CLEAR, collectionUrl);
+    }
+
+    /**
+     * Saves the store's sync-token after the changes it covers and writes the
+     * log out. Compacts the log if it has grown well beyond the live entries.
+     *
+     * @param all Every store, for compaction
+     */
+    public synchronized void checkpoint(EventStore store, Collection<EventStore> all) {
+        append(TOKEN, store.getCollectionUrl(), store.getSyncToken());
+        flush();
+        long live = 0;
+        for (EventStore each : all) {
+            live += each.size() + 1;
+        }
+        if (out != null && records > Math.max(compactionMinRecords, 2 * live)) {
+            compact(all);
+        }
+    }
+
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void destroy() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close event snapshot: {}", e.getMessage());
+            }
+            out = null;
+        }
+        unlock();
+    }
+
+    /**
+     * Takes the lock on the snapshot for this process.
+     *
+     * @return false if another process holds it, or it cannot be taken
+     */
+    private boolean lock() {
+        if (lock != null) {
+            return true;
+        }
+        Path lockFile = path.resolveSibling(path.getFileName() + ".lock");
+        try {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            lock = lockChannel.tryLock();
+        } catch (IOException | OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            LOG.warn("Event snapshot {} is in use by another process, running without it", path);
+            unlock();
+            return false;
+        }
+        return true;
+    }
+
+    private void unlock() {
+        try {
+            if (lock != null) {
+                lock.release();
+            }
+            if (lockChannel != null) {
+                lockChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Failed to release the event snapshot lock: {}", e.getMessage());
+        }
+        lock = null;
+        lockChannel = null;
+    }
+
+    private void replay(Map<String, String> tokens, Map<String, Map<String, Resource>> collections)
+            throws IOException {
+        long valid;
+        long size;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new CorruptSnapshotException("file too large: " + size + " bytes");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (size < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                throw new CorruptSnapshotException("not a snapshot file");
+            }
+            int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new CorruptSnapshotException("unsupported version " + version);
+            }
+            valid = HEADER_SIZE;
+            while (buffer.remaining() >= 8) {
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    // Torn write at the end of the log
+                    break;
+                }
+                ByteBuffer record = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                crc.reset();
+                crc.update(record.duplicate());
+                if ((int) crc.getValue() != checksum) {
+                    throw new CorruptSnapshotException("checksum mismatch at offset " + valid);
+                }
+                try {
+                    apply(record, tokens, collections);
+                } catch (BufferUnderflowException e) {
+                    throw new CorruptSnapshotException("truncated record at offset " + valid);
+                }
+                valid = buffer.position();
+                records++;
+            }
+        }
+        if (valid < size) {
+            LOG.warn("Event snapshot ends in an incomplete record, truncating {} bytes", size - valid);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+        }
+    }
+
+    private static void apply(ByteBuffer record, Map<String, String> tokens,
+            Map<String, Map<String, Resource>> collections) throws CorruptSnapshotException {
+        byte type = record.get();
+        String collectionUrl = readString(record);
+        switch (type) {
+            case PUT: {
+                String href = readString(record);
+                Resource resource = new Resource(href, readString(record), readString(record));
+                collections.computeIfAbsent(collectionUrl, url -> new LinkedHashMap<>()).put(href, resource);
+                break;
+            }
+            case REMOVE: {
+                Map<String, Resource> resources = collections.get(collectionUrl);
+                if (resources != null) {
+                    resources.remove(readString(record));
+                }
+                break;
+            }
+            case TOKEN:
+                tokens.put(collectionUrl, readString(record));
+                collections.computeIfAbsent(collectionUrl, url -> new LinkedHashMap<>());
+                break;
+            case CLEAR:
+                tokens.remove(collectionUrl);
+                collections.remove(collectionUrl);
+                break;
+            default:
+                throw new CorruptSnapshotException("unknown record type " + type);
+        }
+    }
+
+    private void open() {
+        try {
+            boolean created = !Files.exists(path);
+            if (created) {
+                writeHeader(path);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(path, StandardOpenOption.APPEND)));
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void append(byte type, String... fields) {
+        if (out == null) {
+            return;
+        }
+        try {
+            writeRecord(out, type, fields);
+            records++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void writeRecord(DataOutputStream target, byte type, String... fields) throws IOException {
+        payload.reset();
+        payload.write(type);
+        for (String field : fields) {
+            if (field == null) {
+                writeInt(payload, -1);
+            } else {
+                byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+                writeInt(payload, bytes.length);
+                payload.write(bytes);
+            }
+        }
+        crc.reset();
+        crc.update(payload.toByteArray());
+        target.writeInt(payload.size());
+        target.writeInt((int) crc.getValue());
+        payload.writeTo(target);
+    }
+
+    /**
+     * Rewrites the log with one put per live resource and one token per store,
+     * then swaps it in atomically.
+     */
+    private void compact(Collection<EventStore> all) {
+        Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+        long written = 0;
+        try {
+            out.close();
+            out = null;
+            writeHeader(compacted);
+            try (FileOutputStream file = new FileOutputStream(compacted.toFile(), true);
+                    DataOutputStream target = new DataOutputStream(new BufferedOutputStream(file))) {
+                for (EventStore store : all) {
+                    for (EventStore.StoredEvent event : store.values()) {
+                        writeRecord(target, PUT, store.getCollectionUrl(), event.href(), event.etag(),
+                                event.icalendar());
+                        written++;
+                    }
+                    writeRecord(target, TOKEN, store.getCollectionUrl(), store.getSyncToken());
+                    written++;
+                }
+                target.flush();
+                file.getFD().sync();
+            }
+            Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            records = written;
+        } catch (IOException e) {
+            LOG.warn("Failed to compact event snapshot: {}", e.getMessage());
+        }
+        open();
+    }
+
+    private static void writeHeader(Path file) throws IOException {
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        } catch (java.nio.file.FileAlreadyExistsException e) {
+            // Left over from an interrupted compaction
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION);
+        Files.write(file, header.array(), StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private static void writeInt(ByteArrayOutputStream bytes, int value) {
+        bytes.write(value >>> 24);
+        bytes.write(value >>> 16);
+        bytes.write(value >>> 8);
+        bytes.write(value);
+    }
+
+    private static String readString(ByteBuffer record) throws CorruptSnapshotException {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > record.remaining()) {
+            throw new CorruptSnapshotException("field longer than its record");
+        }
+        byte[] bytes = new byte[length];
+        record.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void fail(IOException e) {
+        LOG.error("Event snapshot disabled after write error: {}", e.getMessage());
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException closeFailed) {
+                // Already failing
+            }
+            out = null;
+        }
+    }
+}
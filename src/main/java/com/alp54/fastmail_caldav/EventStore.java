@@ -0,0 +1,99 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import net.fortuna.ical4j.model.Calendar;
+
+/**
+ * Local copy of one calendar collection, keyed by resource href.
+ *
+ * Each entry keeps the server ETag, the raw iCalendar text and the parsed
+ * calendar, so reads can be answered without going back to the server. The
+ * sync-token is the RFC 6578 token of the last successful sync.
+ */
+public class EventStore {
+
+    /**
+     * One calendar object resource as last seen on the server.
+     */
+    public record StoredEvent(String href, String etag, String icalendar, Calendar calendar) {
+    }
+
+    /**
+     * Notified whenever an entry is added, replaced or dropped, so derived
+     * indexes can be updated incrementally instead of being rebuilt.
+     */
+    public interface Listener {
+
+        void onPut(EventStore store, StoredEvent previous, StoredEvent current);
+
+        void onRemove(EventStore store, StoredEvent removed);
+    }
+
+    private final String collectionUrl;
+
+    private final List<Listener> listeners;
+
+    private final ConcurrentMap<String, StoredEvent> events = new ConcurrentHashMap<>();
+
+    private volatile String syncToken;
+
+    public EventStore(String collectionUrl) {
+        this(collectionUrl, List.of());
+    }
+
+    public EventStore(String collectionUrl, List<Listener> listeners) {
+        this.collectionUrl = collectionUrl;
+        this.listeners = listeners;
+    }
+
+    public String getCollectionUrl() {
+        return collectionUrl;
+    }
+
+    public String getSyncToken() {
+        return syncToken;
+    }
+
+    void setSyncToken(String syncToken) {
+        this.syncToken = syncToken;
+    }
+
+    public StoredEvent get(String href) {
+        return events.get(href);
+    }
+
+    public Collection<StoredEvent> values() {
+        return events.values();
+    }
+
+    public int size() {
+        return events.size();
+    }
+
+    void put(StoredEvent event) {
+        StoredEvent previous = events.put(event.href(), event);
+        for (Listener listener : listeners) {
+            listener.onPut(this, previous, event);
+        }
+    }
+
+    void remove(String href) {
+        StoredEvent removed = events.remove(href);
+        if (removed != null) {
+            for (Listener listener : listeners) {
+                listener.onRemove(this, removed);
+            }
+        }
+    }
+
+    void clear() {
+        for (String href : List.copyOf(events.keySet())) {
+            remove(href);
+        }
+        syncToken = null;
+    }
+}
@@ -1,35 +1,46 @@
 package com.alp54.fastmail_caldav;
 
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.time.Instant; // Added for conversion
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.CredentialsProvider;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.apache.http.util.EntityUtils;
-import org.apache.jackrabbit.webdav.client.methods.HttpReport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.ai.tool.annotation.Tool;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import net.fortuna.ical4j.data.CalendarBuilder;
-import net.fortuna.ical4j.data.ParserException;
 import net.fortuna.ical4j.model.Calendar;
 import net.fortuna.ical4j.model.Period;
 import net.fortuna.ical4j.model.PeriodList;
@@ -47,129 +58,573 @@ import net.fortuna.ical4j.model.property.Uid;
 @Component
 public class FastmailCaldavClient {
 
+        private static final Logger LOG = LoggerFactory.getLogger(FastmailCaldavClient.class);
+
         @Value("${fastmail.caldav.url}")
         private String caldavUrl;
 
         @Value("${fastmail.calendar.path}")
         private String calendarPath;
 
-        @Value("${fastmail-username}")
-        private String username;
+        private final CloseableHttpClient httpclient;
+
+        private final CalendarSyncEngine syncEngine;
+
+        private final ICalendarParsingPipeline parsingPipeline;
+
+        private final OccurrenceIndex occurrenceIndex;
+
+        private final RecurrenceExpansionSelector expansionSelector;
+
+        private final CalendarDiscovery calendarDiscovery;
+
+        private final ExecutorService requestExecutor;
+
+        private final UidIndex uidIndex;
+
+        private final EventResourceCache resourceCache;
+
+        private final FreeBusyService freeBusyService;
+
+        private final SearchIndex searchIndex;
+
+        private final CaldavMetrics metrics;
+
+        private final QueryResultCache queryResults;
+
+        /**
+         * calendar-query results of discovered calendars, reused while the
+         * calendar's ctag is unchanged.
+         */
+        private final Map<String, CtagResult> ctagResults = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CtagResult> eldest) {
+                        return size() > 256;
+                }
+        };
+
+        private record CtagResult(String ctag, List<CalendarEvent> events) {
+        }
+
+        /**
+         * Keyword filters of a query; null members do not filter. {@code text}
+         * is matched against summary, description and location together.
+         */
+        record TextQuery(String title, String description, String text) {
+
+                static final TextQuery NONE = new TextQuery(null, null, null);
+
+                boolean matches(VEvent event) {
+                        return SearchIndex.matches(event, title, SearchIndex.Field.SUMMARY)
+                                        && SearchIndex.matches(event, description, SearchIndex.Field.DESCRIPTION)
+                                        && SearchIndex.matches(event, text, SearchIndex.Field.values());
+                }
+        }
 
-        @Value("${fastmail.app.password}")
-        private String password;
+        private record MutationResponse(int statusCode, String href, String etag, String error) {
+
+                boolean isSuccess() {
+                        return statusCode >= 200 && statusCode < 300;
+                }
+        }
+
+        /**
+         * One operation of {@link #batchCalendarEvents(List)}.
+         */
+        public record BatchOperation(String action, String uid, String eventUrl, String summary, String date,
+                        String startTime, String endTime) {
+        }
+
+        public record BatchItemResult(int index, String action, boolean success, int status, String href,
+                        String etag, String error, long elapsedMs) {
+        }
+
+        public record BatchResult(List<BatchItemResult> results, int succeeded, int failed, long elapsedMs) {
+        }
+
+        private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+                        .withZone(ZoneId.of("UTC"));
+
+        private static final DateTimeFormatter LOCAL_DATE_TIME_FORMAT = DateTimeFormatter
+                        .ofPattern("yyyyMMdd'T'HHmmss");
+
+        @Value("${fastmail.batch.max-operations:500}")
+        private int batchMaxOperations;
+
+        public FastmailCaldavClient(CloseableHttpClient caldavHttpClient, CalendarSyncEngine syncEngine,
+                        ICalendarParsingPipeline parsingPipeline, OccurrenceIndex occurrenceIndex,
+                        RecurrenceExpansionSelector expansionSelector, CalendarDiscovery calendarDiscovery,
+                        ExecutorService caldavRequestExecutor, UidIndex uidIndex,
+                        EventResourceCache resourceCache, FreeBusyService freeBusyService, SearchIndex searchIndex,
+                        CaldavMetrics metrics, QueryResultCache queryResults) {
+                this.httpclient = caldavHttpClient;
+                this.syncEngine = syncEngine;
+                this.parsingPipeline = parsingPipeline;
+                this.occurrenceIndex = occurrenceIndex;
+                this.expansionSelector = expansionSelector;
+                this.calendarDiscovery = calendarDiscovery;
+                this.requestExecutor = caldavRequestExecutor;
+                this.uidIndex = uidIndex;
+                this.resourceCache = resourceCache;
+                this.freeBusyService = freeBusyService;
+                this.searchIndex = searchIndex;
+                this.metrics = metrics;
+                this.queryResults = queryResults;
+        }
 
         @Tool(name = "getCalendarEvents", description = "Queries all events of the calendar")
-        public List<String> getCalendarEvents()
-                        throws IOException, URISyntaxException, javax.xml.parsers.ParserConfigurationException,
-                        org.xml.sax.SAXException, org.apache.jackrabbit.webdav.DavException {
+        public List<CalendarEvent> getCalendarEvents()
+                        throws IOException, URISyntaxException {
                 return getCalendarEvents(null, null, null);
         }
 
         @Tool(name = "getCalendarEventsByDate", description = "Queries all events of the calendar, filtered by date (YYYY-mm-dd)")
-        public List<String> getCalendarEvents(String date)
-                        throws IOException, URISyntaxException, javax.xml.parsers.ParserConfigurationException,
-                        org.xml.sax.SAXException, org.apache.jackrabbit.webdav.DavException {
+        public List<CalendarEvent> getCalendarEvents(String date)
+                        throws IOException, URISyntaxException {
                 return getCalendarEvents(date, null, null);
         }
 
         @Tool(name = "getCalendarEventsByTitleOrDescription", description = "Queries all events of the calendar, filtered by title or description")
-        public List<String> getCalendarEvents(String date, String title, String description)
-                        throws IOException, URISyntaxException, javax.xml.parsers.ParserConfigurationException,
-                        org.xml.sax.SAXException, org.apache.jackrabbit.webdav.DavException {
-                List<String> events = new ArrayList<>();
-
-                CredentialsProvider credsProvider = new BasicCredentialsProvider();
-                credsProvider.setCredentials(
-                                AuthScope.ANY,
-                                new UsernamePasswordCredentials(username, password));
-
-                try (CloseableHttpClient httpclient = HttpClients.custom()
-                                .setDefaultCredentialsProvider(credsProvider)
-                                .build()) {
-
-                        URI uri = new URI(caldavUrl + calendarPath);
-                        String timeRangeXml = "";
-                        if (date != null && !date.isEmpty()) {
-                                // Convert YYYY-mm-dd to YYYYMMDDT000000Z
-                                String start = date.replaceAll("-", "") + "T000000Z";
-                                // Calculate end as next day midnight
-                                java.time.LocalDate localDate = java.time.LocalDate.parse(date);
-                                java.time.LocalDate nextDay = localDate.plusDays(1);
-                                String end = nextDay.format(java.time.format.DateTimeFormatter.BASIC_ISO_DATE)
-                                                + "T000000Z";
-                                timeRangeXml = "<c:comp-filter name=\"VEVENT\"><c:time-range start=\"" + start
-                                                + "\" end=\"" + end + "\" /></c:comp-filter>";
-                        }
-
-                        // Build the filter for title and/or description
-                        String textMatchXml = "";
-                        if (title != null || description != null) {
-                                textMatchXml = "<c:comp-filter name=\"VEVENT\">";
-                                if (title != null) {
-                                        textMatchXml += "<c:prop-filter name=\"SUMMARY\">" +
-                                                        "<c:text-match collation=\"i;ascii-numeric\">" + title
-                                                        + "</c:text-match>" +
-                                                        "</c:prop-filter>";
-                                }
-                                if (description != null) {
-                                        textMatchXml += "<c:prop-filter name=\"DESCRIPTION\">" +
-                                                        "<c:text-match collation=\"i;ascii-numeric\">" + description
-                                                        + "</c:text-match>" +
-                                                        "</c:prop-filter>";
-                                }
-                                textMatchXml += "</c:comp-filter>";
-                        }
-
-                        // Add filter for recurring events if freq=recurring is specified
-                        String freqFilterXml = "";
-                        if ("recurring".equalsIgnoreCase(description)) {
-                                freqFilterXml = "<c:prop-filter name=\"RRULE\" />";
-                        }
-
-                        String reportXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
-                                        "<c:calendar-query xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
-                                        "  <d:prop xmlns:d=\"DAV:\">\n" +
-                                        "    <d:getetag />\n" +
-                                        "    <c:calendar-data />\n" +
-                                        "  </d:prop>\n" +
-                                        "  <c:filter>\n" +
-                                        "    <c:comp-filter name=\"VCALENDAR\">" + timeRangeXml + textMatchXml
-                                        + freqFilterXml + "</c:comp-filter>\n" +
-                                        "  </c:filter>\n" +
-                                        "</c:calendar-query>";
-                        javax.xml.parsers.DocumentBuilderFactory factory = javax.xml.parsers.DocumentBuilderFactory
-                                        .newInstance();
-                        factory.setNamespaceAware(true);
-                        org.w3c.dom.Document doc = factory.newDocumentBuilder()
-                                        .parse(new java.io.ByteArrayInputStream(
-                                                        reportXml.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
-                        org.w3c.dom.Element reportElement = doc.getDocumentElement();
-
-                        org.apache.jackrabbit.webdav.version.report.ReportInfo reportInfo = new org.apache.jackrabbit.webdav.version.report.ReportInfo(
-                                        reportElement, 1);
-                        HttpReport report = new HttpReport(uri.toString(), reportInfo);
-                        report.addHeader("Depth", "infinity");
-                        report.setHeader("Content-Type", "application/xml");
-                        report.setEntity(new StringEntity(reportXml, "UTF-8"));
-                        try (CloseableHttpResponse response = httpclient.execute(report)) {
+        public List<CalendarEvent> getCalendarEvents(String date, String title, String description)
+                        throws IOException, URISyntaxException {
+                LocalDate queryDate = parseQueryDate(date);
+                return queryEvents(queryDate == null ? null : period(queryDate, queryDate.plusDays(1)),
+                                new TextQuery(title, description, null));
+        }
+
+        @Tool(name = "getCalendarEventsByDateRange", description = "Queries all events of the calendar between startDate and endDate (YYYY-mm-dd, both inclusive) in one request, with recurring events expanded and sorted by start")
+        public List<CalendarEvent> getCalendarEventsByDateRange(String startDate, String endDate)
+                        throws IOException, URISyntaxException {
+                return getCalendarEventsByDateRange(startDate, endDate, null, null);
+        }
+
+        public List<CalendarEvent> getCalendarEventsByDateRange(String startDate, String endDate, String title,
+                        String description) throws IOException, URISyntaxException {
+                LocalDate[] range = dateRange(startDate, endDate);
+                return queryEvents(period(range[0], range[1]), new TextQuery(title, description, null));
+        }
+
+        @Tool(name = "searchCalendarEvents", description = "Searches events whose title, description or location contain words starting with every word of query (case and accent insensitive). startDate and endDate (YYYY-mm-dd, both inclusive) are optional and limit the search to that range, with recurring events expanded")
+        public List<CalendarEvent> searchCalendarEvents(String query, String startDate, String endDate)
+                        throws IOException, URISyntaxException {
+                if (SearchIndex.tokenize(query).isEmpty()) {
+                        throw new IllegalArgumentException("query must contain at least one word");
+                }
+                boolean ranged = !isBlank(startDate) || !isBlank(endDate);
+                LocalDate[] range = ranged ? dateRange(startDate, endDate) : null;
+                return queryEvents(ranged ? period(range[0], range[1]) : null, new TextQuery(null, null, query));
+        }
+
+        @Tool(name = "getFreeBusy", description = "Returns the merged busy intervals between startDate and endDate (YYYY-mm-dd, both inclusive), without event details. calendars is optional: empty for the configured calendars, 'all', or a comma-separated list of calendar names")
+        public List<FreeBusyService.TimeSlot> getFreeBusy(String startDate, String endDate, String calendars)
+                        throws IOException {
+                LocalDate[] range = dateRange(startDate, endDate);
+                return FreeBusyService.toSlots(freeBusyService.busy(range[0], range[1], calendars));
+        }
+
+        @Tool(name = "findFreeSlots", description = "Finds free time windows of at least minDurationMinutes between startDate and endDate (YYYY-mm-dd, both inclusive), within the working hours workdayStart to workdayEnd (HHmm, empty for the configured default). calendars is optional: empty for the configured calendars, 'all', or a comma-separated list of calendar names")
+        public List<FreeBusyService.TimeSlot> findFreeSlots(String startDate, String endDate, int minDurationMinutes,
+                        String workdayStart, String workdayEnd, String calendars) throws IOException {
+                LocalDate[] range = dateRange(startDate, endDate);
+                return FreeBusyService.toSlots(freeBusyService.free(range[0], range[1], minDurationMinutes,
+                                workdayStart, workdayEnd, calendars));
+        }
+
+        @Tool(name = "getConflictingEvents", description = "Returns the events that overlap a proposed time slot on date (YYYY-mm-dd) from startTime to endTime (HHmm)")
+        public List<CalendarEvent> getConflictingEvents(String date, String startTime, String endTime)
+                        throws IOException, URISyntaxException {
+                LocalDate day = parseQueryDate(date);
+                if (day == null) {
+                        throw new IllegalArgumentException("date is required (YYYY-MM-DD)");
+                }
+                String start = toIcalFormat(date, startTime);
+                String end = toIcalFormat(date, endTime);
+                if (startTime == null || startTime.isEmpty() || endTime == null || endTime.isEmpty()
+                                || end.compareTo(start) <= 0) {
+                        throw new IllegalArgumentException("startTime and endTime (HHmm) are required, end after start");
+                }
+                try {
+                        return queryEvents(new Period(new net.fortuna.ical4j.model.DateTime(start),
+                                        new net.fortuna.ical4j.model.DateTime(end)), TextQuery.NONE);
+                } catch (java.text.ParseException e) {
+                        throw new IllegalArgumentException("Invalid date or time: " + e.getMessage(), e);
+                }
+        }
+
+        /**
+         * Parses an inclusive date range into {@code [from, toExclusive)}.
+         */
+        static LocalDate[] dateRange(String startDate, String endDate) {
+                LocalDate from = parseQueryDate(startDate);
+                LocalDate to = parseQueryDate(endDate);
+                if (from == null || to == null) {
+                        throw new IllegalArgumentException("startDate and endDate are required (YYYY-MM-DD)");
+                }
+                if (to.isBefore(from)) {
+                        throw new IllegalArgumentException("endDate must not be before startDate");
+                }
+                return new LocalDate[] { from, to.plusDays(1) };
+        }
+
+        /**
+         * Runs one query over {@code queryPeriod}, or over the whole calendar
+         * when it is null. Time-ranged results are sorted by start.
+         *
+         * With {@code fastmail.calendars} set, the query runs concurrently on
+         * every selected calendar of the home set and the results are merged.
+         */
+        private List<CalendarEvent> queryEvents(Period queryPeriod, TextQuery textQuery)
+                        throws IOException, URISyntaxException {
+                if (!calendarDiscovery.isEnabled()) {
+                        List<CalendarEvent> events = queryCollection(caldavUrl + calendarPath, null, queryPeriod, textQuery);
+                        return queryPeriod == null ? events : sortByStart(events);
+                }
+
+                List<Future<List<CalendarEvent>>> futures = new ArrayList<>();
+                for (CalendarDiscovery.CalendarInfo calendar : calendarDiscovery.selectedCalendars()) {
+                        futures.add(requestExecutor.submit(() -> queryCollection(calendar.url(), calendar,
+                                        queryPeriod, textQuery)));
+                }
+                List<CalendarEvent> events = new ArrayList<>();
+                try {
+                        for (Future<List<CalendarEvent>> future : futures) {
+                                events.addAll(future.get());
+                        }
+                } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while querying calendars", e);
+                } catch (ExecutionException e) {
+                        futures.forEach(future -> future.cancel(true));
+                        Throwable cause = e.getCause();
+                        if (cause instanceof IOException) {
+                                throw (IOException) cause;
+                        }
+                        if (cause instanceof URISyntaxException) {
+                                throw (URISyntaxException) cause;
+                        }
+                        if (cause instanceof RuntimeException) {
+                                throw (RuntimeException) cause;
+                        }
+                        throw new IOException(cause);
+                }
+                return queryPeriod == null ? events : sortByStart(events);
+        }
+
+        /**
+         * Queries one calendar collection, from the synced store when possible.
+         *
+         * @param calendar The discovered calendar, or null for the configured
+         *                 path; its sync-token and ctag let unchanged calendars
+         *                 skip the round trip
+         */
+        private List<CalendarEvent> queryCollection(String collectionUrl, CalendarDiscovery.CalendarInfo calendar,
+                        Period queryPeriod, TextQuery textQuery)
+                        throws IOException, URISyntaxException {
+                // Identical calls at the same time share one answer, which is reused for a short while
+                return queryResults.get(queryKey(collectionUrl, queryPeriod, textQuery),
+                                () -> loadCollection(collectionUrl, calendar, queryPeriod, textQuery));
+        }
+
+        /**
+         * The {@link QueryResultCache} key of a query on one calendar, shared
+         * with the ASYNC query tools.
+         */
+        static String queryKey(String collectionUrl, Period queryPeriod, TextQuery textQuery) {
+                return collectionUrl + "\n" + queryPeriod + "\n" + textQuery;
+        }
+
+        private List<CalendarEvent> loadCollection(String collectionUrl, CalendarDiscovery.CalendarInfo calendar,
+                        Period queryPeriod, TextQuery textQuery)
+                        throws IOException, URISyntaxException {
+                List<CalendarEvent> events = new ArrayList<>();
+
+                // Answer from the local store when the collection supports incremental sync
+                EventStore store = syncEngine.sync(collectionUrl, calendar == null ? null : calendar.syncToken());
+                if (store != null) {
+                        return metrics.phase("store", () -> readFromStore(store, queryPeriod, textQuery));
+                }
+
+                String ctag = calendar == null ? null : calendar.ctag();
+                String resultKey = collectionUrl + "\n" + queryPeriod + "\n" + textQuery;
+                if (ctag != null) {
+                        CtagResult cached;
+                        synchronized (ctagResults) {
+                                cached = ctagResults.get(resultKey);
+                        }
+                        boolean hit = cached != null && ctag.equals(cached.ctag());
+                        metrics.cache("ctag", hit);
+                        if (hit) {
+                                return new ArrayList<>(cached.events());
+                        }
+                }
+
+                String filterXml = calendarQueryFilter(queryPeriod, textQuery);
+
+                // Recurrences only need expanding when the query is limited to a time range
+                RecurrenceExpansionSelector.Mode mode = queryPeriod == null ? RecurrenceExpansionSelector.Mode.LOCAL
+                                : expansionSelector.choose(collectionUrl);
+                long started = System.nanoTime();
+                List<CalendarEvent> queried = runCalendarQuery(collectionUrl, filterXml, mode, queryPeriod, textQuery);
+                if (queried == null) {
+                        RecurrenceExpansionSelector.Mode rejected = mode;
+                        mode = RecurrenceExpansionSelector.Mode.LOCAL;
+                        started = System.nanoTime();
+                        queried = runCalendarQuery(collectionUrl, filterXml, mode, queryPeriod, textQuery);
+                        // Only remembered once the same query without it went through
+                        expansionSelector.recordRejected(collectionUrl, rejected);
+                }
+                if (queryPeriod != null) {
+                        expansionSelector.recordLatency(collectionUrl, mode, System.nanoTime() - started);
+                }
+                events.addAll(queried);
+                if (ctag != null) {
+                        synchronized (ctagResults) {
+                                ctagResults.put(resultKey, new CtagResult(ctag, List.copyOf(events)));
+                        }
+                }
+                return events;
+        }
+
+        /**
+         * Sends one calendar-query REPORT.
+         *
+         * @return The events, or null if the server rejected the requested
+         *         server-side recurrence expansion
+         */
+        private List<CalendarEvent> runCalendarQuery(String collectionUrl, String filterXml,
+                        RecurrenceExpansionSelector.Mode mode, Period queryPeriod, TextQuery textQuery)
+                        throws IOException {
+                String reportXml = calendarQueryReport(filterXml, mode, queryPeriod);
+                HttpDavRequest report = HttpDavRequest.report(collectionUrl, "infinity", reportXml);
+                try (CloseableHttpResponse response = httpclient.execute(report)) {
+                        int statusCode = response.getStatusLine().getStatusCode();
+                        if (statusCode != HttpStatus.SC_MULTI_STATUS) {
                                 String responseBody = EntityUtils.toString(response.getEntity());
-                                LocalDate queryDate = null;
-                                if (date != null && !date.isEmpty()) {
-                                        try {
-                                                queryDate = LocalDate.parse(date, DateTimeFormatter.ISO_LOCAL_DATE);
-                                        } catch (Exception e) {
-                                                System.err.println("Could not parse query date: " + date
-                                                                + ", defaulting to no specific date for recurrence calculation.");
+                                if (mode != RecurrenceExpansionSelector.Mode.LOCAL
+                                                && RecurrenceExpansionSelector.isRejection(statusCode, responseBody)) {
+                                        return null;
+                                }
+                                throw new IOException("calendar-query on " + collectionUrl + " failed: " + statusCode
+                                                + " - " + responseBody);
+                        }
+                        // Stream the XML response and extract the events
+                        return parseEvents(response.getEntity().getContent(), queryPeriod, textQuery::matches);
+                }
+        }
+
+        /**
+         * The {@code filter} of a calendar-query over {@code queryPeriod}, or over
+         * the whole calendar when it is null.
+         */
+        static String calendarQueryFilter(Period queryPeriod, TextQuery textQuery) {
+                String timeRangeXml = "";
+                String start = null;
+                String end = null;
+                if (queryPeriod != null) {
+                        // Convert the period to YYYYMMDDTHHmmssZ
+                        start = UTC_FORMAT.format(Instant.ofEpochMilli(queryPeriod.getStart().getTime()));
+                        end = UTC_FORMAT.format(Instant.ofEpochMilli(queryPeriod.getEnd().getTime()));
+                        timeRangeXml = "<c:comp-filter name=\"VEVENT\"><c:time-range start=\"" + start
+                                        + "\" end=\"" + end + "\" /></c:comp-filter>";
+                }
+
+                // Each query word must occur as a substring, which narrows the response; the
+                // word-prefix rule is then applied locally. A query over all fields cannot
+                // be expressed as one filter and is only applied locally.
+                String textMatchXml = textMatchFilters("SUMMARY", textQuery.title())
+                                + textMatchFilters("DESCRIPTION", textQuery.description());
+                if (!textMatchXml.isEmpty()) {
+                        textMatchXml = "<c:comp-filter name=\"VEVENT\">" + textMatchXml + "</c:comp-filter>";
+                }
+
+                // Add filter for recurring events if freq=recurring is specified
+                String freqFilterXml = "";
+                if ("recurring".equalsIgnoreCase(textQuery.description())) {
+                        freqFilterXml = "<c:prop-filter name=\"RRULE\" />";
+                }
+
+                return "    <c:comp-filter name=\"VCALENDAR\">" + timeRangeXml + textMatchXml
+                                + freqFilterXml + "</c:comp-filter>\n";
+        }
+
+        /**
+         * The body of a calendar-query REPORT asking for the ETag and the
+         * calendar data, expanded on the server as {@code mode} says.
+         */
+        static String calendarQueryReport(String filterXml, RecurrenceExpansionSelector.Mode mode,
+                        Period queryPeriod) {
+                String start = queryPeriod == null ? null
+                                : UTC_FORMAT.format(Instant.ofEpochMilli(queryPeriod.getStart().getTime()));
+                String end = queryPeriod == null ? null
+                                : UTC_FORMAT.format(Instant.ofEpochMilli(queryPeriod.getEnd().getTime()));
+                String calendarDataXml;
+                switch (mode) {
+                        case EXPAND:
+                                calendarDataXml = "    <c:calendar-data><c:expand start=\"" + start + "\" end=\"" + end
+                                                + "\" /></c:calendar-data>\n";
+                                break;
+                        case LIMIT_RECURRENCE_SET:
+                                calendarDataXml = "    <c:calendar-data><c:limit-recurrence-set start=\"" + start
+                                                + "\" end=\"" + end + "\" /></c:calendar-data>\n";
+                                break;
+                        default:
+                                calendarDataXml = "    <c:calendar-data />\n";
+                }
+                return "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                                "<c:calendar-query xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
+                                "  <d:prop xmlns:d=\"DAV:\">\n" +
+                                "    <d:getetag />\n" +
+                                calendarDataXml +
+                                "  </d:prop>\n" +
+                                "  <c:filter>\n" +
+                                filterXml +
+                                "  </c:filter>\n" +
+                                "</c:calendar-query>";
+        }
+
+        /**
+         * The collections a query runs on: the selected calendars of the home
+         * set, or the configured calendar path.
+         */
+        List<String> collectionUrls() throws IOException {
+                List<String> collectionUrls = new ArrayList<>();
+                if (calendarDiscovery.isEnabled()) {
+                        calendarDiscovery.selectedCalendars().forEach(c -> collectionUrls.add(c.url()));
+                } else {
+                        collectionUrls.add(caldavUrl + calendarPath);
+                }
+                return collectionUrls;
+        }
+
+        static LocalDate parseQueryDate(String date) {
+                if (date == null || date.isEmpty()) {
+                        return null;
+                }
+                try {
+                        return LocalDate.parse(date, DateTimeFormatter.ISO_LOCAL_DATE);
+                } catch (java.time.format.DateTimeParseException e) {
+                        throw new IllegalArgumentException("Date must be in YYYY-MM-DD format: " + date, e);
+                }
+        }
+
+        /**
+         * Orders events by their dtstart, which is formatted so that it sorts
+         * lexicographically.
+         */
+        private static List<CalendarEvent> sortByStart(List<CalendarEvent> events) {
+                events.sort(java.util.Comparator.comparing(CalendarEvent::dtstart));
+                return events;
+        }
+
+        /**
+         * Applies the date and keyword filters that the server would otherwise
+         * evaluate to the locally synced events.
+         *
+         * Keywords are looked up in the {@link SearchIndex} first, so only the
+         * matching resources are read; the per-component check then handles
+         * resources whose VEVENTs have different texts.
+         */
+        private List<CalendarEvent> readFromStore(EventStore store, Period queryPeriod, TextQuery textQuery) {
+                Set<String> candidates = narrow(narrow(
+                                searchIndex.search(store, textQuery.title(), SearchIndex.Field.SUMMARY),
+                                searchIndex.search(store, textQuery.description(), SearchIndex.Field.DESCRIPTION)),
+                                searchIndex.search(store, textQuery.text(), SearchIndex.Field.values()));
+                List<CalendarEvent> events = new ArrayList<>();
+                if (queryPeriod == null) {
+                        Iterable<EventStore.StoredEvent> resources = store.values();
+                        if (candidates != null) {
+                                List<EventStore.StoredEvent> matching = new ArrayList<>();
+                                for (String href : candidates) {
+                                        EventStore.StoredEvent stored = store.get(href);
+                                        if (stored != null) {
+                                                matching.add(stored);
                                         }
                                 }
-                                // Parse the XML response and extract events as JSON
-                                events.addAll(parseEventsToJson(responseBody, queryDate));
+                                resources = matching;
+                        }
+                        for (EventStore.StoredEvent stored : resources) {
+                                if (stored.calendar() != null) {
+                                        events.addAll(toEvents(stored.calendar(), stored.href(), stored.etag(),
+                                                        null, textQuery::matches));
+                                }
+                        }
+                        return events;
+                }
+                // Occurrences come from the interval tree instead of a fresh expansion
+                for (OccurrenceIndex.Hit hit : occurrenceIndex.overlapping(store, queryPeriod.getStart().getTime(),
+                                queryPeriod.getEnd().getTime())) {
+                        EventStore.StoredEvent stored = hit.event();
+                        if (candidates != null && !candidates.contains(stored.href())) {
+                                continue;
+                        }
+                        List<VEvent> components = stored.calendar()
+                                        .getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+                        VEvent event = components.get(hit.occurrence().component());
+                        if (textQuery.matches(event)) {
+                                events.add(toEvent(event, hit.occurrence(), stored.href(), stored.etag()));
                         }
                 }
                 return events;
         }
 
+        /**
+         * Intersects two candidate sets, where null stands for "everything".
+         */
+        private static Set<String> narrow(Set<String> candidates, Set<String> matches) {
+                if (candidates == null) {
+                        return matches;
+                }
+                if (matches != null) {
+                        candidates.retainAll(matches);
+                }
+                return candidates;
+        }
+
+        /**
+         * One {@code prop-filter} per query word, matched case-insensitively as a
+         * substring of the property.
+         */
+        private static String textMatchFilters(String property, String query) {
+                StringBuilder xml = new StringBuilder();
+                for (String term : SearchIndex.tokenize(query)) {
+                        xml.append("<c:prop-filter name=\"").append(property).append("\">")
+                                        .append("<c:text-match collation=\"i;ascii-casemap\">")
+                                        .append(HttpDavRequest.xmlEscape(term))
+                                        .append("</c:text-match></c:prop-filter>");
+                }
+                return xml.toString();
+        }
+
+        private CalendarEvent toEvent(VEvent event, OccurrenceIndex.Occurrence occ, String href, String etag) {
+                boolean isAllDayEvent = event.getStartDate() != null
+                                && !(event.getStartDate().getDate() instanceof net.fortuna.ical4j.model.DateTime);
+                String dtstart = isAllDayEvent
+                                ? formatIcal4jDate(new net.fortuna.ical4j.model.Date(occ.start()), true)
+                                : formatIcal4jDate(new net.fortuna.ical4j.model.DateTime(occ.start()), false);
+                String dtend = "";
+                if (event.getEndDate() != null) {
+                        dtend = isAllDayEvent
+                                        ? formatIcal4jDate(new net.fortuna.ical4j.model.Date(occ.end()), true)
+                                        : formatIcal4jDate(new net.fortuna.ical4j.model.DateTime(occ.end()), false);
+                }
+                RRule rrule = event.getProperty(net.fortuna.ical4j.model.Property.RRULE);
+                return new CalendarEvent(valueOf(event.getUid()), dtstart, dtend, valueOf(event.getSummary()),
+                                valueOf(event.getDescription()), valueOf(event.getLocation()), valueOf(rrule),
+                                href == null ? "" : resolveHref(href), etag == null ? "" : etag);
+        }
+
+        private static String valueOf(net.fortuna.ical4j.model.Property property) {
+                return property == null || property.getValue() == null ? "" : property.getValue();
+        }
+
+        static Period period(LocalDate from, LocalDate toExclusive) {
+                net.fortuna.ical4j.model.DateTime periodSearchStart = new net.fortuna.ical4j.model.DateTime(
+                                from.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                net.fortuna.ical4j.model.DateTime periodSearchEnd = new net.fortuna.ical4j.model.DateTime(
+                                toExclusive.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli());
+                return new Period(periodSearchStart, periodSearchEnd);
+        }
+
         /**
          * Creates a new calendar event
          *
@@ -184,61 +639,52 @@ public class FastmailCaldavClient {
         @Tool(name = "createCalendarEvent", description = "Creates a new calendar event (date as YYYY-MM-DD, time as HHmm)")
         public String createCalendarEvent(String summary, String date, String startTime, String endTime)
                         throws IOException, URISyntaxException {
-                CredentialsProvider credsProvider = new BasicCredentialsProvider();
-                credsProvider.setCredentials(
-                                AuthScope.ANY,
-                                new UsernamePasswordCredentials(username, password));
-
-                try (CloseableHttpClient httpclient = HttpClients.custom()
-                                .setDefaultCredentialsProvider(credsProvider)
-                                .build()) {
-
-                        String startDateTime = toIcalFormat(date, startTime);
-                        String endDateTime = toIcalFormat(date, endTime);
-
-                        // Create iCalendar content
-                        String icalContent = "BEGIN:VCALENDAR\n" +
-                                        "VERSION:2.0\n" +
-                                        "PRODID:-//Fastmail//Fastmail Caldav Client//EN\n" +
-                                        "BEGIN:VEVENT\n" +
-                                        "UID:" + java.util.UUID.randomUUID().toString() + "@fastmail.com\n" +
-                                        "DTSTAMP:"
-                                        + java.time.ZonedDateTime.now()
-                                                        .format(java.time.format.DateTimeFormatter
-                                                                        .ofPattern("yyyyMMdd'T'HHmmss'Z'"))
-                                        + "\n" +
-                                        "DTSTART:" + startDateTime + "\n" +
-                                        "DTEND:" + endDateTime + "\n" +
-                                        "SUMMARY:" + summary + "\n" +
-                                        "END:VEVENT\n" +
-                                        "END:VCALENDAR";
-
-                        // Generate unique event URL
-                        String eventUid = java.util.UUID.randomUUID().toString();
-                        String eventPath = calendarPath;
-                        if (!eventPath.endsWith("/")) {
-                                eventPath += "/";
-                        }
-                        eventPath += eventUid + ".ics";
-
-                        URI uri = new URI(caldavUrl + eventPath);
-                        HttpPut put = new HttpPut(uri);
-                        put.setHeader("Content-Type", "text/calendar; charset=utf-8");
-                        put.setEntity(new StringEntity(icalContent, "UTF-8"));
-
-                        try (CloseableHttpResponse response = httpclient.execute(put)) {
-                                int statusCode = response.getStatusLine().getStatusCode();
-                                if (statusCode >= 200 && statusCode < 300) {
-                                        // Event created successfully
-                                        return uri.toString();
-                                } else {
-                                        // Handle error
-                                        String responseBody = EntityUtils.toString(response.getEntity());
-                                        throw new IOException(
-                                                        "Failed to create event: " + statusCode + " - " + responseBody);
-                                }
-                        }
+                MutationResponse response = createEvent(summary, date, startTime, endTime);
+                if (!response.isSuccess()) {
+                        throw new IOException("Failed to create event: " + response.statusCode() + " - "
+                                        + response.error());
                 }
+                return response.href();
+        }
+
+        private MutationResponse createEvent(String summary, String date, String startTime, String endTime)
+                        throws IOException, URISyntaxException {
+
+                String startDateTime = toIcalFormat(date, startTime);
+                String endDateTime = toIcalFormat(date, endTime);
+
+                // Create iCalendar content
+                String uid = java.util.UUID.randomUUID().toString() + "@fastmail.com";
+                String icalContent = "BEGIN:VCALENDAR\n" +
+                                "VERSION:2.0\n" +
+                                "PRODID:-//Fastmail//Fastmail Caldav Client//EN\n" +
+                                "BEGIN:VEVENT\n" +
+                                "UID:" + uid + "\n" +
+                                "DTSTAMP:"
+                                + java.time.ZonedDateTime.now()
+                                                .format(java.time.format.DateTimeFormatter
+                                                                .ofPattern("yyyyMMdd'T'HHmmss'Z'"))
+                                + "\n" +
+                                "DTSTART:" + startDateTime + "\n" +
+                                "DTEND:" + endDateTime + "\n" +
+                                "SUMMARY:" + summary + "\n" +
+                                "END:VEVENT\n" +
+                                "END:VCALENDAR";
+
+                // Generate unique event URL
+                String eventUid = java.util.UUID.randomUUID().toString();
+                String eventPath = calendarPath;
+                if (!eventPath.endsWith("/")) {
+                        eventPath += "/";
+                }
+                eventPath += eventUid + ".ics";
+
+                URI uri = new URI(caldavUrl + eventPath);
+                MutationResponse response = putEvent(uri.toString(), icalContent, null, true);
+                if (response.isSuccess()) {
+                        uidIndex.put(uid, response.href(), response.etag());
+                }
+                return response;
         }
 
         /**
@@ -246,55 +692,178 @@ public class FastmailCaldavClient {
          *
          * @param eventUrl  The URL of the event to update
          * @param summary   The new summary of the event
-         * @param date      The date of the event in YYYY-MM-DD format
+         * @param date      The new date of the event in YYYY-MM-DD format
          * @param startTime The new start time of the event in HHmm format
          * @param endTime   The new end time of the event in HHmm format
          * @return True if the event was updated successfully, false otherwise
+         * @throws IllegalArgumentException If the change cannot be applied, see
+         *                                  {@link #reschedule}
          * @throws IOException
          * @throws URISyntaxException
          */
-        @Tool(name = "updateCalendarEvent", description = "Updates an existing calendar event")
+        @Tool(name = "updateCalendarEvent", description = "Updates an existing calendar event, given its href from a query result (date as YYYY-MM-DD, times as HHmm); fields left empty are kept, and a new date or time keeps the rest of the start and end")
         public boolean updateCalendarEvent(String eventUrl, String summary, String date, String startTime,
                         String endTime)
                         throws IOException, URISyntaxException {
-                CredentialsProvider credsProvider = new BasicCredentialsProvider();
-                credsProvider.setCredentials(
-                                AuthScope.ANY,
-                                new UsernamePasswordCredentials(username, password));
-
-                try (CloseableHttpClient httpclient = HttpClients.custom()
-                                .setDefaultCredentialsProvider(credsProvider)
-                                .build()) {
-
-                        String startDateTime = toIcalFormat(date, startTime);
-                        String endDateTime = toIcalFormat(date, endTime);
-
-                        // Create iCalendar content
-                        String icalContent = "BEGIN:VCALENDAR\n" +
-                                        "VERSION:2.0\n" +
-                                        "PRODID:-//Fastmail//Fastmail Caldav Client//EN\n" +
-                                        "BEGIN:VEVENT\n" +
-                                        "DTSTAMP:"
-                                        + java.time.ZonedDateTime.now()
-                                                        .format(java.time.format.DateTimeFormatter
-                                                                        .ofPattern("yyyyMMdd'T'HHmmss'Z'"))
-                                        + "\n" +
-                                        "DTSTART:" + startDateTime + "\n" +
-                                        "DTEND:" + endDateTime + "\n" +
-                                        "SUMMARY:" + summary + "\n" +
-                                        "END:VEVENT\n" +
-                                        "END:VCALENDAR";
-
-                        // Update the event
-                        HttpPut put = new HttpPut(eventUrl);
-                        put.setHeader("Content-Type", "text/calendar; charset=utf-8");
-                        put.setEntity(new StringEntity(icalContent, "UTF-8"));
-
-                        try (CloseableHttpResponse response = httpclient.execute(put)) {
-                                int statusCode = response.getStatusLine().getStatusCode();
-                                return statusCode >= 200 && statusCode < 300;
+                return updateEvent(eventUrl, summary, date, startTime, endTime).isSuccess();
+        }
+
+        private MutationResponse updateEvent(String eventUrl, String summary, String date, String startTime,
+                        String endTime) throws IOException {
+
+                MutationResponse response = null;
+                // A 412 means the event changed since we read it: re-read just that resource and apply once more
+                for (int attempt = 0; attempt < 2; attempt++) {
+                        EventResourceCache.Resource current = resourceCache.fetch(eventUrl);
+                        if (current == null) {
+                                return new MutationResponse(HttpStatus.SC_NOT_FOUND, eventUrl, null,
+                                                "Event not found: " + eventUrl);
+                        }
+                        Calendar calendar;
+                        try {
+                                calendar = ICalendarParser.parse(current.icalendar());
+                        } catch (net.fortuna.ical4j.data.ParserException e) {
+                                throw new IOException("Cannot parse " + eventUrl + ": " + e.getMessage(), e);
+                        }
+                        VEvent event = masterEvent(calendar);
+                        if (event == null) {
+                                throw new IOException("No VEVENT in " + eventUrl);
+                        }
+                        // Change only what was given, keeping UID and every other property
+                        if (summary != null) {
+                                replaceProperty(event, new Summary(summary));
+                        }
+                        reschedule(event, date, startTime, endTime);
+                        replaceProperty(event, new net.fortuna.ical4j.model.property.DtStamp());
+
+                        response = putEvent(eventUrl, calendar.toString(), current.etag(), false);
+                        if (response.statusCode() != HttpStatus.SC_PRECONDITION_FAILED) {
+                                if (response.isSuccess() && event.getUid() != null) {
+                                        uidIndex.put(event.getUid().getValue(), eventUrl, response.etag());
+                                }
+                                return response;
                         }
                 }
+                return response;
+        }
+
+        /**
+         * Moves an event to a new date and/or times. What is not given is taken
+         * from the current DTSTART and DTEND, and both keep their TZID and value
+         * type. Times are wall-clock times in the event's own time zone; for an
+         * event in UTC they are local times, as for new events. A new date moves
+         * the end by as many days as the start, so the event keeps its length.
+         *
+         * @throws IllegalArgumentException If a value is malformed, a time is given
+         *                                  for an all-day event, or the event would
+         *                                  end before it starts
+         */
+        static void reschedule(VEvent event, String date, String startTime, String endTime) {
+                LocalDate newDate = isBlank(date) ? null : parseDate(date);
+                LocalTime newStartTime = isBlank(startTime) ? null : parseTime(startTime);
+                LocalTime newEndTime = isBlank(endTime) ? null : parseTime(endTime);
+                if (newDate == null && newStartTime == null && newEndTime == null) {
+                        return;
+                }
+                DtStart dtStart = event.getStartDate();
+                if (dtStart == null) {
+                        throw new IllegalArgumentException("The event has no start to change");
+                }
+                boolean allDay = !(dtStart.getDate() instanceof net.fortuna.ical4j.model.DateTime);
+                if (allDay && (newStartTime != null || newEndTime != null)) {
+                        throw new IllegalArgumentException("An all-day event has no start or end time, give only a date");
+                }
+
+                LocalDateTime oldStart = wallClock(dtStart);
+                LocalDateTime start = LocalDateTime.of(newDate != null ? newDate : oldStart.toLocalDate(),
+                                newStartTime != null ? newStartTime : oldStart.toLocalTime());
+                setWallClock(dtStart, start);
+                long days = ChronoUnit.DAYS.between(oldStart.toLocalDate(), start.toLocalDate());
+                DtEnd dtEnd = event.getProperty(net.fortuna.ical4j.model.Property.DTEND);
+                if (dtEnd != null && (days != 0 || newEndTime != null)) {
+                        LocalDateTime oldEnd = wallClock(dtEnd);
+                        setWallClock(dtEnd, LocalDateTime.of(oldEnd.toLocalDate().plusDays(days),
+                                        newEndTime != null ? newEndTime : oldEnd.toLocalTime()));
+                } else if (dtEnd == null && newEndTime != null) {
+                        // A DURATION, or no end at all, becomes a DTEND of the same kind as DTSTART
+                        event.getProperties().removeAll(event.getProperties(net.fortuna.ical4j.model.Property.DURATION));
+                        dtEnd = new DtEnd(dtStart.getDate());
+                        setWallClock(dtEnd, LocalDateTime.of(start.toLocalDate(), newEndTime));
+                        event.getProperties().add(dtEnd);
+                }
+                if (dtEnd != null && dtEnd.getDate().before(dtStart.getDate())) {
+                        throw new IllegalArgumentException("The event would end before it starts");
+                }
+        }
+
+        /**
+         * A DTSTART or DTEND as the wall-clock time it is written in, or in the
+         * local time zone if it is in UTC; midnight for a date.
+         */
+        private static LocalDateTime wallClock(net.fortuna.ical4j.model.property.DateProperty property) {
+                if (!(property.getDate() instanceof net.fortuna.ical4j.model.DateTime)) {
+                        return LocalDate.parse(property.getValue(), DateTimeFormatter.BASIC_ISO_DATE).atStartOfDay();
+                }
+                if (property.isUtc()) {
+                        return LocalDateTime.ofInstant(Instant.ofEpochMilli(property.getDate().getTime()),
+                                        ZoneId.systemDefault());
+                }
+                return LocalDateTime.parse(property.getValue(), LOCAL_DATE_TIME_FORMAT);
+        }
+
+        /**
+         * Sets a DTSTART or DTEND from a wall-clock time, keeping its TZID, UTC
+         * form or date value type.
+         */
+        private static void setWallClock(net.fortuna.ical4j.model.property.DateProperty property,
+                        LocalDateTime value) {
+                String text;
+                if (!(property.getDate() instanceof net.fortuna.ical4j.model.DateTime)) {
+                        text = DateTimeFormatter.BASIC_ISO_DATE.format(value);
+                } else if (property.isUtc()) {
+                        text = UTC_FORMAT.format(value.atZone(ZoneId.systemDefault()).toInstant());
+                } else {
+                        text = LOCAL_DATE_TIME_FORMAT.format(value);
+                }
+                try {
+                        property.setValue(text);
+                } catch (java.text.ParseException e) {
+                        throw new IllegalArgumentException("Invalid date or time: " + e.getMessage(), e);
+                }
+        }
+
+        private static LocalDate parseDate(String date) {
+                try {
+                        return LocalDate.parse(date.trim(), DateTimeFormatter.ISO_LOCAL_DATE);
+                } catch (DateTimeParseException e) {
+                        throw new IllegalArgumentException("Date must be in YYYY-MM-DD format: " + date);
+                }
+        }
+
+        private static LocalTime parseTime(String time) {
+                try {
+                        return LocalTime.parse(time.trim(), DateTimeFormatter.ofPattern("HHmm"));
+                } catch (DateTimeParseException e) {
+                        throw new IllegalArgumentException("Time must be in HHmm format: " + time);
+                }
+        }
+
+        private static VEvent masterEvent(Calendar calendar) {
+                List<VEvent> events = calendar.getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+                for (VEvent event : events) {
+                        if (event.getRecurrenceId() == null) {
+                                return event;
+                        }
+                }
+                return events.isEmpty() ? null : events.get(0);
+        }
+
+        private static void replaceProperty(VEvent event, net.fortuna.ical4j.model.Property property) {
+                net.fortuna.ical4j.model.Property existing = event.getProperty(property.getName());
+                if (existing != null) {
+                        event.getProperties().remove(existing);
+                }
+                event.getProperties().add(property);
         }
 
         /**
@@ -307,71 +876,221 @@ public class FastmailCaldavClient {
          */
         @Tool(name = "deleteCalendarEvent", description = "Deletes a calendar event by UID")
         public boolean deleteCalendarEvent(String uid) throws IOException, URISyntaxException {
-                // Find the event URL by UID
-                String eventUrl = findEventUrlByUid(uid);
+                return deleteEvent(uid, null).isSuccess();
+        }
+
+        private MutationResponse deleteEvent(String uid, String eventUrl) throws IOException {
+                if (eventUrl != null) {
+                        MutationResponse response = deleteUrl(eventUrl);
+                        if (response.isSuccess()) {
+                                uidIndex.remove(uid);
+                        }
+                        return response;
+                }
+                // Common case: the UID was seen before, delete in a single round trip
+                UidIndex.Entry indexed = uidIndex.get(uid);
+                metrics.cache("uid", indexed != null);
+                if (indexed != null) {
+                        String indexedUrl = resolveHref(indexed.href());
+                        MutationResponse response = deleteUrl(indexedUrl);
+                        if (response.statusCode() != HttpStatus.SC_NOT_FOUND) {
+                                if (response.isSuccess()) {
+                                        uidIndex.remove(uid);
+                                }
+                                return response;
+                        }
+                        // Moved or deleted elsewhere, look it up again
+                        uidIndex.remove(uid, indexed.href());
+                }
+                eventUrl = findEventUrlByUid(uid);
                 if (eventUrl == null) {
-                        System.err.println("Event with UID " + uid + " not found.");
-                        return false;
+                        LOG.debug("Event with UID {} not found", uid);
+                        return new MutationResponse(HttpStatus.SC_NOT_FOUND, null, null,
+                                        "Event with UID " + uid + " not found");
                 }
+                MutationResponse response = deleteUrl(eventUrl);
+                if (response.isSuccess()) {
+                        uidIndex.remove(uid);
+                }
+                return response;
+        }
 
-                CredentialsProvider credsProvider = new BasicCredentialsProvider();
-                credsProvider.setCredentials(
-                                AuthScope.ANY,
-                                new UsernamePasswordCredentials(username, password));
+        /**
+         * Applies a list of create, update and delete operations concurrently.
+         *
+         * @param operations The operations, executed at most
+         *                   {@code fastmail.http.fan-out-parallelism} at a time
+         * @return Per-operation status, href and ETag, in input order, plus timings
+         */
+        @Tool(name = "batchCalendarEvents", description = "Applies many calendar changes in one call. Each operation has an action (create, update or delete). create needs summary, date (YYYY-MM-DD), startTime and endTime (HHmm); update needs eventUrl plus the same fields; delete needs uid or eventUrl. Operations run concurrently; returns per-item status, href, etag and timings.")
+        public BatchResult batchCalendarEvents(List<BatchOperation> operations) {
+                if (operations == null || operations.isEmpty()) {
+                        return new BatchResult(List.of(), 0, 0, 0);
+                }
+                if (operations.size() > batchMaxOperations) {
+                        throw new IllegalArgumentException("At most " + batchMaxOperations
+                                        + " operations per batch, got " + operations.size());
+                }
+                long started = System.nanoTime();
+                List<Future<BatchItemResult>> futures = new ArrayList<>();
+                for (int i = 0; i < operations.size(); i++) {
+                        int index = i;
+                        BatchOperation operation = operations.get(i);
+                        futures.add(requestExecutor.submit(() -> applyOperation(index, operation)));
+                }
+                List<BatchItemResult> results = new ArrayList<>();
+                int succeeded = 0;
+                for (int i = 0; i < futures.size(); i++) {
+                        BatchItemResult result;
+                        try {
+                                result = futures.get(i).get();
+                        } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                futures.forEach(future -> future.cancel(true));
+                                throw new IllegalStateException("Interrupted while applying batch", e);
+                        } catch (ExecutionException e) {
+                                result = new BatchItemResult(i, operations.get(i).action(), false, 0, null, null,
+                                                String.valueOf(e.getCause()), 0);
+                        }
+                        if (result.success()) {
+                                succeeded++;
+                        }
+                        results.add(result);
+                }
+                return new BatchResult(results, succeeded, results.size() - succeeded,
+                                (System.nanoTime() - started) / 1_000_000);
+        }
 
-                try (CloseableHttpClient httpclient = HttpClients.custom()
-                                .setDefaultCredentialsProvider(credsProvider)
-                                .build()) {
+        private BatchItemResult applyOperation(int index, BatchOperation operation) {
+                long started = System.nanoTime();
+                String action = operation == null || operation.action() == null ? ""
+                                : operation.action().trim().toLowerCase(Locale.ROOT);
+                try {
+                        MutationResponse response;
+                        switch (action) {
+                                case "create":
+                                        response = createEvent(operation.summary(), operation.date(),
+                                                        operation.startTime(), operation.endTime());
+                                        break;
+                                case "update":
+                                        if (operation.eventUrl() == null || operation.eventUrl().isEmpty()) {
+                                                throw new IllegalArgumentException("update needs eventUrl");
+                                        }
+                                        response = updateEvent(operation.eventUrl(), operation.summary(),
+                                                        operation.date(), operation.startTime(), operation.endTime());
+                                        break;
+                                case "delete":
+                                        if (isBlank(operation.uid()) && isBlank(operation.eventUrl())) {
+                                                throw new IllegalArgumentException("delete needs uid or eventUrl");
+                                        }
+                                        response = deleteEvent(operation.uid(),
+                                                        isBlank(operation.eventUrl()) ? null : operation.eventUrl());
+                                        break;
+                                default:
+                                        throw new IllegalArgumentException("Unknown action: " + action);
+                        }
+                        return new BatchItemResult(index, action, response.isSuccess(), response.statusCode(),
+                                        response.href(), response.etag(), response.error(),
+                                        (System.nanoTime() - started) / 1_000_000);
+                } catch (Exception e) {
+                        return new BatchItemResult(index, action, false, 0, null, null, e.getMessage(),
+                                        (System.nanoTime() - started) / 1_000_000);
+                }
+        }
 
-                        org.apache.http.client.methods.HttpDelete delete = new org.apache.http.client.methods.HttpDelete(
-                                        eventUrl);
-                        try (CloseableHttpResponse response = httpclient.execute(delete)) {
-                                int statusCode = response.getStatusLine().getStatusCode();
-                                return statusCode >= 200 && statusCode < 300;
+        private static boolean isBlank(String value) {
+                return value == null || value.isBlank();
+        }
+
+        /**
+         * PUTs a resource and records the result in the local caches.
+         *
+         * @param ifMatch  ETag the resource must still have, or null
+         * @param isCreate Send {@code If-None-Match: *} so an existing resource is
+         *                 never overwritten
+         */
+        private MutationResponse putEvent(String eventUrl, String icalContent, String ifMatch, boolean isCreate)
+                        throws IOException {
+                HttpPut put = new HttpPut(eventUrl);
+                put.setHeader("Content-Type", "text/calendar; charset=utf-8");
+                if (ifMatch != null) {
+                        put.setHeader(HttpHeaders.IF_MATCH, ifMatch);
+                }
+                if (isCreate) {
+                        put.setHeader(HttpHeaders.IF_NONE_MATCH, "*");
+                }
+                put.setEntity(new StringEntity(icalContent, "UTF-8"));
+                MutationResponse response = send(put, eventUrl);
+                if (response.isSuccess()) {
+                        // Without an ETag the server may have rewritten the body, so don't cache ours
+                        if (response.etag() != null) {
+                                resourceCache.put(new EventResourceCache.Resource(eventUrl, response.etag(),
+                                                icalContent));
+                        } else {
+                                resourceCache.invalidate(eventUrl);
+                        }
+                        syncEngine.recordPut(eventUrl, response.etag(), icalContent);
+                }
+                return response;
+        }
+
+        private MutationResponse deleteUrl(String eventUrl) throws IOException {
+                MutationResponse response = send(new HttpDelete(eventUrl), eventUrl);
+                if (response.isSuccess() || response.statusCode() == HttpStatus.SC_NOT_FOUND) {
+                        resourceCache.invalidate(eventUrl);
+                        syncEngine.recordDelete(eventUrl);
+                }
+                return response;
+        }
+
+        /**
+         * Executes a PUT or DELETE and keeps what the caller needs from the
+         * response.
+         */
+        private MutationResponse send(org.apache.http.client.methods.HttpUriRequest request, String eventUrl)
+                        throws IOException {
+                try (CloseableHttpResponse response = httpclient.execute(request)) {
+                        calendarDiscovery.invalidate();
+                        queryResults.invalidate();
+                        int statusCode = response.getStatusLine().getStatusCode();
+                        Header etagHeader = response.getFirstHeader(HttpHeaders.ETAG);
+                        String etag = etagHeader == null ? null : etagHeader.getValue();
+                        if (statusCode >= 200 && statusCode < 300) {
+                                EntityUtils.consumeQuietly(response.getEntity());
+                                return new MutationResponse(statusCode, eventUrl, etag, null);
                         }
+                        String responseBody = response.getEntity() == null ? ""
+                                        : EntityUtils.toString(response.getEntity());
+                        return new MutationResponse(statusCode, eventUrl, etag, responseBody);
                 }
         }
 
         // formatICalDateTime and formatICalDateTimeExtended are now removed / replaced
         // by formatIcal4jDate helper and ical4j direct usage.
 
-        private List<String> parseEventsToJson(String xml, LocalDate queryDate)
-                        throws javax.xml.parsers.ParserConfigurationException, org.xml.sax.SAXException, IOException {
-                List<String> jsonEvents = new ArrayList<>();
-                javax.xml.parsers.DocumentBuilderFactory factory = javax.xml.parsers.DocumentBuilderFactory
-                                .newInstance();
-                factory.setNamespaceAware(true);
-                javax.xml.parsers.DocumentBuilder builder = factory.newDocumentBuilder();
-                org.w3c.dom.Document doc = builder.parse(new java.io.ByteArrayInputStream(
-                                xml.getBytes(java.nio.charset.StandardCharsets.UTF_8)));
-
-                org.w3c.dom.NodeList responses = doc.getElementsByTagNameNS("DAV:", "response");
-                for (int i = 0; i < responses.getLength(); i++) {
-                        org.w3c.dom.Element response = (org.w3c.dom.Element) responses.item(i);
-                        org.w3c.dom.NodeList calendarDataList = response
-                                        .getElementsByTagNameNS("urn:ietf:params:xml:ns:caldav", "calendar-data");
-                        if (calendarDataList.getLength() == 0) {
-                                continue;
-                        }
-                        String calendarData = calendarDataList.item(0).getTextContent();
+        List<CalendarEvent> parseEvents(InputStream xml, Period queryPeriod, Predicate<VEvent> filter)
+                        throws IOException {
+                // Blobs are parsed on the pipeline's workers while the rest of the response streams in
+                Map<String, String> etags = new java.util.concurrent.ConcurrentHashMap<>();
+                ICalendarParsingPipeline.Batch<CalendarEvent> batch = parsingPipeline.batch((href, calendar) -> {
+                        uidIndex.index(href, etags.get(href), calendar);
+                        return metrics.phase("convert",
+                                        () -> toEvents(calendar, href, etags.get(href), queryPeriod, filter));
+                });
+                metrics.phase("xml", () -> MultistatusReader.read(xml, response -> {
+                        String calendarData = response.calendarData();
                         if (calendarData == null || calendarData.isEmpty()) {
-                                continue;
+                                return;
                         }
-                        // Parse iCalendar data from calendarData string
-                        try {
-                                List<String> eventJsons = parseICalendarToJson(calendarData, queryDate);
-                                if (eventJsons != null && !eventJsons.isEmpty()) {
-                                        jsonEvents.addAll(eventJsons);
-                                }
-                        } catch (IOException | ParserException e) {
-                                System.err.println("Failed to parse iCalendar data: " + e.getMessage());
-                                // Optionally add the raw data or a placeholder error to jsonEvents
+                        if (response.etag() != null) {
+                                etags.put(response.href(), response.etag());
                         }
-                }
-                return jsonEvents;
+                        batch.add(response.href(), calendarData);
+                }));
+                return batch.join();
         }
 
-        private String formatIcal4jDate(net.fortuna.ical4j.model.Date dateValue, boolean isAllDayHint) {
+        String formatIcal4jDate(net.fortuna.ical4j.model.Date dateValue, boolean isAllDayHint) {
                 if (dateValue == null)
                         return "";
 
@@ -399,36 +1118,24 @@ public class FastmailCaldavClient {
                                 return DateTimeFormatter.ISO_LOCAL_DATE.format(localDate);
                         } catch (Exception e) {
                                 // Fallback or error logging if parsing date string fails
-                                System.err.println("Error formatting all-day date: " + dateValue.toString() + " "
-                                                + e.getMessage());
+                                LOG.warn("Error formatting all-day date: {} {}", dateValue, e.getMessage());
                                 return dateValue.toString(); // Fallback to raw string
                         }
                 }
         }
 
-        private List<String> parseICalendarToJson(String icalendarString, LocalDate queryDate)
-                        throws IOException, ParserException {
-                CalendarBuilder builder = new CalendarBuilder();
-                Calendar cal;
-                // Always ensure we have a VCALENDAR wrapper, and only parse ONCE
-                try {
-                        if (icalendarString.trim().startsWith("BEGIN:VEVENT")) {
-                                String fakeCalendar = "BEGIN:VCALENDAR\nVERSION:2.0\nPRODID:-//Cline Helper//EN\n"
-                                                + icalendarString.trim() + "\nEND:VCALENDAR";
-                                cal = builder.build(new StringReader(fakeCalendar));
-                        } else {
-                                cal = builder.build(new StringReader(icalendarString));
-                        }
-                } catch (ParserException e) {
-                        throw e;
-                }
-
+        List<CalendarEvent> toEvents(Calendar cal, String href, String etag, Period queryPeriod,
+                        Predicate<VEvent> filter) {
                 // Only process VEVENT components, skip VTIMEZONE, STANDARD, DAYLIGHT, etc.
-                List<String> eventJsons = new ArrayList<>();
+                List<CalendarEvent> events = new ArrayList<>();
+                String absoluteHref = href == null ? "" : resolveHref(href);
+                String etagValue = etag == null ? "" : etag;
                 for (Object compObj : cal.getComponents(net.fortuna.ical4j.model.Component.VEVENT)) {
                         if (!(compObj instanceof VEvent))
                                 continue;
                         VEvent event = (VEvent) compObj;
+                        if (!filter.test(event))
+                                continue;
 
                         Uid uidPropFull = event.getUid();
                         String uid = (uidPropFull == null) ? "" : uidPropFull.getValue();
@@ -453,14 +1160,13 @@ public class FastmailCaldavClient {
                         boolean isAllDayEvent = dtStartProperty != null
                                         && !(dtStartProperty.getDate() instanceof net.fortuna.ical4j.model.DateTime);
 
-                        if (dtStartProperty != null && rruleProp != null && queryDate != null) {
+                        if (dtStartProperty != null && rruleProp != null && queryPeriod != null) {
                                 net.fortuna.ical4j.model.Date initialDtStart = dtStartProperty.getDate();
                                 Recur recur = null;
                                 try {
                                         recur = new Recur(rruleProp.getValue());
                                 } catch (java.text.ParseException e) {
-                                        System.err.println("Failed to parse RRULE: " + rruleProp.getValue() + " - "
-                                                        + e.getMessage());
+                                        LOG.warn("Failed to parse RRULE: {} - {}", rruleProp.getValue(), e.getMessage());
                                         // Fallback to treating as non-recurring for date calculation
                                         String dtstartStr = formatIcal4jDate(initialDtStart, isAllDayEvent);
                                         String dtendStr = "";
@@ -469,31 +1175,19 @@ public class FastmailCaldavClient {
                                                                 isAllDayEvent || !(dtEndProperty
                                                                                 .getDate() instanceof net.fortuna.ical4j.model.DateTime));
                                         }
-                                        // Proceed to JSON formatting without recurrence calculation
-                                        summary = summary.replace("\"", "\\\"");
-                                        description = description.replace("\"", "\\\"");
-                                        location = location.replace("\"", "\\\"");
+                                        // Proceed without recurrence calculation
                                         if (dtstartStr == null || dtstartStr.isEmpty()
                                                         || dtstartStr.equals("0001-12-30")) {
                                                 continue;
                                         }
-                                        eventJsons.add(String.format(
-                                                        "{\"uid\":\"%s\",\"dtstart\":\"%s\",\"dtend\":\"%s\",\"summary\":\"%s\",\"description\":\"%s\",\"location\":\"%s\",\"rrule\":\"%s\"}",
-                                                        uid, dtstartStr, dtendStr, summary, description, location,
-                                                        rruleString));
+                                        events.add(new CalendarEvent(uid, dtstartStr, dtendStr, summary, description,
+                                                        location, rruleString, absoluteHref, etagValue));
                                         continue;
                                 }
 
-                                net.fortuna.ical4j.model.DateTime periodSearchStart = new net.fortuna.ical4j.model.DateTime(
-                                                queryDate.atStartOfDay(ZoneId.systemDefault()).toInstant()
-                                                                .toEpochMilli());
-
-                                net.fortuna.ical4j.model.DateTime periodSearchEnd = new net.fortuna.ical4j.model.DateTime(
-                                                queryDate.plusDays(1).atStartOfDay(ZoneId.systemDefault()).toInstant()
-                                                                .toEpochMilli());
-
-                                Period period = new Period(periodSearchStart, periodSearchEnd);
-                                PeriodList occurrences = event.calculateRecurrenceSet(period);
+                                PeriodList occurrences = metrics.phase("expand",
+                                                () -> event.calculateRecurrenceSet(queryPeriod));
+                                metrics.occurrencesExpanded(occurrences.size());
 
                                 if (!occurrences.isEmpty()) {
                                         for (Object occObj : occurrences) {
@@ -529,13 +1223,8 @@ public class FastmailCaldavClient {
                                                                 || dtstartStrRec.equals("0001-12-30")) {
                                                         continue;
                                                 }
-                                                summary = summary.replace("\"", "\\\"");
-                                                description = description.replace("\"", "\\\"");
-                                                location = location.replace("\"", "\\\"");
-                                                eventJsons.add(String.format(
-                                                                "{\"uid\":\"%s\",\"dtstart\":\"%s\",\"dtend\":\"%s\",\"summary\":\"%s\",\"description\":\"%s\",\"location\":\"%s\",\"rrule\":\"%s\"}",
-                                                                uid, dtstartStrRec, dtendStrRec, summary, description,
-                                                                location, rruleString));
+                                                events.add(new CalendarEvent(uid, dtstartStrRec, dtendStrRec, summary,
+                                                                description, location, rruleString, absoluteHref, etagValue));
                                         }
                                 } else {
                                         String dtstartStr = "";
@@ -553,13 +1242,8 @@ public class FastmailCaldavClient {
                                                         || dtstartStr.equals("0001-12-30")) {
                                                 continue;
                                         }
-                                        summary = summary.replace("\"", "\\\"");
-                                        description = description.replace("\"", "\\\"");
-                                        location = location.replace("\"", "\\\"");
-                                        eventJsons.add(String.format(
-                                                        "{\"uid\":\"%s\",\"dtstart\":\"%s\",\"dtend\":\"%s\",\"summary\":\"%s\",\"description\":\"%s\",\"location\":\"%s\",\"rrule\":\"%s\"}",
-                                                        uid, dtstartStr, dtendStr, summary, description, location,
-                                                        rruleString));
+                                        events.add(new CalendarEvent(uid, dtstartStr, dtendStr, summary, description,
+                                                        location, rruleString, absoluteHref, etagValue));
                                 }
                         } else {
                                 String dtstartStr = dtStartProperty != null
@@ -571,20 +1255,15 @@ public class FastmailCaldavClient {
                                                         .getDate() instanceof net.fortuna.ical4j.model.DateTime);
                                         dtendStr = formatIcal4jDate(dtEndProperty.getDate(), isAllDayEnd);
                                 }
-                                summary = summary.replace("\"", "\\\"");
-                                description = description.replace("\"", "\\\"");
-                                location = location.replace("\"", "\\\"");
                                 // Ignore invalid events (e.g., dtstartStr is "0001-12-30" or empty)
                                 if (dtstartStr == null || dtstartStr.isEmpty() || dtstartStr.equals("0001-12-30")) {
                                         continue;
                                 }
-                                eventJsons.add(String.format(
-                                                "{\"uid\":\"%s\",\"dtstart\":\"%s\",\"dtend\":\"%s\",\"summary\":\"%s\",\"description\":\"%s\",\"location\":\"%s\",\"rrule\":\"%s\"}",
-                                                uid, dtstartStr, dtendStr, summary, description, location,
-                                                rruleString));
+                                events.add(new CalendarEvent(uid, dtstartStr, dtendStr, summary, description,
+                                                location, rruleString, absoluteHref, etagValue));
                         }
                 }
-                return eventJsons;
+                return events;
         }
 
         /**
@@ -594,7 +1273,7 @@ public class FastmailCaldavClient {
          * @param time The time in HH:mm format
          * @return The date and time in iCalendar format (YYYYMMDDTHHmmssZ)
          */
-        private String toIcalFormat(String date, String time) {
+        String toIcalFormat(String date, String time) {
                 if (date == null || date.isEmpty()) {
                         return null;
                 }
@@ -619,99 +1298,102 @@ public class FastmailCaldavClient {
         }
 
         /**
-         * Finds the event URL by UID.
+         * Builds the full URL for an href from a multistatus response.
+         */
+        private String resolveHref(String href) {
+                if (href.startsWith("http")) {
+                        return href;
+                }
+                // Relative path, prepend server base
+                String base = caldavUrl.endsWith("/") ? caldavUrl.substring(0, caldavUrl.length() - 1) : caldavUrl;
+                return base + href;
+        }
+
+        /**
+         * Finds the event URL by UID. This is the miss path of {@link UidIndex}:
+         * the REPORT asks for the ETag and the UID only, not the whole
+         * calendar data.
          * 
          * @param uid The UID of the event
          * @return The full URL to the event, or null if not found
          */
         private String findEventUrlByUid(String uid) throws IOException {
-                // This method assumes the event URL contains the UID (as is typical for
-                // Fastmail/CalDAV)
-                // You may need to adjust this logic if your server uses a different pattern.
-                // We'll search for the event and extract its URL from the CalDAV REPORT
-                // response.
-                try {
-                        List<String> eventUrls = new ArrayList<>();
-                        CredentialsProvider credsProvider = new BasicCredentialsProvider();
-                        credsProvider.setCredentials(
-                                        AuthScope.ANY,
-                                        new UsernamePasswordCredentials(username, password));
-                        try (CloseableHttpClient httpclient = HttpClients.custom()
-                                        .setDefaultCredentialsProvider(credsProvider)
-                                        .build()) {
-
-                                URI uri = new URI(caldavUrl + calendarPath);
-                                String reportXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
-                                                "<c:calendar-query xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
-                                                "  <d:prop xmlns:d=\"DAV:\">\n" +
-                                                "    <d:getetag />\n" +
-                                                "    <c:calendar-data />\n" +
-                                                "  </d:prop>\n" +
-                                                "  <c:filter>\n" +
-                                                "    <c:comp-filter name=\"VCALENDAR\">\n" +
-                                                "      <c:comp-filter name=\"VEVENT\">\n" +
-                                                "        <c:prop-filter name=\"UID\">\n" +
-                                                "          <c:text-match collation=\"i;ascii-casemap\">" + uid
-                                                + "</c:text-match>\n" +
-                                                "        </c:prop-filter>\n" +
-                                                "      </c:comp-filter>\n" +
-                                                "    </c:comp-filter>\n" +
-                                                "  </c:filter>\n" +
-                                                "</c:calendar-query>";
-                                javax.xml.parsers.DocumentBuilderFactory factory = javax.xml.parsers.DocumentBuilderFactory
-                                                .newInstance();
-                                factory.setNamespaceAware(true);
-                                org.w3c.dom.Document doc = factory.newDocumentBuilder()
-                                                .parse(new java.io.ByteArrayInputStream(
-                                                                reportXml.getBytes(
-                                                                                java.nio.charset.StandardCharsets.UTF_8)));
-                                org.w3c.dom.Element reportElement = doc.getDocumentElement();
-
-                                org.apache.jackrabbit.webdav.version.report.ReportInfo reportInfo = new org.apache.jackrabbit.webdav.version.report.ReportInfo(
-                                                reportElement, 1);
-                                HttpReport report = new HttpReport(uri.toString(), reportInfo);
-                                report.addHeader("Depth", "infinity");
-                                report.setHeader("Content-Type", "application/xml");
-                                report.setEntity(new StringEntity(reportXml, "UTF-8"));
-                                try (CloseableHttpResponse response = httpclient.execute(report)) {
+                String reportXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                                "<c:calendar-query xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
+                                "  <d:prop xmlns:d=\"DAV:\">\n" +
+                                "    <d:getetag />\n" +
+                                "    <c:calendar-data>\n" +
+                                "      <c:comp name=\"VCALENDAR\">\n" +
+                                "        <c:comp name=\"VEVENT\">\n" +
+                                "          <c:prop name=\"UID\" />\n" +
+                                "        </c:comp>\n" +
+                                "      </c:comp>\n" +
+                                "    </c:calendar-data>\n" +
+                                "  </d:prop>\n" +
+                                "  <c:filter>\n" +
+                                "    <c:comp-filter name=\"VCALENDAR\">\n" +
+                                "      <c:comp-filter name=\"VEVENT\">\n" +
+                                "        <c:prop-filter name=\"UID\">\n" +
+                                "          <c:text-match collation=\"i;octet\">"
+                                + HttpDavRequest.xmlEscape(uid) + "</c:text-match>\n" +
+                                "        </c:prop-filter>\n" +
+                                "      </c:comp-filter>\n" +
+                                "    </c:comp-filter>\n" +
+                                "  </c:filter>\n" +
+                                "</c:calendar-query>";
+                for (String collectionUrl : collectionUrls()) {
+                        HttpDavRequest report = HttpDavRequest.report(collectionUrl, "infinity", reportXml);
+                        MultistatusReader.Response[] found = new MultistatusReader.Response[1];
+                        try (CloseableHttpResponse response = httpclient.execute(report)) {
+                                int statusCode = response.getStatusLine().getStatusCode();
+                                if (statusCode != HttpStatus.SC_MULTI_STATUS) {
                                         String responseBody = EntityUtils.toString(response.getEntity());
-                                        // Parse the XML response and extract the event URL
-                                        javax.xml.parsers.DocumentBuilderFactory respFactory = javax.xml.parsers.DocumentBuilderFactory
-                                                        .newInstance();
-                                        respFactory.setNamespaceAware(true);
-                                        org.w3c.dom.Document respDoc = respFactory.newDocumentBuilder()
-                                                        .parse(new java.io.ByteArrayInputStream(
-                                                                        responseBody.getBytes(
-                                                                                        java.nio.charset.StandardCharsets.UTF_8)));
-                                        org.w3c.dom.NodeList responses = respDoc.getElementsByTagNameNS("DAV:",
-                                                        "response");
-                                        for (int i = 0; i < responses.getLength(); i++) {
-                                                org.w3c.dom.Element responseElem = (org.w3c.dom.Element) responses
-                                                                .item(i);
-                                                org.w3c.dom.NodeList hrefs = responseElem.getElementsByTagNameNS("DAV:",
-                                                                "href");
-                                                if (hrefs.getLength() > 0) {
-                                                        String href = hrefs.item(0).getTextContent();
-                                                        // Build the full URL if needed
-                                                        if (!href.startsWith("http")) {
-                                                                // Relative path, prepend server base
-                                                                String base = caldavUrl.endsWith("/")
-                                                                                ? caldavUrl.substring(0,
-                                                                                                caldavUrl.length() - 1)
-                                                                                : caldavUrl;
-                                                                href = base + href;
-                                                        }
-                                                        eventUrls.add(href);
-                                                }
-                                        }
+                                        throw new IOException("UID lookup failed: " + statusCode + " - " + responseBody);
                                 }
+                                // text-match is a substring match, so only a resource with exactly this UID counts
+                                MultistatusReader.read(response.getEntity().getContent(), r -> {
+                                        if (found[0] == null && hasEventUid(r.calendarData(), uid)) {
+                                                found[0] = r;
+                                        }
+                                });
                         }
-                        if (!eventUrls.isEmpty()) {
-                                return eventUrls.get(0);
+                        if (found[0] != null) {
+                                uidIndex.put(uid, found[0].href(), found[0].etag());
+                                return resolveHref(found[0].href());
                         }
-                } catch (Exception e) {
-                        System.err.println("Error finding event URL by UID: " + e.getMessage());
                 }
                 return null;
         }
+
+        /**
+         * Whether a VEVENT in the calendar data, which may hold nothing but
+         * UIDs, has exactly this UID.
+         */
+        static boolean hasEventUid(String calendarData, String uid) {
+                if (calendarData == null) {
+                        return false;
+                }
+                Deque<String> components = new ArrayDeque<>();
+                for (String line : calendarData.replaceAll("\\r?\\n[ \\t]", "").split("\\r?\\n")) {
+                        int colon = line.indexOf(':');
+                        if (colon < 0) {
+                                continue;
+                        }
+                        String name = line.substring(0, colon);
+                        int semicolon = name.indexOf(';');
+                        if (semicolon >= 0) {
+                                name = name.substring(0, semicolon);
+                        }
+                        String value = line.substring(colon + 1);
+                        if (name.equalsIgnoreCase("BEGIN")) {
+                                components.push(value.toUpperCase(Locale.ROOT));
+                        } else if (name.equalsIgnoreCase("END")) {
+                                components.poll();
+                        } else if (name.equalsIgnoreCase("UID") && "VEVENT".equals(components.peek())
+                                        && value.equals(uid)) {
+                                return true;
+                        }
+                }
+                return false;
+        }
 }
@@ -0,0 +1,372 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.component.VFreeBusy;
+import net.fortuna.ical4j.model.parameter.FbType;
+import net.fortuna.ical4j.model.property.FreeBusy;
+import net.fortuna.ical4j.model.property.Status;
+import net.fortuna.ical4j.model.property.Transp;
+
+/**
+ * Busy and free time over a date range, for one or several calendars.
+ *
+ * Busy intervals come from the synced store when the calendar has one (no
+ * network round trip beyond the sync), otherwise from a CalDAV
+ * {@code free-busy-query} REPORT, and for servers that reject that from a
+ * time-ranged {@code calendar-query} expanded locally. Transparent and
+ * cancelled events do not count as busy. Intervals from all calendars are
+ * merged with one sort-and-sweep pass.
+ */
+@Component
+public class FreeBusyService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FreeBusyService.class);
+
+    /**
+     * A half-open interval {@code [start, end)} in epoch milliseconds.
+     */
+    public record Interval(long start, long end) {
+    }
+
+    /**
+     * A busy or free window as returned by the tools, in local time.
+     */
+    public record TimeSlot(String start, String end, long minutes) {
+    }
+
+    private static final DateTimeFormatter SLOT_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+    private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneId.of("UTC"));
+
+    @Value("${fastmail.caldav.url}")
+    private String caldavUrl;
+
+    @Value("${fastmail.calendar.path}")
+    private String calendarPath;
+
+    @Value("${fastmail.freebusy.workday-start:0900}")
+    private String defaultWorkdayStart;
+
+    @Value("${fastmail.freebusy.workday-end:1800}")
+    private String defaultWorkdayEnd;
+
+    private final CloseableHttpClient httpclient;
+
+    private final CalendarSyncEngine syncEngine;
+
+    private final OccurrenceIndex occurrenceIndex;
+
+    private final ICalendarParsingPipeline parsingPipeline;
+
+    private final CalendarDiscovery calendarDiscovery;
+
+    private final ExecutorService requestExecutor;
+
+    private final Set<String> noFreeBusyQuery = ConcurrentHashMap.newKeySet();
+
+    public FreeBusyService(CloseableHttpClient caldavHttpClient, CalendarSyncEngine syncEngine,
+            OccurrenceIndex occurrenceIndex, ICalendarParsingPipeline parsingPipeline,
+            CalendarDiscovery calendarDiscovery, ExecutorService caldavRequestExecutor) {
+        this.httpclient = caldavHttpClient;
+        this.syncEngine = syncEngine;
+        this.occurrenceIndex = occurrenceIndex;
+        this.parsingPipeline = parsingPipeline;
+        this.calendarDiscovery = calendarDiscovery;
+        this.requestExecutor = caldavRequestExecutor;
+    }
+
+    /**
+     * Merged busy intervals over {@code [from, toExclusive)}.
+     *
+     * @param calendars Empty for the configured calendars, "all" or a
+     *                  comma-separated list of calendar names
+     */
+    public List<Interval> busy(LocalDate from, LocalDate toExclusive, String calendars) throws IOException {
+        long start = from.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        long end = toExclusive.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+        List<CalendarDiscovery.CalendarInfo> selected = new ArrayList<>();
+        if (calendars != null && !calendars.isBlank()) {
+            selected.addAll(calendarDiscovery.select(calendars));
+        } else if (calendarDiscovery.isEnabled()) {
+            selected.addAll(calendarDiscovery.selectedCalendars());
+        } else {
+            selected.add(new CalendarDiscovery.CalendarInfo(caldavUrl + calendarPath, null, null, null));
+        }
+
+        List<Future<List<Interval>>> futures = new ArrayList<>();
+        for (CalendarDiscovery.CalendarInfo calendar : selected) {
+            futures.add(requestExecutor.submit(() -> busyIn(calendar, start, end)));
+        }
+        List<Interval> busy = new ArrayList<>();
+        try {
+            for (Future<List<Interval>> future : futures) {
+                busy.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading free/busy", e);
+        } catch (ExecutionException e) {
+            futures.forEach(future -> future.cancel(true));
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        return merge(busy);
+    }
+
+    /**
+     * Free windows of at least {@code minMinutes} inside the working hours of
+     * each day in {@code [from, toExclusive)}.
+     *
+     * @param workdayStart Start of the working day as HHmm, default from
+     *                     {@code fastmail.freebusy.workday-start}
+     * @param workdayEnd   End of the working day as HHmm, default from
+     *                     {@code fastmail.freebusy.workday-end}
+     */
+    public List<Interval> free(LocalDate from, LocalDate toExclusive, long minMinutes, String workdayStart,
+            String workdayEnd, String calendars) throws IOException {
+        LocalTime dayStart = parseTime(workdayStart == null || workdayStart.isBlank() ? defaultWorkdayStart
+                : workdayStart);
+        LocalTime dayEnd = parseTime(workdayEnd == null || workdayEnd.isBlank() ? defaultWorkdayEnd : workdayEnd);
+        if (!dayEnd.isAfter(dayStart) && !dayEnd.equals(LocalTime.MIDNIGHT)) {
+            throw new IllegalArgumentException("workdayEnd must be after workdayStart");
+        }
+
+        List<Interval> workingHours = new ArrayList<>();
+        for (LocalDate day = from; day.isBefore(toExclusive); day = day.plusDays(1)) {
+            long start = day.atTime(dayStart).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            long end = (dayEnd.equals(LocalTime.MIDNIGHT) ? day.plusDays(1).atStartOfDay() : day.atTime(dayEnd))
+                    .atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            workingHours.add(new Interval(start, end));
+        }
+        return gaps(busy(from, toExclusive, calendars), workingHours, Math.max(0, minMinutes) * 60_000);
+    }
+
+    public static List<TimeSlot> toSlots(List<Interval> intervals) {
+        List<TimeSlot> slots = new ArrayList<>(intervals.size());
+        for (Interval interval : intervals) {
+            slots.add(new TimeSlot(
+                    SLOT_FORMAT.format(Instant.ofEpochMilli(interval.start()).atZone(ZoneId.systemDefault())),
+                    SLOT_FORMAT.format(Instant.ofEpochMilli(interval.end()).atZone(ZoneId.systemDefault())),
+                    (interval.end() - interval.start()) / 60_000));
+        }
+        return slots;
+    }
+
+    /**
+     * Sort-and-sweep: orders by start and folds every interval that overlaps or
+     * touches the previous one into it.
+     */
+    static List<Interval> merge(List<Interval> intervals) {
+        List<Interval> sorted = new ArrayList<>(intervals);
+        sorted.sort(Comparator.comparingLong(Interval::start));
+        List<Interval> merged = new ArrayList<>();
+        Interval current = null;
+        for (Interval interval : sorted) {
+            if (interval.end() <= interval.start()) {
+                continue;
+            }
+            if (current != null && interval.start() <= current.end()) {
+                current = new Interval(current.start(), Math.max(current.end(), interval.end()));
+            } else {
+                if (current != null) {
+                    merged.add(current);
+                }
+                current = interval;
+            }
+        }
+        if (current != null) {
+            merged.add(current);
+        }
+        return merged;
+    }
+
+    /**
+     * The parts of each window not covered by the merged busy intervals, with
+     * at least {@code minMillis} length.
+     */
+    static List<Interval> gaps(List<Interval> mergedBusy, List<Interval> windows, long minMillis) {
+        List<Interval> free = new ArrayList<>();
+        int b = 0;
+        for (Interval window : windows) {
+            // Both lists are sorted, so the busy cursor only moves forward
+            while (b < mergedBusy.size() && mergedBusy.get(b).end() <= window.start()) {
+                b++;
+            }
+            long cursor = window.start();
+            for (int i = b; i < mergedBusy.size() && mergedBusy.get(i).start() < window.end(); i++) {
+                Interval busy = mergedBusy.get(i);
+                if (busy.start() > cursor && busy.start() - cursor >= Math.max(1, minMillis)) {
+                    free.add(new Interval(cursor, busy.start()));
+                }
+                cursor = Math.max(cursor, busy.end());
+            }
+            if (window.end() > cursor && window.end() - cursor >= Math.max(1, minMillis)) {
+                free.add(new Interval(cursor, window.end()));
+            }
+        }
+        return free;
+    }
+
+    private List<Interval> busyIn(CalendarDiscovery.CalendarInfo calendar, long from, long to) throws IOException {
+        EventStore store = syncEngine.sync(calendar.url(), calendar.syncToken());
+        if (store != null) {
+            List<Interval> busy = new ArrayList<>();
+            for (OccurrenceIndex.Hit hit : occurrenceIndex.overlapping(store, from, to)) {
+                List<VEvent> components = hit.event().calendar()
+                        .getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+                OccurrenceIndex.Occurrence occ = hit.occurrence();
+                if (isBusy(components.get(occ.component()))) {
+                    busy.add(clip(occ.start(), occ.end(), from, to));
+                }
+            }
+            return busy;
+        }
+        if (!noFreeBusyQuery.contains(calendar.url())) {
+            List<Interval> busy = freeBusyQuery(calendar.url(), from, to);
+            if (busy != null) {
+                return busy;
+            }
+            LOG.info("free-busy-query not available for {}, computing busy time from calendar-query",
+                    calendar.url());
+            noFreeBusyQuery.add(calendar.url());
+        }
+        return busyFromCalendarQuery(calendar.url(), from, to);
+    }
+
+    /**
+     * RFC 4791 section 7.10.
+     *
+     * @return The busy intervals, or null if the server does not support the
+     *         report on this collection
+     */
+    private List<Interval> freeBusyQuery(String collectionUrl, long from, long to) throws IOException {
+        String reportXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                "<c:free-busy-query xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
+                "  <c:time-range start=\"" + UTC_FORMAT.format(Instant.ofEpochMilli(from)) + "\" end=\""
+                + UTC_FORMAT.format(Instant.ofEpochMilli(to)) + "\" />\n" +
+                "</c:free-busy-query>";
+        try (CloseableHttpResponse response = httpclient
+                .execute(HttpDavRequest.report(collectionUrl, "infinity", reportXml))) {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                return null;
+            }
+            Calendar calendar = ICalendarParser.parse(EntityUtils.toString(response.getEntity(), "UTF-8"));
+            List<Interval> busy = new ArrayList<>();
+            List<VFreeBusy> components = calendar.getComponents(net.fortuna.ical4j.model.Component.VFREEBUSY);
+            for (VFreeBusy component : components) {
+                List<FreeBusy> properties = component.getProperties(Property.FREEBUSY);
+                for (FreeBusy freeBusy : properties) {
+                    Parameter type = freeBusy.getParameter(Parameter.FBTYPE);
+                    if (FbType.FREE.equals(type)) {
+                        continue;
+                    }
+                    for (Period period : freeBusy.getPeriods()) {
+                        busy.add(clip(period.getStart().getTime(), period.getEnd().getTime(), from, to));
+                    }
+                }
+            }
+            return busy;
+        } catch (net.fortuna.ical4j.data.ParserException e) {
+            LOG.warn("Unreadable free-busy-query response from {}: {}", collectionUrl, e.getMessage());
+            return null;
+        }
+    }
+
+    private List<Interval> busyFromCalendarQuery(String collectionUrl, long from, long to) throws IOException {
+        String reportXml = "<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n" +
+                "<c:calendar-query xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n" +
+                "  <d:prop xmlns:d=\"DAV:\">\n" +
+                "    <c:calendar-data />\n" +
+                "  </d:prop>\n" +
+                "  <c:filter>\n" +
+                "    <c:comp-filter name=\"VCALENDAR\"><c:comp-filter name=\"VEVENT\"><c:time-range start=\""
+                + UTC_FORMAT.format(Instant.ofEpochMilli(from)) + "\" end=\""
+                + UTC_FORMAT.format(Instant.ofEpochMilli(to)) + "\" /></c:comp-filter></c:comp-filter>\n" +
+                "  </c:filter>\n" +
+                "</c:calendar-query>";
+        ICalendarParsingPipeline.Batch<Interval> batch = parsingPipeline.batch((href, calendar) -> {
+            List<Interval> busy = new ArrayList<>();
+            List<VEvent> components = calendar.getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+            for (OccurrenceIndex.Occurrence occ : OccurrenceIndex.occurrencesOf(calendar, from, to)) {
+                if (isBusy(components.get(occ.component()))) {
+                    busy.add(clip(occ.start(), occ.end(), from, to));
+                }
+            }
+            return busy;
+        });
+        try (CloseableHttpResponse response = httpclient
+                .execute(HttpDavRequest.report(collectionUrl, "infinity", reportXml))) {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode != HttpStatus.SC_MULTI_STATUS) {
+                String responseBody = EntityUtils.toString(response.getEntity());
+                throw new IOException("calendar-query failed: " + statusCode + " - " + responseBody);
+            }
+            MultistatusReader.read(response.getEntity().getContent(), r -> {
+                String calendarData = r.calendarData();
+                if (calendarData != null && !calendarData.isEmpty()) {
+                    batch.add(r.href(), calendarData);
+                }
+            });
+        }
+        return batch.join();
+    }
+
+    private static boolean isBusy(VEvent event) {
+        Transp transp = event.getTransparency();
+        if (transp != null && Transp.TRANSPARENT.getValue().equals(transp.getValue())) {
+            return false;
+        }
+        Status status = event.getStatus();
+        return status == null || !Status.VEVENT_CANCELLED.getValue().equals(status.getValue());
+    }
+
+    private static Interval clip(long start, long end, long from, long to) {
+        return new Interval(Math.max(start, from), Math.min(end, to));
+    }
+
+    private static LocalTime parseTime(String hhmm) {
+        String value = hhmm.trim();
+        if (!value.matches("\\d{4}")) {
+            throw new IllegalArgumentException("Time must be in HHmm format: " + hhmm);
+        }
+        int hours = Integer.parseInt(value.substring(0, 2));
+        int minutes = Integer.parseInt(value.substring(2, 4));
+        if (hours == 24 && minutes == 0) {
+            return LocalTime.MIDNIGHT;
+        }
+        return LocalTime.of(hours, minutes);
+    }
+}
@@ -0,0 +1,53 @@
+package com.alp54.fastmail_caldav;
+
+import java.net.URI;
+
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.entity.StringEntity;
+
+/**
+ * Generic WebDAV request (REPORT, PROPFIND, ...) carrying a pre-built XML body.
+ *
+ * Unlike jackrabbit's {@code HttpReport}, the body does not have to be parsed
+ * into a DOM first just to be serialized again.
+ */
+final class HttpDavRequest extends HttpEntityEnclosingRequestBase {
+
+    private final String method;
+
+    HttpDavRequest(String method, String url, String depth, String xmlBody) {
+        this.method = method;
+        setURI(URI.create(url));
+        if (depth != null) {
+            setHeader("Depth", depth);
+        }
+        setHeader("Content-Type", "application/xml; charset=utf-8");
+        setEntity(new StringEntity(xmlBody, "UTF-8"));
+    }
+
+    static HttpDavRequest report(String url, String depth, String xmlBody) {
+        return new HttpDavRequest("REPORT", url, depth, xmlBody);
+    }
+
+    static HttpDavRequest propfind(String url, String depth, String xmlBody) {
+        return new HttpDavRequest("PROPFIND", url, depth, xmlBody);
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Escapes text for use inside an XML element or attribute.
+     */
+    static String xmlEscape(String text) {
+        if (text == null) {
+            return "";
+        }
+        return text.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;")
+                .replace("\"", "&quot;");
+    }
+}
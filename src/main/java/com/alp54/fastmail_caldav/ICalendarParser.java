@@ -0,0 +1,33 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import net.fortuna.ical4j.data.CalendarBuilder;
+import net.fortuna.ical4j.data.ParserException;
+import net.fortuna.ical4j.model.Calendar;
+
+/**
+ * Turns raw {@code calendar-data} text into an ical4j {@link Calendar}.
+ *
+ * Builders are not thread-safe but are cheap to reuse, so each thread keeps
+ * its own. Reusing a builder also keeps its time zone registry warm.
+ */
+final class ICalendarParser {
+
+    private static final ThreadLocal<CalendarBuilder> BUILDERS = ThreadLocal.withInitial(CalendarBuilder::new);
+
+    private ICalendarParser() {
+    }
+
+    static Calendar parse(String icalendarString) throws IOException, ParserException {
+        CalendarBuilder builder = BUILDERS.get();
+        // Always ensure we have a VCALENDAR wrapper, and only parse ONCE
+        if (icalendarString.trim().startsWith("BEGIN:VEVENT")) {
+            String fakeCalendar = "BEGIN:VCALENDAR\nVERSION:2.0\nPRODID:-//Cline Helper//EN\n"
+                    + icalendarString.trim() + "\nEND:VCALENDAR";
+            return builder.build(new StringReader(fakeCalendar));
+        }
+        return builder.build(new StringReader(icalendarString));
+    }
+}
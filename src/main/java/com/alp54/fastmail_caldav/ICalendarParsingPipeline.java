@@ -0,0 +1,180 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Calendar;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Parses {@code calendar-data} blobs on a bounded worker pool.
+ *
+ * Blobs are submitted as they come off the multistatus stream, so parsing
+ * overlaps with the network read. Results are collected in submission order,
+ * which keeps the output in the order the server sent it. A parallelism of 1
+ * parses inline on the calling thread, exactly like the old serial path.
+ *
+ * At most twice as many blobs as there are workers are queued or being
+ * parsed at a time, across all batches; {@link Batch#add} waits for one of
+ * them to finish beyond that. The reader of the response is held back with
+ * it, so the blobs in memory stay a small multiple of the largest event
+ * rather than the whole response. {@link #parse} leaves the limit to the
+ * caller, whose {@code flatMap} concurrency bounds it without blocking.
+ */
+@Component
+public class ICalendarParsingPipeline implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ICalendarParsingPipeline.class);
+
+    /**
+     * Work done on a parsed calendar before its results are collected.
+     */
+    @FunctionalInterface
+    public interface ParseTask<R> {
+        List<R> apply(String href, Calendar calendar) throws Exception;
+    }
+
+    private final int parallelism;
+
+    private final ExecutorService executor;
+
+    private final Semaphore inFlight;
+
+    private final CaldavMetrics metrics;
+
+    public ICalendarParsingPipeline(
+            @Value("${fastmail.parse.parallelism:0}") int configuredParallelism, CaldavMetrics metrics) {
+        this.metrics = metrics;
+        this.parallelism = configuredParallelism > 0 ? configuredParallelism
+                : Runtime.getRuntime().availableProcessors();
+        if (parallelism > 1) {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "ical-parse-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.inFlight = new Semaphore(2 * parallelism);
+        } else {
+            this.executor = null;
+            this.inFlight = null;
+        }
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Starts a new batch; blobs added to it share the pipeline's worker pool.
+     */
+    public <R> Batch<R> batch(ParseTask<R> task) {
+        return new Batch<>(task);
+    }
+
+    /**
+     * Parses one blob on the worker pool without blocking the caller, e.g. as
+     * it comes off a non-blocking multistatus stream.
+     */
+    public <R> Mono<List<R>> parse(String href, String icalendar, ParseTask<R> task) {
+        if (executor == null) {
+            return Mono.fromSupplier(() -> run(task, href, icalendar));
+        }
+        return Mono.fromFuture(() -> CompletableFuture.supplyAsync(() -> run(task, href, icalendar), executor));
+    }
+
+    @Override
+    public void destroy() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * An ordered set of blobs being parsed.
+     */
+    public final class Batch<R> {
+
+        private final ParseTask<R> task;
+
+        private final List<CompletableFuture<List<R>>> pending = new ArrayList<>();
+
+        private Batch(ParseTask<R> task) {
+            this.task = task;
+        }
+
+        /**
+         * Queues a blob, waiting while the workers are saturated.
+         */
+        public void add(String href, String icalendar) {
+            if (executor == null) {
+                pending.add(CompletableFuture.completedFuture(run(task, href, icalendar)));
+                return;
+            }
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                // Keep the interrupt for the reader, which stops at its next read
+                Thread.currentThread().interrupt();
+                pending.add(CompletableFuture.completedFuture(run(task, href, icalendar)));
+                return;
+            }
+            try {
+                pending.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return run(task, href, icalendar);
+                    } finally {
+                        inFlight.release();
+                    }
+                }, executor));
+            } catch (RejectedExecutionException e) {
+                inFlight.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Waits for all blobs and returns their results in submission order.
+         */
+        public List<R> join() {
+            List<R> results = new ArrayList<>();
+            for (CompletableFuture<List<R>> future : pending) {
+                results.addAll(future.join());
+            }
+            pending.clear();
+            return results;
+        }
+    }
+
+    private <R> List<R> run(ParseTask<R> task, String href, String icalendar) {
+        Calendar calendar;
+        try {
+            calendar = metrics.phase("ical", () -> ICalendarParser.parse(icalendar));
+        } catch (Exception e) {
+            metrics.eventsParsed(false);
+            LOG.warn("Failed to parse iCalendar data{}: {}", href == null ? "" : " for " + href, e.getMessage());
+            return Collections.emptyList();
+        }
+        metrics.eventsParsed(true);
+        try {
+            return task.apply(href, calendar);
+        } catch (Exception e) {
+            LOG.warn("Failed to process iCalendar data{}: {}", href == null ? "" : " for " + href, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Half-open intervals {@code [start, end)} in a treap ordered by start and
+ * augmented with the maximum end of each subtree.
+ *
+ * Insert and remove are O(log n) expected; an overlap or point query is
+ * O(log n + k) and returns its hits ordered by start. Zero-length intervals
+ * are reported when they start inside the queried range. Not thread-safe.
+ */
+final class IntervalTree<T> {
+
+    /**
+     * One stored interval; {@code id} is unique per tree and is what
+     * {@link IntervalTree#remove(long, long)} needs besides the start.
+     */
+    record Entry<T>(long id, long start, long end, T value) {
+    }
+
+    private static final class Node<T> {
+
+        private final long id;
+        private final long start;
+        private final long end;
+        private final T value;
+        private final int priority;
+        private long maxEnd;
+        private Node<T> left;
+        private Node<T> right;
+
+        private Node(long id, long start, long end, T value, int priority) {
+            this.id = id;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.priority = priority;
+            this.maxEnd = end;
+        }
+    }
+
+    private final SplittableRandom random = new SplittableRandom();
+
+    private Node<T> root;
+
+    private int size;
+
+    private long nextId;
+
+    /**
+     * @return The id of the new entry
+     */
+    long insert(long start, long end, T value) {
+        Node<T> node = new Node<>(nextId++, start, end, value, random.nextInt());
+        root = insert(root, node);
+        size++;
+        return node.id;
+    }
+
+    /**
+     * @return Whether an entry with that start and id was removed
+     */
+    boolean remove(long start, long id) {
+        int before = size;
+        root = remove(root, start, id);
+        return size < before;
+    }
+
+    /**
+     * Entries overlapping {@code [from, to)}, ordered by start.
+     */
+    List<Entry<T>> overlapping(long from, long to) {
+        List<Entry<T>> hits = new ArrayList<>();
+        collect(root, from, to, hits);
+        return hits;
+    }
+
+    /**
+     * Entries containing the instant {@code at}.
+     */
+    List<Entry<T>> containing(long at) {
+        return overlapping(at, at + 1);
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        root = null;
+        size = 0;
+    }
+
+    private Node<T> insert(Node<T> node, Node<T> added) {
+        if (node == null) {
+            return added;
+        }
+        if (compare(added.start, added.id, node) < 0) {
+            node.left = insert(node.left, added);
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, added);
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        update(node);
+        return node;
+    }
+
+    private Node<T> remove(Node<T> node, long start, long id) {
+        if (node == null) {
+            return null;
+        }
+        int cmp = compare(start, id, node);
+        if (cmp < 0) {
+            node.left = remove(node.left, start, id);
+        } else if (cmp > 0) {
+            node.right = remove(node.right, start, id);
+        } else {
+            size--;
+            return merge(node.left, node.right);
+        }
+        update(node);
+        return node;
+    }
+
+    private Node<T> merge(Node<T> left, Node<T> right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private void collect(Node<T> node, long from, long to, List<Entry<T>> hits) {
+        // Nothing below ends after 'from', except zero-length intervals exactly at 'from'
+        if (node == null || node.maxEnd < from) {
+            return;
+        }
+        collect(node.left, from, to, hits);
+        if (node.start >= to) {
+            // This node and its right subtree all start at or after 'to'
+            return;
+        }
+        if (node.end > from || (node.end == node.start && node.start >= from)) {
+            hits.add(new Entry<>(node.id, node.start, node.end, node.value));
+        }
+        collect(node.right, from, to, hits);
+    }
+
+    private static int compare(long start, long id, Node<?> node) {
+        int cmp = Long.compare(start, node.start);
+        return cmp != 0 ? cmp : Long.compare(id, node.id);
+    }
+
+    private Node<T> rotateRight(Node<T> node) {
+        Node<T> pivot = node.left;
+        node.left = pivot.right;
+        pivot.right = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private Node<T> rotateLeft(Node<T> node) {
+        Node<T> pivot = node.right;
+        node.right = pivot.left;
+        pivot.left = node;
+        update(node);
+        update(pivot);
+        return pivot;
+    }
+
+    private static void update(Node<?> node) {
+        long maxEnd = node.end;
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.maxEnd);
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.maxEnd);
+        }
+        node.maxEnd = maxEnd;
+    }
+}
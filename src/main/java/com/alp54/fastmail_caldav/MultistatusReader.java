@@ -0,0 +1,305 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.fasterxml.aalto.AsyncByteBufferFeeder;
+import com.fasterxml.aalto.AsyncXMLInputFactory;
+import com.fasterxml.aalto.AsyncXMLStreamReader;
+import com.fasterxml.aalto.stax.InputFactoryImpl;
+
+import reactor.core.publisher.Flux;
+
+/**
+ * Streaming reader for WebDAV {@code multistatus} bodies.
+ *
+ * The response is pulled straight from the HTTP entity stream with StAX and
+ * handed to a consumer one {@code response} element at a time, so memory use
+ * is bounded by the largest single resource rather than by the whole report.
+ * Only properties reported with a 2xx {@code propstat} status are kept. A body
+ * that arrives in chunks can be decoded the same way without blocking, with
+ * Aalto's asynchronous StAX parser.
+ */
+final class MultistatusReader {
+
+    static final String DAV_NS = "DAV:";
+    static final String CALDAV_NS = "urn:ietf:params:xml:ns:caldav";
+
+    private static final XMLInputFactory FACTORY = createFactory();
+
+    private static final AsyncXMLInputFactory ASYNC_FACTORY = (AsyncXMLInputFactory) configure(
+            new InputFactoryImpl());
+
+    /**
+     * One {@code response} element.
+     *
+     * @param href       The resource href, as sent by the server
+     * @param status     The response-level status line (e.g. for deleted members
+     *                   in a sync report), or null
+     * @param properties Text content of each property, keyed by local name
+     * @param markers    Local names of elements nested inside properties, e.g.
+     *                   the resource types or the supported reports
+     */
+    record Response(String href, String status, Map<String, String> properties, Set<String> markers) {
+
+        String etag() {
+            return properties.get("getetag");
+        }
+
+        String calendarData() {
+            return properties.get("calendar-data");
+        }
+
+        boolean isNotFound() {
+            return status != null && status.contains(" 404");
+        }
+
+        /**
+         * A 507, which a server sends for the request-URI of a truncated
+         * sync report.
+         */
+        boolean isInsufficientStorage() {
+            return status != null && status.contains(" 507");
+        }
+    }
+
+    private MultistatusReader() {
+    }
+
+    /**
+     * Reads a multistatus body and passes each response to the consumer.
+     *
+     * @return The top-level {@code sync-token}, if the body carried one
+     */
+    static String read(InputStream in, Consumer<Response> consumer) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = FACTORY.createXMLStreamReader(in);
+            return read(reader, consumer);
+        } catch (XMLStreamException e) {
+            throw new IOException("Invalid multistatus response: " + e.getMessage(), e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing left to release
+                }
+            }
+        }
+    }
+
+    private static String read(XMLStreamReader reader, Consumer<Response> consumer) throws XMLStreamException {
+        Decoder decoder = new Decoder(consumer);
+        while (reader.hasNext()) {
+            decoder.accept(reader.next(), reader);
+        }
+        return decoder.syncToken;
+    }
+
+    /**
+     * Decodes a multistatus body that arrives as a stream of byte buffers,
+     * e.g. from a non-blocking HTTP client, without blocking for more input.
+     *
+     * Every response is emitted as soon as its closing tag has been fed, so
+     * downstream work on the first resources overlaps with the transfer of
+     * the rest of the body.
+     */
+    static Flux<Response> read(Flux<List<ByteBuffer>> body) {
+        return Flux.defer(() -> {
+            AsyncXMLStreamReader<AsyncByteBufferFeeder> reader = ASYNC_FACTORY.createAsyncForByteBuffer();
+            List<Response> decoded = new ArrayList<>();
+            Decoder decoder = new Decoder(decoded::add);
+            return body.concatMap(buffers -> {
+                try {
+                    for (ByteBuffer buffer : buffers) {
+                        reader.getInputFeeder().feedInput(buffer);
+                        drain(reader, decoder);
+                    }
+                    return Flux.fromIterable(take(decoded));
+                } catch (XMLStreamException e) {
+                    return Flux.error(new IOException("Invalid multistatus response: " + e.getMessage(), e));
+                }
+            }, 1).concatWith(Flux.defer(() -> {
+                try {
+                    reader.getInputFeeder().endOfInput();
+                    drain(reader, decoder);
+                    return Flux.fromIterable(take(decoded));
+                } catch (XMLStreamException e) {
+                    return Flux.error(new IOException("Invalid multistatus response: " + e.getMessage(), e));
+                }
+            })).doFinally(signal -> {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing left to release
+                }
+            });
+        });
+    }
+
+    /**
+     * Passes every event the fed input completes to the decoder.
+     */
+    private static void drain(AsyncXMLStreamReader<?> reader, Decoder decoder) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == AsyncXMLStreamReader.EVENT_INCOMPLETE) {
+                return;
+            }
+            decoder.accept(event, reader);
+        }
+    }
+
+    private static List<Response> take(List<Response> decoded) {
+        if (decoded.isEmpty()) {
+            return List.of();
+        }
+        List<Response> taken = List.copyOf(decoded);
+        decoded.clear();
+        return taken;
+    }
+
+    /**
+     * The multistatus state machine, fed one StAX event at a time by either
+     * the blocking or the non-blocking reader.
+     */
+    private static final class Decoder {
+
+        private final Consumer<Response> consumer;
+
+        private String syncToken;
+
+        private int depth;
+
+        // State of the response element being read
+        private String href;
+        private String status;
+        private Map<String, String> properties;
+        private Set<String> markers;
+
+        // State of the propstat element being read
+        private String propstatStatus;
+        private Map<String, String> propstatProperties;
+        private Set<String> propstatMarkers;
+
+        // Current property and text capture
+        private String property;
+        private int propertyDepth;
+        private StringBuilder text;
+
+        Decoder(Consumer<Response> consumer) {
+            this.consumer = consumer;
+        }
+
+        void accept(int event, XMLStreamReader reader) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    depth++;
+                    String localName = reader.getLocalName();
+                    boolean dav = DAV_NS.equals(reader.getNamespaceURI());
+                    if (property != null) {
+                        propstatMarkers.add(localName);
+                        if (text == null) {
+                            text = new StringBuilder();
+                        }
+                    } else if (depth == 2 && dav && "response".equals(localName)) {
+                        href = null;
+                        status = null;
+                        properties = new HashMap<>();
+                        markers = new HashSet<>();
+                    } else if (depth == 2 && dav && "sync-token".equals(localName)) {
+                        text = new StringBuilder();
+                    } else if (properties != null) {
+                        if (depth == 3 && dav && ("href".equals(localName) || "status".equals(localName))) {
+                            text = new StringBuilder();
+                        } else if (depth == 3 && dav && "propstat".equals(localName)) {
+                            propstatStatus = null;
+                            propstatProperties = new HashMap<>();
+                            propstatMarkers = new HashSet<>();
+                        } else if (depth == 4 && dav && "status".equals(localName)) {
+                            text = new StringBuilder();
+                        } else if (depth == 5 && propstatProperties != null) {
+                            property = localName;
+                            propertyDepth = depth;
+                            text = new StringBuilder();
+                        }
+                    }
+                    break;
+                }
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (text != null) {
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT: {
+                    String localName = reader.getLocalName();
+                    if (property != null) {
+                        if (depth == propertyDepth) {
+                            propstatProperties.put(property, text == null ? "" : text.toString().trim());
+                            property = null;
+                            text = null;
+                        }
+                    } else if (depth == 2 && properties != null && "response".equals(localName)) {
+                        if (href != null) {
+                            consumer.accept(new Response(href, status, properties, markers));
+                        }
+                        properties = null;
+                        markers = null;
+                    } else if (depth == 2 && text != null && "sync-token".equals(localName)) {
+                        syncToken = text.toString().trim();
+                        text = null;
+                    } else if (depth == 3 && properties != null) {
+                        if ("href".equals(localName) && text != null) {
+                            href = text.toString().trim();
+                        } else if ("status".equals(localName) && text != null) {
+                            status = text.toString().trim();
+                        } else if ("propstat".equals(localName) && propstatProperties != null) {
+                            if (propstatStatus == null || propstatStatus.matches("\\S+ 2\\d\\d.*")) {
+                                properties.putAll(propstatProperties);
+                                markers.addAll(propstatMarkers);
+                            }
+                            propstatProperties = null;
+                            propstatMarkers = null;
+                        }
+                        text = null;
+                    } else if (depth == 4 && text != null && propstatProperties != null
+                            && "status".equals(localName)) {
+                        propstatStatus = text.toString().trim();
+                        text = null;
+                    }
+                    depth--;
+                    break;
+                }
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static XMLInputFactory createFactory() {
+        return configure(XMLInputFactory.newInstance());
+    }
+
+    private static XMLInputFactory configure(XMLInputFactory factory) {
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return factory;
+    }
+}
@@ -0,0 +1,307 @@
+package com.alp54.fastmail_caldav;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.DateTime;
+import net.fortuna.ical4j.model.Period;
+import net.fortuna.ical4j.model.component.VEvent;
+import net.fortuna.ical4j.model.property.RecurrenceId;
+
+/**
+ * Materialized occurrences of the synced events over a rolling window.
+ *
+ * Every stored resource is expanded once per ETag over
+ * {@code [today - pastDays, today + futureDays)} and its occurrences are kept
+ * in one {@link IntervalTree} per store, so "what overlaps [a, b)" is an
+ * O(log n + k) lookup instead of a scan over every series. The tree is built
+ * on the first query and then kept current by the store's put and remove
+ * callbacks; it is rebuilt when the window rolls over to a new day. Queries
+ * reaching outside the window are expanded on demand and not cached.
+ */
+@Component
+public class OccurrenceIndex implements EventStore.Listener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OccurrenceIndex.class);
+
+    /**
+     * One occurrence of the VEVENT at position {@code component} in the
+     * resource's list of VEVENTs.
+     */
+    public record Occurrence(int component, long start, long end) {
+    }
+
+    /**
+     * An occurrence together with the version of the resource it was expanded
+     * from.
+     */
+    public record Hit(EventStore.StoredEvent event, Occurrence occurrence) {
+    }
+
+    /**
+     * Expanded occurrences of one resource, sorted by start.
+     */
+    private record Series(long[] starts, long[] ends, int[] components, long maxDuration) {
+
+        List<Occurrence> occurrences(long from, long to) {
+            // No occurrence starting before (from - maxDuration) can still be running at 'from'
+            int i = Arrays.binarySearch(starts, from - maxDuration);
+            i = i < 0 ? -i - 1 : i;
+            while (i > 0 && starts[i - 1] >= from - maxDuration) {
+                i--;
+            }
+            List<Occurrence> result = new ArrayList<>();
+            for (; i < starts.length && starts[i] < to; i++) {
+                // Zero-length occurrences count when they start inside the range
+                if (ends[i] > from || (ends[i] == starts[i] && starts[i] >= from)) {
+                    result.add(new Occurrence(components[i], starts[i], ends[i]));
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Tree entries of one resource, kept so they can be removed again.
+     */
+    private record Indexed(EventStore.StoredEvent event, long[] starts, long[] ids) {
+    }
+
+    private record Slot(String href, int component) {
+    }
+
+    private static final class StoreIndex {
+
+        private final IntervalTree<Slot> tree = new IntervalTree<>();
+
+        private final Map<String, Indexed> byHref = new HashMap<>();
+
+        private long windowStart = Long.MIN_VALUE;
+
+        private long windowEnd;
+    }
+
+    private final ConcurrentMap<EventStore, StoreIndex> indexes = new ConcurrentHashMap<>();
+
+    private final CaldavMetrics metrics;
+
+    @Value("${fastmail.occurrences.past-days:30}")
+    private int pastDays;
+
+    @Value("${fastmail.occurrences.future-days:365}")
+    private int futureDays;
+
+    public OccurrenceIndex(CaldavMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the occurrences of all resources in a store that overlap
+     * {@code [from, to)}, ordered by start.
+     */
+    public List<Hit> overlapping(EventStore store, long from, long to) {
+        long windowStart = windowStart();
+        long windowEnd = windowEnd();
+        List<Hit> hits = new ArrayList<>();
+        boolean inWindow = from >= windowStart && to <= windowEnd;
+        metrics.cache("occurrence-window", inWindow);
+        if (!inWindow) {
+            for (EventStore.StoredEvent stored : store.values()) {
+                if (stored.calendar() != null) {
+                    for (Occurrence occ : expandCounted(stored.calendar(), from, to).occurrences(from, to)) {
+                        hits.add(new Hit(stored, occ));
+                    }
+                }
+            }
+            hits.sort(Comparator.comparingLong(hit -> hit.occurrence().start()));
+            return hits;
+        }
+        StoreIndex index = indexes.computeIfAbsent(store, s -> new StoreIndex());
+        synchronized (index) {
+            if (index.windowStart != windowStart) {
+                rebuild(store, index, windowStart, windowEnd);
+            }
+            for (IntervalTree.Entry<Slot> entry : index.tree.overlapping(from, to)) {
+                Indexed indexed = index.byHref.get(entry.value().href());
+                hits.add(new Hit(indexed.event(),
+                        new Occurrence(entry.value().component(), entry.start(), entry.end())));
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the occurrences running at the given instant.
+     */
+    public List<Hit> containing(EventStore store, long at) {
+        return overlapping(store, at, at + 1);
+    }
+
+    /**
+     * Number of materialized occurrences over all stores.
+     */
+    public int size() {
+        int size = 0;
+        for (StoreIndex index : indexes.values()) {
+            synchronized (index) {
+                size += index.tree.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void onPut(EventStore store, EventStore.StoredEvent previous, EventStore.StoredEvent current) {
+        StoreIndex index = indexes.get(store);
+        if (index == null) {
+            // Built on the first query
+            return;
+        }
+        synchronized (index) {
+            if (index.windowStart == Long.MIN_VALUE) {
+                return;
+            }
+            Indexed existing = index.byHref.get(current.href());
+            if (existing != null && sameEtag(existing.event().etag(), current.etag())) {
+                return;
+            }
+            unindex(index, current.href());
+            index(index, current);
+        }
+    }
+
+    @Override
+    public void onRemove(EventStore store, EventStore.StoredEvent removed) {
+        StoreIndex index = indexes.get(store);
+        if (index != null) {
+            synchronized (index) {
+                unindex(index, removed.href());
+            }
+        }
+    }
+
+    /**
+     * Expands a resource over {@code [from, to)} without caching, for callers
+     * that hold calendars which are not in a synced store.
+     */
+    static List<Occurrence> occurrencesOf(Calendar calendar, long from, long to) {
+        return expand(calendar, from, to).occurrences(from, to);
+    }
+
+    private void rebuild(EventStore store, StoreIndex index, long windowStart, long windowEnd) {
+        index.tree.clear();
+        index.byHref.clear();
+        index.windowStart = windowStart;
+        index.windowEnd = windowEnd;
+        for (EventStore.StoredEvent stored : store.values()) {
+            index(index, stored);
+        }
+    }
+
+    private void index(StoreIndex index, EventStore.StoredEvent stored) {
+        if (stored.calendar() == null) {
+            return;
+        }
+        Series series;
+        try {
+            series = expandCounted(stored.calendar(), index.windowStart, index.windowEnd);
+        } catch (RuntimeException e) {
+            LOG.warn("Failed to expand {}: {}", stored.href(), e.getMessage());
+            return;
+        }
+        long[] ids = new long[series.starts().length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = index.tree.insert(series.starts()[i], series.ends()[i],
+                    new Slot(stored.href(), series.components()[i]));
+        }
+        index.byHref.put(stored.href(), new Indexed(stored, series.starts(), ids));
+    }
+
+    private static void unindex(StoreIndex index, String href) {
+        Indexed indexed = index.byHref.remove(href);
+        if (indexed != null) {
+            for (int i = 0; i < indexed.ids().length; i++) {
+                index.tree.remove(indexed.starts()[i], indexed.ids()[i]);
+            }
+        }
+    }
+
+    private long windowStart() {
+        return LocalDate.now().minusDays(pastDays).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private long windowEnd() {
+        return LocalDate.now().plusDays(futureDays + 1L).atStartOfDay(ZoneId.systemDefault()).toInstant()
+                .toEpochMilli();
+    }
+
+    private static boolean sameEtag(String a, String b) {
+        return a != null && a.equals(b);
+    }
+
+    private Series expandCounted(Calendar calendar, long from, long to) {
+        Series series = metrics.phase("expand", () -> expand(calendar, from, to));
+        metrics.occurrencesExpanded(series.starts().length);
+        return series;
+    }
+
+    private static Series expand(Calendar calendar, long from, long to) {
+        List<VEvent> events = calendar.getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+        // ical4j compares whole seconds and would miss e.g. [t, t + 1 ms); widen to seconds, occurrences() clips
+        Period window = new Period(new DateTime(Math.floorDiv(from, 1000L) * 1000L),
+                new DateTime(-Math.floorDiv(-to, 1000L) * 1000L + 1000L));
+
+        // Instances moved by an override component must not also come from the master
+        Set<Long> overridden = new HashSet<>();
+        for (VEvent event : events) {
+            RecurrenceId recurrenceId = event.getRecurrenceId();
+            if (recurrenceId != null && recurrenceId.getDate() != null) {
+                overridden.add(recurrenceId.getDate().getTime());
+            }
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < events.size(); i++) {
+            VEvent event = events.get(i);
+            boolean isMaster = event.getRecurrenceId() == null;
+            for (Object occObj : event.calculateRecurrenceSet(window)) {
+                Period occ = (Period) occObj;
+                long start = occ.getStart().getTime();
+                if (isMaster && overridden.contains(start)) {
+                    continue;
+                }
+                ranges.add(new long[] { start, occ.getEnd().getTime(), i });
+            }
+        }
+        ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+
+        long[] starts = new long[ranges.size()];
+        long[] ends = new long[ranges.size()];
+        int[] components = new int[ranges.size()];
+        long maxDuration = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            long[] range = ranges.get(i);
+            starts[i] = range[0];
+            ends[i] = range[1];
+            components[i] = (int) range[2];
+            maxDuration = Math.max(maxDuration, range[1] - range[0]);
+        }
+        return new Series(starts, ends, components, maxDuration);
+    }
+}
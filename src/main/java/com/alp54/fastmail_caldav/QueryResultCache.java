@@ -0,0 +1,263 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Results of recent calendar queries, shared between identical calls.
+ *
+ * Calls with the same key that arrive while one is being answered wait for
+ * that answer instead of querying the server again. Answers are then kept
+ * for {@code fastmail.query-cache.ttl-ms} in an LRU that holds at most
+ * {@code fastmail.query-cache.max-events} events in total. Every write made
+ * through the client clears it, and a query that was already running when
+ * the write happened is not kept, so the client always reads its own
+ * writes. Changes made elsewhere show up within the TTL. A TTL of 0 only
+ * shares concurrent calls.
+ *
+ * Expired answers stay until they are evicted, and are served instead of an
+ * error while the server is unavailable.
+ *
+ * The blocking client and the ASYNC query tools share the cache, and wait
+ * for each other's answers.
+ */
+@Component
+public class QueryResultCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(QueryResultCache.class);
+
+    /**
+     * Answers a query on a miss.
+     */
+    @FunctionalInterface
+    public interface Loader {
+        List<CalendarEvent> load() throws IOException, URISyntaxException;
+    }
+
+    private record Entry(List<CalendarEvent> events, long expiresAt) {
+    }
+
+    private final long ttlNanos;
+
+    private final int maxEvents;
+
+    private final CaldavMetrics metrics;
+
+    private final Map<String, CompletableFuture<List<CalendarEvent>>> inFlight = new ConcurrentHashMap<>();
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private int cachedEvents;
+
+    /**
+     * Bumped by every invalidation; answers loaded in an older generation are
+     * not cached.
+     */
+    private long generation;
+
+    public QueryResultCache(@Value("${fastmail.query-cache.ttl-ms:2000}") long ttlMs,
+            @Value("${fastmail.query-cache.max-events:10000}") int maxEvents, CaldavMetrics metrics) {
+        this.ttlNanos = Math.max(0, ttlMs) * 1_000_000;
+        this.maxEvents = maxEvents;
+        this.metrics = metrics;
+        metrics.bindCacheSize("query", this::size);
+    }
+
+    /**
+     * Returns the answer to the query with this key, from the cache, from an
+     * identical call in flight, or from the loader. The list is the caller's
+     * to modify.
+     */
+    public List<CalendarEvent> get(String key, Loader loader) throws IOException, URISyntaxException {
+        long loadGeneration;
+        synchronized (entries) {
+            List<CalendarEvent> fresh = fresh(key);
+            if (fresh != null) {
+                return new ArrayList<>(fresh);
+            }
+            loadGeneration = generation;
+        }
+
+        CompletableFuture<List<CalendarEvent>> mine = new CompletableFuture<>();
+        CompletableFuture<List<CalendarEvent>> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            metrics.coalesced("query");
+            return new ArrayList<>(await(running));
+        }
+        metrics.cache("query", false);
+        try {
+            List<CalendarEvent> events = List.copyOf(loader.load());
+            store(key, events, loadGeneration);
+            mine.complete(events);
+            return new ArrayList<>(events);
+        } catch (CaldavUnavailableException e) {
+            try {
+                List<CalendarEvent> stale = fallback(key, e);
+                mine.complete(stale);
+                return new ArrayList<>(stale);
+            } catch (CaldavUnavailableException unavailable) {
+                mine.completeExceptionally(unavailable);
+                throw unavailable;
+            }
+        } catch (IOException | URISyntaxException | RuntimeException | Error e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    /**
+     * As {@link #get}, without blocking: a call that waits for an identical
+     * one subscribes to its answer.
+     */
+    public Mono<List<CalendarEvent>> getAsync(String key, Supplier<Mono<List<CalendarEvent>>> loader) {
+        return Mono.defer(() -> {
+            long loadGeneration;
+            synchronized (entries) {
+                List<CalendarEvent> fresh = fresh(key);
+                if (fresh != null) {
+                    return Mono.just(new ArrayList<>(fresh));
+                }
+                loadGeneration = generation;
+            }
+
+            CompletableFuture<List<CalendarEvent>> mine = new CompletableFuture<>();
+            CompletableFuture<List<CalendarEvent>> running = inFlight.putIfAbsent(key, mine);
+            if (running != null) {
+                metrics.coalesced("query");
+                return Mono.fromFuture(running, true).map(ArrayList::new);
+            }
+            metrics.cache("query", false);
+            return loader.get()
+                    .<List<CalendarEvent>>map(List::copyOf)
+                    .doOnNext(events -> store(key, events, loadGeneration))
+                    .onErrorResume(CaldavUnavailableException.class, e -> Mono.fromCallable(() -> fallback(key, e)))
+                    .doOnNext(mine::complete)
+                    .doOnError(mine::completeExceptionally)
+                    .doFinally(signal -> {
+                        inFlight.remove(key, mine);
+                        // Callers waiting for this answer must not wait forever when its caller gives up
+                        mine.completeExceptionally(new IOException("Identical query was cancelled"));
+                    })
+                    .map(ArrayList::new);
+        });
+    }
+
+    /**
+     * Drops every cached answer, and lets calls from now on start their own
+     * query instead of waiting for one that may predate a write.
+     */
+    public void invalidate() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+            cachedEvents = 0;
+        }
+        inFlight.clear();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private void store(String key, List<CalendarEvent> events, long loadGeneration) {
+        if (ttlNanos == 0 || events.size() > maxEvents) {
+            return;
+        }
+        synchronized (entries) {
+            if (loadGeneration != generation) {
+                return;
+            }
+            remove(key);
+            entries.put(key, new Entry(events, System.nanoTime() + ttlNanos));
+            cachedEvents += events.size();
+            Iterator<Entry> eldest = entries.values().iterator();
+            while (cachedEvents > maxEvents && eldest.hasNext()) {
+                cachedEvents -= eldest.next().events().size();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * The unexpired answer to this key, or null. Called with the lock held.
+     */
+    private List<CalendarEvent> fresh(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.expiresAt() - System.nanoTime() > 0) {
+            metrics.cache("query", true);
+            return entry.events();
+        }
+        return null;
+    }
+
+    /**
+     * An expired answer, kept until it is evicted or invalidated, for when
+     * the server is unavailable; otherwise rethrows the error.
+     */
+    private List<CalendarEvent> fallback(String key, CaldavUnavailableException error)
+            throws CaldavUnavailableException {
+        List<CalendarEvent> stale;
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            stale = entry == null ? null : entry.events();
+        }
+        if (stale == null) {
+            throw error;
+        }
+        LOG.warn("Serving an earlier answer while the CalDAV server is unavailable: {}", error.getMessage());
+        metrics.fallback("query");
+        return stale;
+    }
+
+    private void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            cachedEvents -= removed.events().size();
+        }
+    }
+
+    private static List<CalendarEvent> await(CompletableFuture<List<CalendarEvent>> running)
+            throws IOException, URISyntaxException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an identical query", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof URISyntaxException) {
+                throw (URISyntaxException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,295 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpHost;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Period;
+import reactor.adapter.JdkFlowAdapter;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.util.retry.Retry;
+
+/**
+ * Non-blocking calendar queries for the ASYNC MCP server.
+ *
+ * Requests go out on the JDK's {@link HttpClient}, whose selector thread and
+ * a few {@code fastmail.async.event-loop-threads} serve every request in
+ * flight. The multistatus body is decoded as its chunks arrive, each
+ * {@code calendar-data} blob is handed to the {@link ICalendarParsingPipeline}
+ * workers right away, and its events are collected as soon as they are
+ * parsed, in no particular order. No thread waits on the network, not even
+ * for a slot of the {@link CaldavResilience} that the blocking client shares,
+ * so the requests go out at the same rate, within the same concurrency limit
+ * and circuit breaker, and are retried the same way. Identical queries share
+ * one answer in the {@link QueryResultCache}, with the blocking tools too.
+ *
+ * Unlike {@link FastmailCaldavClient}, every query is a calendar-query REPORT;
+ * the synced store and the ctag cache are not consulted, since keeping them
+ * current takes blocking requests.
+ */
+@Component
+@ConditionalOnProperty(name = "spring.ai.mcp.server.type", havingValue = "ASYNC")
+public class ReactiveCaldavClient implements DisposableBean {
+
+    private final FastmailCaldavClient client;
+
+    private final ICalendarParsingPipeline parsingPipeline;
+
+    private final RecurrenceExpansionSelector expansionSelector;
+
+    private final UidIndex uidIndex;
+
+    private final CaldavMetrics metrics;
+
+    private final CaldavResilience resilience;
+
+    private final QueryResultCache queryResults;
+
+    private final ExecutorService executor;
+
+    private final HttpClient http;
+
+    private final HttpHost server;
+
+    private final String authorization;
+
+    private final Duration responseTimeout;
+
+    /**
+     * Signals that the server rejected the requested server-side recurrence
+     * expansion.
+     */
+    private static final class ExpansionRejected extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        ExpansionRejected(int status) {
+            super("Recurrence expansion rejected with HTTP " + status);
+        }
+    }
+
+    /**
+     * Signals that the attempt failed in a way that is retried after
+     * {@code delayMs}. The delay is a primitive, so it survives serialization
+     * along with the message.
+     */
+    private static final class RetryLater extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long delayMs;
+
+        RetryLater(long delayMs) {
+            super("Retry in " + delayMs + " ms");
+            this.delayMs = delayMs;
+        }
+    }
+
+    /**
+     * A response whose body still holds the permit of its attempt.
+     */
+    private record Exchange(HttpResponse<Flow.Publisher<List<ByteBuffer>>> response,
+            CaldavResilience.Permit permit) {
+    }
+
+    public ReactiveCaldavClient(FastmailCaldavClient client, ICalendarParsingPipeline parsingPipeline,
+            RecurrenceExpansionSelector expansionSelector, UidIndex uidIndex, CaldavMetrics metrics,
+            CaldavResilience resilience, QueryResultCache queryResults,
+            @Value("${fastmail.caldav.url}") String caldavUrl,
+            @Value("${fastmail-username}") String username,
+            @Value("${fastmail.app.password}") String password,
+            @Value("${fastmail.http.connect-timeout-ms:5000}") int connectTimeoutMs,
+            @Value("${fastmail.http.socket-timeout-ms:30000}") int socketTimeoutMs,
+            @Value("${fastmail.async.event-loop-threads:2}") int eventLoopThreads) {
+        this.client = client;
+        this.parsingPipeline = parsingPipeline;
+        this.expansionSelector = expansionSelector;
+        this.uidIndex = uidIndex;
+        this.metrics = metrics;
+        this.resilience = resilience;
+        this.queryResults = queryResults;
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, eventLoopThreads), task -> {
+            Thread thread = new Thread(task, "caldav-async-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.http = HttpClient.newBuilder()
+                .executor(executor)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+        String credentials = (username == null ? "" : username) + ":" + (password == null ? "" : password);
+        this.server = CaldavHttpClientConfig.origin(caldavUrl);
+        this.authorization = "Basic "
+                + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+        this.responseTimeout = Duration.ofMillis(socketTimeoutMs);
+    }
+
+    /**
+     * Runs one query over {@code queryPeriod}, or over the whole calendar
+     * when it is null, on every selected calendar at once.
+     */
+    Flux<CalendarEvent> queryEvents(Period queryPeriod, FastmailCaldavClient.TextQuery textQuery) {
+        // Discovery results are cached, but a refresh is a blocking PROPFIND
+        return Mono.fromCallable(client::collectionUrls)
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(Flux::fromIterable)
+                .flatMap(collectionUrl -> queryResults.getAsync(
+                        FastmailCaldavClient.queryKey(collectionUrl, queryPeriod, textQuery),
+                        () -> loadCollection(collectionUrl, queryPeriod, textQuery).collectList()))
+                .flatMapIterable(events -> events);
+    }
+
+    private Flux<CalendarEvent> loadCollection(String collectionUrl, Period queryPeriod,
+            FastmailCaldavClient.TextQuery textQuery) {
+        String filterXml = FastmailCaldavClient.calendarQueryFilter(queryPeriod, textQuery);
+        // Recurrences only need expanding when the query is limited to a time range
+        RecurrenceExpansionSelector.Mode mode = queryPeriod == null ? RecurrenceExpansionSelector.Mode.LOCAL
+                : expansionSelector.choose(collectionUrl);
+        return runCalendarQuery(collectionUrl, filterXml, mode, queryPeriod, textQuery)
+                .onErrorResume(ExpansionRejected.class,
+                        e -> runCalendarQuery(collectionUrl, filterXml, RecurrenceExpansionSelector.Mode.LOCAL,
+                                queryPeriod, textQuery)
+                                // Only remembered once the same query without it went through
+                                .doOnComplete(() -> expansionSelector.recordRejected(collectionUrl, mode)));
+    }
+
+    /**
+     * Sends one calendar-query REPORT and streams its events.
+     *
+     * Fails with {@link ExpansionRejected} before emitting anything if the
+     * server rejected the requested server-side recurrence expansion, and
+     * with an {@link IOException} on any other error answer.
+     */
+    private Flux<CalendarEvent> runCalendarQuery(String collectionUrl, String filterXml,
+            RecurrenceExpansionSelector.Mode mode, Period queryPeriod, FastmailCaldavClient.TextQuery textQuery) {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(collectionUrl))
+                .timeout(responseTimeout)
+                .header("Depth", "infinity")
+                .header("Content-Type", "application/xml; charset=utf-8")
+                .method("REPORT", HttpRequest.BodyPublishers.ofString(
+                        FastmailCaldavClient.calendarQueryReport(filterXml, mode, queryPeriod)));
+        // Credentials only go to the configured server, not to any host an href names
+        if (server.equals(CaldavHttpClientConfig.origin(collectionUrl))) {
+            builder.header("Authorization", authorization);
+        }
+        HttpRequest request = builder.build();
+        return Flux.defer(() -> {
+            long started = System.nanoTime();
+            return exchange(request)
+                    .flatMapMany(exchange -> {
+                        int status = exchange.response().statusCode();
+                        Flux<List<ByteBuffer>> body = body(exchange);
+                        if (status != 207) {
+                            return text(body).flatMapMany(responseBody -> Mono.error(
+                                    mode != RecurrenceExpansionSelector.Mode.LOCAL
+                                            && RecurrenceExpansionSelector.isRejection(status, responseBody)
+                                                    ? new ExpansionRejected(status)
+                                                    : new IOException("calendar-query on " + collectionUrl
+                                                            + " failed: " + status + " - " + responseBody)));
+                        }
+                        return MultistatusReader.read(body);
+                    })
+                    .filter(response -> response.calendarData() != null && !response.calendarData().isEmpty())
+                    .flatMap(response -> parsingPipeline.parse(response.href(), response.calendarData(),
+                            (href, calendar) -> {
+                                uidIndex.index(href, response.etag(), calendar);
+                                return metrics.phase("convert", () -> client.toEvents(calendar, href,
+                                        response.etag(), queryPeriod, textQuery::matches));
+                            }), parsingPipeline.getParallelism())
+                    .flatMapIterable(events -> events)
+                    .doOnComplete(() -> {
+                        if (queryPeriod != null) {
+                            expansionSelector.recordLatency(collectionUrl, mode, System.nanoTime() - started);
+                        }
+                    });
+        });
+    }
+
+    /**
+     * Sends a request once a permit is granted, and again after a response or
+     * an error that is retried.
+     */
+    private Mono<Exchange> exchange(HttpRequest request) {
+        String method = request.method();
+        AtomicInteger attempts = new AtomicInteger();
+        return Mono.defer(() -> {
+            int attempt = attempts.incrementAndGet();
+            return resilience.acquireAsync().flatMap(permit -> {
+                long started = System.nanoTime();
+                return Mono.fromFuture(() -> http.sendAsync(request, HttpResponse.BodyHandlers.ofPublisher()))
+                        .onErrorMap(IOException.class, e -> {
+                            permit.onError();
+                            permit.release();
+                            long delay = resilience.retryDelay(method, attempt, e, true);
+                            return delay < 0 ? e : new RetryLater(delay);
+                        })
+                        .flatMap(response -> {
+                            int status = response.statusCode();
+                            metrics.httpResponse(method, status, System.nanoTime() - started);
+                            permit.onResponse(status);
+                            Exchange exchange = new Exchange(response, permit);
+                            if (!resilience.isRetried(method, status)) {
+                                return Mono.just(exchange);
+                            }
+                            return body(exchange).then(Mono.fromCallable(() -> {
+                                throw new RetryLater(resilience.retryDelay(method, request.uri().toString(),
+                                        attempt, status, response.headers().firstValue("Retry-After").orElse(null),
+                                        true));
+                            }));
+                        })
+                        .doOnCancel(permit::release);
+            });
+        }).retryWhen(Retry.from(signals -> signals.concatMap(signal -> signal.failure() instanceof RetryLater
+                ? Mono.delay(Duration.ofMillis(((RetryLater) signal.failure()).delayMs))
+                : Mono.error(signal.failure()))));
+    }
+
+    /**
+     * The response body, which releases the permit once it has been read or
+     * abandoned.
+     */
+    private Flux<List<ByteBuffer>> body(Exchange exchange) {
+        return JdkFlowAdapter.flowPublisherToFlux(exchange.response().body())
+                .doOnNext(buffers -> metrics.responseBytes(buffers.stream().mapToLong(ByteBuffer::remaining).sum()))
+                .doFinally(signal -> exchange.permit().release());
+    }
+
+    /**
+     * A whole body read as text, for error answers, which are small.
+     */
+    private static Mono<String> text(Flux<List<ByteBuffer>> body) {
+        return body.flatMapIterable(buffers -> buffers)
+                .collect(ByteArrayOutputStream::new, (out, buffer) -> {
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    out.write(bytes, 0, bytes.length);
+                })
+                .map(out -> out.toString(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
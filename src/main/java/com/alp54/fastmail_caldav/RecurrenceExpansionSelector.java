@@ -0,0 +1,141 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Chooses how recurring events are expanded for a time-ranged
+ * {@code calendar-query}, per calendar collection.
+ *
+ * <ul>
+ * <li>{@code LOCAL}: download the full master and expand it with ical4j.</li>
+ * <li>{@code EXPAND}: ask the server for {@code <c:expand>}, so only the
+ * instances in range are returned.</li>
+ * <li>{@code LIMIT_RECURRENCE_SET}: ask for {@code <c:limit-recurrence-set>},
+ * which trims overrides outside the range but still expands locally.</li>
+ * </ul>
+ *
+ * A server-side mode that the server rejects is remembered for that calendar
+ * and the query falls back to local expansion. In {@code auto} mode the
+ * fastest mode seen so far (by exponentially weighted latency) is used, with
+ * an occasional probe of the others.
+ */
+@Component
+public class RecurrenceExpansionSelector {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RecurrenceExpansionSelector.class);
+
+    public enum Mode {
+        LOCAL, EXPAND, LIMIT_RECURRENCE_SET
+    }
+
+    private static final double EWMA_WEIGHT = 0.3;
+
+    private static final int PROBE_INTERVAL = 20;
+
+    private final Mode configured;
+
+    private final boolean auto;
+
+    private final ConcurrentMap<String, CalendarStats> stats = new ConcurrentHashMap<>();
+
+    public RecurrenceExpansionSelector(
+            @Value("${fastmail.query.recurrence-expansion:local}") String configuredMode) {
+        String mode = configuredMode.trim().toUpperCase(Locale.ROOT).replace('-', '_');
+        this.auto = "AUTO".equals(mode);
+        this.configured = auto ? Mode.LOCAL : Mode.valueOf(mode);
+    }
+
+    /**
+     * Returns the mode to use for the next time-ranged query on a calendar.
+     */
+    public Mode choose(String collectionUrl) {
+        CalendarStats calendar = stats.computeIfAbsent(collectionUrl, url -> new CalendarStats());
+        if (!auto) {
+            return calendar.rejected.contains(configured) ? Mode.LOCAL : configured;
+        }
+        synchronized (calendar) {
+            calendar.queries++;
+            Mode best = Mode.LOCAL;
+            for (Mode mode : Mode.values()) {
+                if (calendar.rejected.contains(mode)) {
+                    continue;
+                }
+                Double latency = calendar.latencyMs.get(mode);
+                if (latency == null) {
+                    // Try every mode at least once
+                    return mode;
+                }
+                if (latency < calendar.latencyMs.get(best)) {
+                    best = mode;
+                }
+            }
+            if (calendar.queries % PROBE_INTERVAL == 0) {
+                // Re-measure the runner-up now and then, server performance changes over time
+                for (Mode mode : Mode.values()) {
+                    if (mode != best && !calendar.rejected.contains(mode)) {
+                        return mode;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+
+    public void recordLatency(String collectionUrl, Mode mode, long nanos) {
+        CalendarStats calendar = stats.computeIfAbsent(collectionUrl, url -> new CalendarStats());
+        double millis = nanos / 1_000_000.0;
+        synchronized (calendar) {
+            calendar.latencyMs.merge(mode, millis, (old, sample) -> old + EWMA_WEIGHT * (sample - old));
+        }
+    }
+
+    /**
+     * Whether an error answer to a query with server-side expansion rejects
+     * the expansion itself: a request the server cannot handle, or a failed
+     * CALDAV:supported-filter precondition. Throttling and server errors say
+     * nothing about what the server supports.
+     */
+    static boolean isRejection(int status, String body) {
+        return status == 400 || status == 403 || status == 415 || status == 422 || status == 501
+                || (status >= 400 && status < 500 && body != null && body.contains("supported-filter"));
+    }
+
+    public void recordRejected(String collectionUrl, Mode mode) {
+        LOG.warn("Server rejected {} recurrence expansion for {}, falling back to local expansion", mode,
+                collectionUrl);
+        stats.computeIfAbsent(collectionUrl, url -> new CalendarStats()).rejected.add(mode);
+    }
+
+    /**
+     * Average latency per mode and calendar, in milliseconds.
+     */
+    public Map<String, Map<Mode, Double>> getLatencies() {
+        Map<String, Map<Mode, Double>> result = new LinkedHashMap<>();
+        stats.forEach((url, calendar) -> {
+            synchronized (calendar) {
+                result.put(url, new EnumMap<>(calendar.latencyMs));
+            }
+        });
+        return result;
+    }
+
+    private static final class CalendarStats {
+
+        private final Map<Mode, Double> latencyMs = new EnumMap<>(Mode.class);
+
+        private final Set<Mode> rejected = ConcurrentHashMap.newKeySet();
+
+        private long queries;
+    }
+}
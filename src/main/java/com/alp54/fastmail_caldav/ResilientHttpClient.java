@@ -0,0 +1,125 @@
+package com.alp54.fastmail_caldav;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Sends the blocking client's requests through {@link CaldavResilience}.
+ *
+ * The slot an attempt takes is held until its response is closed, which is
+ * when the pooled connection goes back as well. Only requests whose entity
+ * can be sent again are retried.
+ */
+class ResilientHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient delegate;
+
+    private final CaldavResilience resilience;
+
+    ResilientHttpClient(CloseableHttpClient delegate, CaldavResilience resilience) {
+        this.delegate = delegate;
+        this.resilience = resilience;
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException, ClientProtocolException {
+        String method = request.getRequestLine().getMethod();
+        for (int attempt = 1;; attempt++) {
+            CaldavResilience.Permit permit = resilience.acquire(request.getRequestLine().toString());
+            CloseableHttpResponse response;
+            try {
+                response = delegate.execute(target, request, context);
+            } catch (IOException | RuntimeException e) {
+                permit.onError();
+                permit.release();
+                long delay = e instanceof IOException
+                        ? resilience.retryDelay(method, attempt, (IOException) e, isRepeatable(request))
+                        : -1;
+                if (delay < 0) {
+                    throw e;
+                }
+                sleep(delay, request);
+                continue;
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            permit.onResponse(status);
+            if (!resilience.isRetried(method, status)) {
+                return releasingOnClose(response, permit);
+            }
+            Header retryAfter = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+            permit.release();
+            sleep(resilience.retryDelay(method, request.getRequestLine().getUri(), attempt, status,
+                    retryAfter == null ? null : retryAfter.getValue(), isRepeatable(request)), request);
+        }
+    }
+
+    private static boolean isRepeatable(HttpRequest request) {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return true;
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        return entity == null || entity.isRepeatable();
+    }
+
+    private static void sleep(long delayMs, HttpRequest request) throws InterruptedIOException {
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting to retry " + request.getRequestLine());
+        }
+    }
+
+    private static CloseableHttpResponse releasingOnClose(CloseableHttpResponse response,
+            CaldavResilience.Permit permit) {
+        return (CloseableHttpResponse) Proxy.newProxyInstance(CloseableHttpResponse.class.getClassLoader(),
+                new Class<?>[] { CloseableHttpResponse.class }, (proxy, method, args) -> {
+                    try {
+                        return method.invoke(response, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        if (method.getName().equals("close")) {
+                            permit.release();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return delegate.getConnectionManager();
+    }
+}
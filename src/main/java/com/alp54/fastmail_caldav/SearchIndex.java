@@ -0,0 +1,249 @@
+package com.alp54.fastmail_caldav;
+
+import java.text.Normalizer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * Inverted index over the SUMMARY, DESCRIPTION and LOCATION of synced events.
+ *
+ * Text is split into words, case-folded and stripped of accents. Every query
+ * word must match the start of some word in the searched fields (prefix
+ * match), and all query words must match (AND). Postings are kept per store
+ * and field in sorted maps of bit sets over resource numbers, so a prefix is
+ * one range lookup and AND/OR are word-wise bit operations. The index is
+ * updated from the {@link EventStore.Listener} callbacks as events sync.
+ */
+@Component
+public class SearchIndex implements EventStore.Listener {
+
+    public enum Field {
+        SUMMARY(Property.SUMMARY), DESCRIPTION(Property.DESCRIPTION), LOCATION(Property.LOCATION);
+
+        private final String property;
+
+        Field(String property) {
+            this.property = property;
+        }
+    }
+
+    private static final Pattern NON_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * Words of one indexed resource, kept so its postings can be removed again.
+     */
+    private record Document(int id, Map<Field, Set<String>> tokens) {
+    }
+
+    private static final class StoreIndex {
+
+        private final Map<Field, NavigableMap<String, BitSet>> postings = new EnumMap<>(Field.class);
+
+        private final Map<String, Document> documents = new HashMap<>();
+
+        private final List<String> hrefs = new ArrayList<>();
+
+        private final Deque<Integer> freeIds = new ArrayDeque<>();
+
+        private boolean built;
+
+        private StoreIndex() {
+            for (Field field : Field.values()) {
+                postings.put(field, new TreeMap<>());
+            }
+        }
+    }
+
+    private final ConcurrentMap<EventStore, StoreIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the hrefs of resources in which every word of the query matches
+     * the start of a word in one of the given fields, or null if the query has
+     * no words (no filtering).
+     */
+    public Set<String> search(EventStore store, String query, Field... fields) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return null;
+        }
+        StoreIndex index = indexes.computeIfAbsent(store, s -> new StoreIndex());
+        synchronized (index) {
+            if (!index.built) {
+                for (EventStore.StoredEvent stored : store.values()) {
+                    index(index, stored);
+                }
+                index.built = true;
+            }
+            BitSet result = null;
+            for (String term : terms) {
+                BitSet matches = new BitSet();
+                for (Field field : fields) {
+                    // Every token starting with the term sorts between term and term + U+FFFF
+                    for (BitSet ids : index.postings.get(field)
+                            .subMap(term, true, term + Character.MAX_VALUE, false).values()) {
+                        matches.or(ids);
+                    }
+                }
+                if (result == null) {
+                    result = matches;
+                } else {
+                    result.and(matches);
+                }
+                if (result.isEmpty()) {
+                    break;
+                }
+            }
+            Set<String> hrefs = new HashSet<>();
+            for (int id = result.nextSetBit(0); id >= 0; id = result.nextSetBit(id + 1)) {
+                hrefs.add(index.hrefs.get(id));
+            }
+            return hrefs;
+        }
+    }
+
+    /**
+     * Applies the same word-prefix rule to one event, for resources holding
+     * several VEVENTs with different texts.
+     */
+    public static boolean matches(VEvent event, String query, Field... fields) {
+        List<String> terms = tokenize(query);
+        if (terms.isEmpty()) {
+            return true;
+        }
+        List<String> words = new ArrayList<>();
+        for (Field field : fields) {
+            Property property = event.getProperty(field.property);
+            if (property != null) {
+                words.addAll(tokenize(property.getValue()));
+            }
+        }
+        for (String term : terms) {
+            boolean found = false;
+            for (String word : words) {
+                if (word.startsWith(term)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onPut(EventStore store, EventStore.StoredEvent previous, EventStore.StoredEvent current) {
+        StoreIndex index = indexes.get(store);
+        if (index == null) {
+            // Built on the first search
+            return;
+        }
+        synchronized (index) {
+            if (index.built) {
+                unindex(index, current.href());
+                index(index, current);
+            }
+        }
+    }
+
+    @Override
+    public void onRemove(EventStore store, EventStore.StoredEvent removed) {
+        StoreIndex index = indexes.get(store);
+        if (index != null) {
+            synchronized (index) {
+                unindex(index, removed.href());
+            }
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return tokens;
+        }
+        String folded = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFKD)).replaceAll("")
+                .toLowerCase(Locale.ROOT);
+        for (String token : NON_WORD.split(folded)) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        return tokens;
+    }
+
+    private static void index(StoreIndex index, EventStore.StoredEvent stored) {
+        Calendar calendar = stored.calendar();
+        if (calendar == null) {
+            return;
+        }
+        Map<Field, Set<String>> tokens = new EnumMap<>(Field.class);
+        List<VEvent> events = calendar.getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+        for (VEvent event : events) {
+            for (Field field : Field.values()) {
+                Property property = event.getProperty(field.property);
+                if (property != null) {
+                    tokens.computeIfAbsent(field, f -> new HashSet<>()).addAll(tokenize(property.getValue()));
+                }
+            }
+        }
+        // Numbers of removed resources are reused to keep the bit sets dense
+        int id;
+        if (index.freeIds.isEmpty()) {
+            id = index.hrefs.size();
+            index.hrefs.add(stored.href());
+        } else {
+            id = index.freeIds.pop();
+            index.hrefs.set(id, stored.href());
+        }
+        tokens.forEach((field, words) -> {
+            for (String word : words) {
+                index.postings.get(field).computeIfAbsent(word, w -> new BitSet()).set(id);
+            }
+        });
+        index.documents.put(stored.href(), new Document(id, tokens));
+    }
+
+    private static void unindex(StoreIndex index, String href) {
+        Document document = index.documents.remove(href);
+        if (document == null) {
+            return;
+        }
+        document.tokens().forEach((field, words) -> {
+            NavigableMap<String, BitSet> postings = index.postings.get(field);
+            for (String word : words) {
+                BitSet ids = postings.get(word);
+                if (ids != null) {
+                    ids.clear(document.id());
+                    if (ids.isEmpty()) {
+                        postings.remove(word);
+                    }
+                }
+            }
+        });
+        index.hrefs.set(document.id(), null);
+        index.freeIds.push(document.id());
+    }
+}
@@ -0,0 +1,48 @@
+package com.alp54.fastmail_caldav;
+
+/**
+ * Limits the rate of requests to the CalDAV server.
+ *
+ * The bucket refills at {@code ratePerSecond} and holds up to {@code burst}
+ * tokens. A request that finds it empty reserves the next token and sleeps
+ * until it is due, so waiting requests go out in arrival order at the
+ * configured rate.
+ */
+final class TokenBucket {
+
+    private final double tokensPerNano;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long refilledAt;
+
+    TokenBucket(double ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / 1_000_000_000d;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, waiting for one if necessary.
+     */
+    void acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+        }
+    }
+
+    /**
+     * Takes the next token, and returns how long to wait before it is due.
+     */
+    synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,108 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.stereotype.Component;
+
+import net.fortuna.ical4j.model.Calendar;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * Maps event UIDs to the resource that holds them, so a UID can be turned
+ * into a URL without asking the server.
+ *
+ * Entries are recorded as a side effect of every REPORT and PUT the client
+ * makes, and through the {@link EventStore.Listener} callbacks of synced
+ * collections. An entry can be stale if the event was changed by another
+ * client; callers treat a 404 or 412 on the indexed href as a miss.
+ */
+@Component
+public class UidIndex implements EventStore.Listener {
+
+    /**
+     * Where a UID was last seen: the resource href (as the server sent it, or
+     * an absolute URL) and its ETag, which may be null.
+     */
+    public record Entry(String href, String etag) {
+    }
+
+    private final ConcurrentMap<String, Entry> byUid = new ConcurrentHashMap<>();
+
+    public Entry get(String uid) {
+        return uid == null ? null : byUid.get(uid);
+    }
+
+    public void put(String uid, String href, String etag) {
+        if (uid != null && !uid.isEmpty() && href != null) {
+            byUid.put(uid, new Entry(href, etag));
+        }
+    }
+
+    /**
+     * Records every UID found in a parsed resource.
+     */
+    public void index(String href, String etag, Calendar calendar) {
+        for (String uid : uidsOf(calendar)) {
+            put(uid, href, etag);
+        }
+    }
+
+    public void remove(String uid) {
+        if (uid != null) {
+            byUid.remove(uid);
+        }
+    }
+
+    /**
+     * Drops the UID only if it still points at the given href.
+     */
+    public void remove(String uid, String href) {
+        if (uid != null) {
+            byUid.computeIfPresent(uid, (key, entry) -> entry.href().equals(href) ? null : entry);
+        }
+    }
+
+    public int size() {
+        return byUid.size();
+    }
+
+    @Override
+    public void onPut(EventStore store, EventStore.StoredEvent previous, EventStore.StoredEvent current) {
+        Set<String> uids = uidsOf(current.calendar());
+        if (previous != null) {
+            for (String uid : uidsOf(previous.calendar())) {
+                if (!uids.contains(uid)) {
+                    remove(uid, previous.href());
+                }
+            }
+        }
+        for (String uid : uids) {
+            put(uid, current.href(), current.etag());
+        }
+    }
+
+    @Override
+    public void onRemove(EventStore store, EventStore.StoredEvent removed) {
+        for (String uid : uidsOf(removed.calendar())) {
+            remove(uid, removed.href());
+        }
+    }
+
+    private static Set<String> uidsOf(Calendar calendar) {
+        Set<String> uids = new HashSet<>();
+        if (calendar == null) {
+            return uids;
+        }
+        List<VEvent> events = calendar.getComponents(net.fortuna.ical4j.model.Component.VEVENT);
+        for (VEvent event : events) {
+            if (event.getUid() != null && event.getUid().getValue() != null) {
+                uids.add(event.getUid().getValue());
+            }
+        }
+        return uids;
+    }
+}
@@ -0,0 +1,70 @@
+package com.alp54.fastmail_caldav;
+
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Lets many more MCP tool calls run at once when
+ * {@code spring.threads.virtual.enabled} is set.
+ *
+ * On that property Spring Boot moves the Tomcat request threads and Reactor's
+ * {@code boundedElastic} scheduler, on which the synchronous MCP server runs
+ * every tool call, to virtual threads, and {@link CaldavHttpClientConfig} the
+ * outbound requests. The scheduler still runs at most ten tasks per processor,
+ * though, which stays the limit while calls wait on CalDAV I/O. This raises it
+ * to {@code fastmail.mcp.max-concurrent-tool-calls}; the CalDAV server is
+ * protected by {@code fastmail.http.max-concurrency} instead. It needs Java 21
+ * at run time; on older JVMs everything stays on platform threads.
+ */
+@Configuration
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadConfig implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadConfig.class);
+
+    private final boolean installed;
+
+    public VirtualThreadConfig(@Value("${fastmail.mcp.max-concurrent-tool-calls:1000}") int maxConcurrentToolCalls) {
+        if (!VirtualThreads.isAvailable()) {
+            LOG.warn("Virtual threads are not available on Java {}, MCP tool calls run on platform threads",
+                    Runtime.version().feature());
+            installed = false;
+            return;
+        }
+        Schedulers.setFactory(new Schedulers.Factory() {
+            @Override
+            public Scheduler newBoundedElastic(int threadCap, int queuedTaskCap, ThreadFactory threadFactory,
+                    int ttlSeconds) {
+                // Reactor only picks virtual threads itself if told so before it was first used
+                return newThreadPerTaskBoundedElastic(threadCap, queuedTaskCap,
+                        VirtualThreads.factory("boundedElastic-"));
+            }
+
+            @Override
+            public Scheduler newThreadPerTaskBoundedElastic(int threadCap, int queuedTaskCap,
+                    ThreadFactory threadFactory) {
+                return Schedulers.Factory.super.newThreadPerTaskBoundedElastic(maxConcurrentToolCalls,
+                        queuedTaskCap, threadFactory);
+            }
+        });
+        installed = true;
+        LOG.info("MCP tool calls and CalDAV requests run on virtual threads, up to {} tool calls at once",
+                maxConcurrentToolCalls);
+    }
+
+    @Override
+    public void destroy() {
+        if (installed) {
+            Schedulers.resetFactory();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.alp54.fastmail_caldav;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Virtual threads, when the running JVM has them.
+ *
+ * The build targets Java 17, so {@code Thread.ofVirtual()} and
+ * {@code Executors.newThreadPerTaskExecutor} are looked up reflectively. On
+ * an older JVM, or one where they are still a preview feature that is not
+ * enabled, {@link #isAvailable()} is false and callers keep their platform
+ * threads.
+ */
+final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+
+    private static final Method NAME;
+
+    private static final Method FACTORY;
+
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method factory = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            // Throws on a JVM where virtual threads are a preview feature that is not enabled
+            ofVirtual.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * A factory of virtual threads named {@code prefix} followed by a
+     * counter.
+     *
+     * @throws IllegalStateException if virtual threads are not available
+     */
+    static ThreadFactory factory(String prefix) {
+        if (!isAvailable()) {
+            throw new IllegalStateException(
+                    "Virtual threads are not available on Java " + Runtime.version().feature());
+        }
+        try {
+            return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a virtual thread factory", e);
+        }
+    }
+
+    /**
+     * An executor that starts a new virtual thread for every task.
+     *
+     * @throws IllegalStateException if virtual threads are not available
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, factory(prefix));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create a virtual thread executor", e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The shared client's preemptive credentials go to the configured server
+ * only. The same stub is reached once as the configured {@code 127.0.0.1}
+ * and once as {@code localhost}, standing in for another host named in an
+ * href.
+ */
+class CaldavHttpClientConfigTest {
+
+    @Test
+    void sendsCredentialsToTheConfiguredServerOnly() throws Exception {
+        List<String> authorizations = new CopyOnWriteArrayList<>();
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            authorizations.add(exchange.getRequestHeaders().getFirst("Authorization"));
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        server.start();
+        int port = server.getAddress().getPort();
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("stub", Map.of(
+                "fastmail.caldav.url", "http://127.0.0.1:" + port,
+                "fastmail-username", "test", "fastmail.app.password", "secret",
+                "fastmail.sync.enabled", "false", "fastmail.snapshot.path", "")));
+        try (ConfigurableApplicationContext context = CliApp.application().environment(environment).run()) {
+            CloseableHttpClient client = context.getBean(CloseableHttpClient.class);
+            for (String url : List.of("http://127.0.0.1:" + port + "/dav/", "http://localhost:" + port + "/dav/")) {
+                try (CloseableHttpResponse response = client.execute(new HttpGet(url))) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                }
+            }
+        } finally {
+            server.stop(0);
+        }
+        assertEquals(2, authorizations.size());
+        assertEquals("Basic dGVzdDpzZWNyZXQ=", authorizations.get(0));
+        assertNull(authorizations.get(1));
+    }
+}
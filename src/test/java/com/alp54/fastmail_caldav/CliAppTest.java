@@ -0,0 +1,29 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+/**
+ * Boots the CLI context as {@link CliApp} does, without arguments, which
+ * prints the usage. Every bean of the CalDAV client has to be listed in
+ * {@code CliApp.SOURCES}, as there is no component scan.
+ */
+class CliAppTest {
+
+    @Test
+    void bootsAndPrintsUsage() {
+        // As the cds-training run of the cli profile, which sets them as system properties
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("smoke", Map.of(
+                "fastmail-username", "smoke", "fastmail.app.password", "smoke", "fastmail.snapshot.path", "")));
+        try (ConfigurableApplicationContext context = CliApp.application().environment(environment).run()) {
+            assertNotNull(context.getBean(FastmailCaldavClient.class));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Replay of the snapshot log after a clean shutdown, a torn write, a
+ * corrupted record, a foreign version and a compaction, and the lock that
+ * keeps a second process out.
+ */
+class EventSnapshotTest {
+
+    private static final String CALENDAR = "https://caldav.example.com/dav/calendars/user/test/Default/";
+
+    private static final int HEADER_SIZE = 8;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void replaysWhatWasCheckpointed() {
+        Path file = directory.resolve("events.snapshot");
+        EventStore store = store("token-1", "a", "b");
+        write(file, 1000, store);
+        store.remove(CALENDAR + "a.ics");
+        EventSnapshot snapshot = new EventSnapshot(file.toString(), 1000);
+        snapshot.load();
+        snapshot.remove(CALENDAR, CALENDAR + "a.ics");
+        store.setSyncToken("token-2");
+        snapshot.checkpoint(store, List.of(store));
+        snapshot.destroy();
+
+        EventSnapshot.Saved saved = loadOnly(file);
+        assertEquals("token-2", saved.syncToken());
+        assertEquals(Map.of(CALENDAR + "b.ics", "\"b\""), etags(saved));
+    }
+
+    @Test
+    void cutsOffATornLastRecord() throws IOException {
+        Path file = directory.resolve("events.snapshot");
+        write(file, 1000, store("token-1", "a", "b"));
+        long size = Files.size(file);
+        // The length and checksum of a record whose payload never made it to disk
+        Files.write(file, ByteBuffer.allocate(10).putInt(200).putInt(0).array(), StandardOpenOption.APPEND);
+
+        EventSnapshot.Saved saved = loadOnly(file);
+        assertEquals("token-1", saved.syncToken());
+        assertEquals(2, saved.resources().size());
+        assertEquals(size, Files.size(file));
+    }
+
+    @Test
+    void discardsTheFileOnAChecksumMismatch() throws IOException {
+        Path file = directory.resolve("events.snapshot");
+        write(file, 1000, store("token-1", "a", "b"));
+        byte[] bytes = Files.readAllBytes(file);
+        // Inside the payload of the first record
+        bytes[HEADER_SIZE + 8 + 4] ^= 0x55;
+        Files.write(file, bytes);
+
+        EventSnapshot snapshot = new EventSnapshot(file.toString(), 1000);
+        assertEquals(List.of(), snapshot.load());
+        snapshot.destroy();
+        assertEquals(HEADER_SIZE, Files.size(file));
+    }
+
+    @Test
+    void discardsAnUnknownVersion() throws IOException {
+        Path file = directory.resolve("events.snapshot");
+        write(file, 1000, store("token-1", "a"));
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(4, 99);
+        Files.write(file, bytes);
+
+        EventSnapshot snapshot = new EventSnapshot(file.toString(), 1000);
+        assertEquals(List.of(), snapshot.load());
+        snapshot.destroy();
+        assertEquals(HEADER_SIZE, Files.size(file));
+    }
+
+    @Test
+    void compactionKeepsOnlyTheLiveEntries() throws IOException {
+        Path file = directory.resolve("events.snapshot");
+        EventStore store = store(null, "a", "b");
+        EventSnapshot snapshot = new EventSnapshot(file.toString(), 10);
+        snapshot.load();
+        for (int round = 1; round <= 20; round++) {
+            for (EventStore.StoredEvent event : store.values()) {
+                snapshot.put(CALENDAR, event);
+            }
+            store.setSyncToken("token-" + round);
+            snapshot.checkpoint(store, List.of(store));
+        }
+        snapshot.destroy();
+        assertTrue(Files.size(file) < 1000, "compacted to " + Files.size(file) + " bytes");
+        assertTrue(Files.notExists(directory.resolve("events.snapshot.tmp")));
+
+        EventSnapshot.Saved saved = loadOnly(file);
+        assertEquals("token-20", saved.syncToken());
+        assertEquals(Map.of(CALENDAR + "a.ics", "\"a\"", CALENDAR + "b.ics", "\"b\""), etags(saved));
+    }
+
+    @Test
+    void secondOwnerRunsWithoutTheSnapshot() throws IOException {
+        Path file = directory.resolve("events.snapshot");
+        write(file, 1000, store("token-1", "a"));
+        EventSnapshot first = new EventSnapshot(file.toString(), 1000);
+        assertEquals(1, first.load().size());
+        long size = Files.size(file);
+
+        EventSnapshot second = new EventSnapshot(file.toString(), 1000);
+        assertEquals(List.of(), second.load());
+        EventStore other = store("token-2", "c");
+        second.put(CALENDAR, other.get(CALENDAR + "c.ics"));
+        second.checkpoint(other, List.of(other));
+        second.destroy();
+        assertEquals(size, Files.size(file));
+
+        first.destroy();
+        assertEquals(1, loadOnly(file).resources().size());
+    }
+
+    private static EventStore store(String syncToken, String... names) {
+        EventStore store = new EventStore(CALENDAR);
+        for (String name : names) {
+            store.put(new EventStore.StoredEvent(CALENDAR + name + ".ics", "\"" + name + "\"",
+                    "BEGIN:VCALENDAR\r\nUID:" + name + "\r\nEND:VCALENDAR\r\n", null));
+        }
+        store.setSyncToken(syncToken);
+        return store;
+    }
+
+    private static void write(Path file, int compactionMinRecords, EventStore store) {
+        EventSnapshot snapshot = new EventSnapshot(file.toString(), compactionMinRecords);
+        snapshot.load();
+        for (EventStore.StoredEvent event : store.values()) {
+            snapshot.put(store.getCollectionUrl(), event);
+        }
+        snapshot.checkpoint(store, List.of(store));
+        snapshot.destroy();
+    }
+
+    private static EventSnapshot.Saved loadOnly(Path file) {
+        EventSnapshot snapshot = new EventSnapshot(file.toString(), 1000);
+        List<EventSnapshot.Saved> saved = snapshot.load();
+        snapshot.destroy();
+        assertEquals(1, saved.size());
+        assertEquals(CALENDAR, saved.get(0).collectionUrl());
+        return saved.get(0);
+    }
+
+    private static Map<String, String> etags(EventSnapshot.Saved saved) {
+        Map<String, String> etags = new TreeMap<>();
+        saved.resources().forEach(resource -> etags.put(resource.href(), resource.etag()));
+        return etags;
+    }
+}
@@ -0,0 +1,110 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+import org.junit.jupiter.api.Test;
+
+import net.fortuna.ical4j.model.Component;
+import net.fortuna.ical4j.model.Parameter;
+import net.fortuna.ical4j.model.Property;
+import net.fortuna.ical4j.model.component.VEvent;
+
+/**
+ * {@link FastmailCaldavClient#reschedule}: a partial change of date and
+ * times keeps the rest of DTSTART and DTEND, their TZID and value type.
+ */
+class FastmailCaldavClientTest {
+
+    @Test
+    void newDateKeepsTimesAndTimeZone() throws Exception {
+        VEvent event = event("DTSTART;TZID=Europe/Berlin:20250310T100000", "DTEND;TZID=Europe/Berlin:20250310T113000");
+        FastmailCaldavClient.reschedule(event, "2025-03-12", "", "");
+        assertDate(event, Property.DTSTART, "20250312T100000", "Europe/Berlin");
+        assertDate(event, Property.DTEND, "20250312T113000", "Europe/Berlin");
+    }
+
+    @Test
+    void timeWithoutDateKeepsTheDay() throws Exception {
+        VEvent event = event("DTSTART;TZID=Europe/Berlin:20250310T100000", "DTEND;TZID=Europe/Berlin:20250310T113000");
+        FastmailCaldavClient.reschedule(event, null, "0900", null);
+        assertDate(event, Property.DTSTART, "20250310T090000", "Europe/Berlin");
+        assertDate(event, Property.DTEND, "20250310T113000", "Europe/Berlin");
+    }
+
+    @Test
+    void multiDayEventKeepsItsLength() throws Exception {
+        VEvent event = event("DTSTART;TZID=Europe/Berlin:20250310T220000", "DTEND;TZID=Europe/Berlin:20250311T020000");
+        FastmailCaldavClient.reschedule(event, "2025-04-01", null, null);
+        assertDate(event, Property.DTSTART, "20250401T220000", "Europe/Berlin");
+        assertDate(event, Property.DTEND, "20250402T020000", "Europe/Berlin");
+    }
+
+    @Test
+    void allDayEventStaysAllDay() throws Exception {
+        VEvent event = event("DTSTART;VALUE=DATE:20250310", "DTEND;VALUE=DATE:20250311");
+        FastmailCaldavClient.reschedule(event, "2025-03-20", null, null);
+        assertEquals("DATE", event.getStartDate().getParameter(Parameter.VALUE).getValue());
+        assertDate(event, Property.DTSTART, "20250320", null);
+        assertDate(event, Property.DTEND, "20250321", null);
+    }
+
+    @Test
+    void rejectsTimesOnAnAllDayEvent() throws Exception {
+        VEvent event = event("DTSTART;VALUE=DATE:20250310", "DTEND;VALUE=DATE:20250311");
+        assertThrows(IllegalArgumentException.class,
+                () -> FastmailCaldavClient.reschedule(event, "2025-03-20", "0900", null));
+    }
+
+    @Test
+    void rejectsAnEndBeforeTheStart() throws Exception {
+        VEvent event = event("DTSTART:20250310T100000", "DTEND:20250310T110000");
+        assertThrows(IllegalArgumentException.class,
+                () -> FastmailCaldavClient.reschedule(event, null, "1200", null));
+    }
+
+    @Test
+    void rejectsMalformedValues() throws Exception {
+        VEvent event = event("DTSTART:20250310T100000", "DTEND:20250310T110000");
+        assertThrows(IllegalArgumentException.class,
+                () -> FastmailCaldavClient.reschedule(event, "10.03.2025", null, null));
+        assertThrows(IllegalArgumentException.class,
+                () -> FastmailCaldavClient.reschedule(event, null, "9:00", null));
+    }
+
+    @Test
+    void utcTimesAreLocalAndStayUtc() throws Exception {
+        VEvent event = event("DTSTART:20250310T100000Z", "DTEND:20250310T110000Z");
+        FastmailCaldavClient.reschedule(event, null, null, "1700");
+        assertDate(event, Property.DTSTART, "20250310T100000Z", null);
+        String end = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'").withZone(ZoneId.of("UTC"))
+                .format(LocalDateTime.of(2025, 3, 10, 17, 0).atZone(ZoneId.systemDefault()).toInstant());
+        assertDate(event, Property.DTEND, end, null);
+    }
+
+    @Test
+    void endTimeReplacesDuration() throws Exception {
+        VEvent event = event("DTSTART;TZID=Europe/Berlin:20250310T100000", "DURATION:PT1H");
+        FastmailCaldavClient.reschedule(event, null, null, "1230");
+        assertNull(event.getProperty(Property.DURATION));
+        assertDate(event, Property.DTEND, "20250310T123000", "Europe/Berlin");
+    }
+
+    private static VEvent event(String start, String end) throws Exception {
+        return ICalendarParser.parse(String.join("\r\n", "BEGIN:VCALENDAR", "VERSION:2.0", "PRODID:-//test//EN",
+                "BEGIN:VEVENT", "UID:test@example.com", "DTSTAMP:20250101T000000Z", "SUMMARY:Test", start, end,
+                "END:VEVENT", "END:VCALENDAR", "")).getComponent(Component.VEVENT);
+    }
+
+    private static void assertDate(VEvent event, String name, String value, String tzid) {
+        Property property = event.getProperty(name);
+        assertEquals(value, property.getValue());
+        Parameter parameter = property.getParameter(Parameter.TZID);
+        assertEquals(tzid, parameter == null ? null : parameter.getValue());
+    }
+}
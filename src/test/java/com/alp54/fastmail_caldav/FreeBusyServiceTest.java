@@ -0,0 +1,116 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Free/busy over the default {@code fastmail.calendar.path}, the account
+ * root, whose events all sit in calendars one level further down. A server
+ * only reaches them with {@code Depth: infinity}; the stub below answers a
+ * {@code Depth: 1} report on the root with no events, as those are.
+ */
+class FreeBusyServiceTest {
+
+    private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneId.of("UTC"));
+
+    private static final LocalDate DAY = LocalDate.of(2025, 3, 10);
+
+    private static final String EVENT_HREF = "/dav/calendars/user/test@example.com/Default/meeting.ics";
+
+    private final long eventStart = DAY.atTime(10, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+    private final long eventEnd = DAY.atTime(11, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+
+    @ParameterizedTest(name = "free-busy-query supported: {0}")
+    @ValueSource(booleans = { true, false })
+    void nestedCalendarIsBusy(boolean freeBusyQuery) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> answer(exchange, freeBusyQuery));
+        server.start();
+        StandardEnvironment environment = new StandardEnvironment();
+        environment.getPropertySources().addFirst(new MapPropertySource("stub", Map.of(
+                "fastmail.caldav.url", "http://127.0.0.1:" + server.getAddress().getPort(),
+                "fastmail.calendar.path", "/dav/",
+                "fastmail-username", "test", "fastmail.app.password", "test",
+                "fastmail.sync.enabled", "false", "fastmail.snapshot.path", "")));
+        try (ConfigurableApplicationContext context = CliApp.application().environment(environment).run()) {
+            FreeBusyService freeBusy = context.getBean(FreeBusyService.class);
+
+            assertEquals(List.of(new FreeBusyService.Interval(eventStart, eventEnd)),
+                    freeBusy.busy(DAY, DAY.plusDays(1), null));
+            assertEquals(List.of(
+                    new FreeBusyService.Interval(at(9), eventStart),
+                    new FreeBusyService.Interval(eventEnd, at(18))),
+                    freeBusy.free(DAY, DAY.plusDays(1), 30, "0900", "1800", null));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private long at(int hour) {
+        return DAY.atTime(hour, 0).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private void answer(HttpExchange exchange, boolean freeBusyQuery) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        boolean nested = "infinity".equals(exchange.getRequestHeaders().getFirst("Depth"));
+        if (!"REPORT".equals(exchange.getRequestMethod()) || !"/dav/".equals(exchange.getRequestURI().getPath())) {
+            send(exchange, 404, "text/plain", "");
+        } else if (body.contains("free-busy-query")) {
+            if (!freeBusyQuery) {
+                send(exchange, 403, "application/xml", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                        + "<d:error xmlns:d=\"DAV:\"><d:supported-report/></d:error>");
+                return;
+            }
+            send(exchange, 200, "text/calendar", "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//stub//EN\r\n"
+                    + "BEGIN:VFREEBUSY\r\nDTSTAMP:20250101T000000Z\r\n"
+                    + (nested ? "FREEBUSY;FBTYPE=BUSY:" + utc(eventStart) + "/" + utc(eventEnd) + "\r\n" : "")
+                    + "END:VFREEBUSY\r\nEND:VCALENDAR\r\n");
+        } else {
+            String event = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//stub//EN\r\nBEGIN:VEVENT\r\n"
+                    + "UID:meeting@example.com\r\nDTSTAMP:20250101T000000Z\r\nSUMMARY:Meeting\r\n"
+                    + "DTSTART:" + utc(eventStart) + "\r\nDTEND:" + utc(eventEnd) + "\r\n"
+                    + "END:VEVENT\r\nEND:VCALENDAR\r\n";
+            send(exchange, 207, "application/xml", "<?xml version=\"1.0\" encoding=\"utf-8\"?>\n"
+                    + "<d:multistatus xmlns:d=\"DAV:\" xmlns:c=\"urn:ietf:params:xml:ns:caldav\">\n"
+                    + (nested ? "<d:response><d:href>" + EVENT_HREF + "</d:href><d:propstat><d:prop>"
+                            + "<d:getetag>\"1\"</d:getetag><c:calendar-data>" + event + "</c:calendar-data>"
+                            + "</d:prop><d:status>HTTP/1.1 200 OK</d:status></d:propstat></d:response>\n" : "")
+                    + "</d:multistatus>\n");
+        }
+    }
+
+    private static String utc(long millis) {
+        return UTC_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
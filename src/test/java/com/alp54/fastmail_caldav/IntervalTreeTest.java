@@ -0,0 +1,112 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link IntervalTree} against a plain list scanned for every query. Starts
+ * and ends are drawn from a small range so that intervals share starts, touch
+ * at their boundaries and are often zero-length.
+ */
+class IntervalTreeTest {
+
+    @Test
+    void matchesABruteForceListUnderRandomInsertsAndRemoves() {
+        SplittableRandom random = new SplittableRandom(42);
+        IntervalTree<Integer> tree = new IntervalTree<>();
+        List<IntervalTree.Entry<Integer>> list = new ArrayList<>();
+        for (int step = 0; step < 20_000; step++) {
+            int op = random.nextInt(10);
+            if (op < 5 || list.isEmpty()) {
+                long start = random.nextInt(100);
+                long end = start + (random.nextInt(3) == 0 ? 0 : random.nextInt(20));
+                long id = tree.insert(start, end, step);
+                list.add(new IntervalTree.Entry<>(id, start, end, step));
+            } else if (op < 8) {
+                IntervalTree.Entry<Integer> removed = list.remove(random.nextInt(list.size()));
+                assertTrue(tree.remove(removed.start(), removed.id()));
+                assertFalse(tree.remove(removed.start(), removed.id()));
+            } else {
+                long from = random.nextInt(110) - 5;
+                long to = from + random.nextInt(25);
+                assertEquals(overlapping(list, from, to), byId(orderedByStart(tree.overlapping(from, to))),
+                        () -> "overlapping [" + from + ", " + to + ")");
+                assertEquals(overlapping(list, from, from + 1), byId(orderedByStart(tree.containing(from))),
+                        () -> "containing " + from);
+            }
+            assertEquals(list.size(), tree.size());
+        }
+    }
+
+    @Test
+    void boundaries() {
+        IntervalTree<String> tree = new IntervalTree<>();
+        tree.insert(10, 20, "a");
+        tree.insert(20, 30, "b");
+        tree.insert(20, 20, "point");
+
+        // End is exclusive, so [10, 20) does not reach into a query starting at 20
+        assertEquals(List.of("b", "point"), values(tree.overlapping(20, 25)));
+        // A query ending at 20 does not reach the intervals starting there
+        assertEquals(List.of("a"), values(tree.overlapping(15, 20)));
+        assertEquals(List.of("b", "point"), values(tree.containing(20)));
+        assertEquals(List.of("a"), values(tree.containing(19)));
+        // A zero-length interval counts when it starts inside the range
+        assertEquals(List.of("a", "b", "point"), values(tree.overlapping(19, 21)));
+        assertEquals(List.of(), values(tree.overlapping(30, 40)));
+    }
+
+    @Test
+    void removeNeedsTheStartAndId() {
+        IntervalTree<String> tree = new IntervalTree<>();
+        long first = tree.insert(5, 5, "first");
+        long second = tree.insert(5, 5, "second");
+
+        assertFalse(tree.remove(6, first));
+        assertTrue(tree.remove(5, first));
+        assertEquals(List.of("second"), values(tree.containing(5)));
+        assertTrue(tree.remove(5, second));
+        assertEquals(0, tree.size());
+        assertEquals(List.of(), values(tree.overlapping(Long.MIN_VALUE, Long.MAX_VALUE)));
+    }
+
+    private static <T> List<IntervalTree.Entry<T>> overlapping(List<IntervalTree.Entry<T>> entries, long from,
+            long to) {
+        List<IntervalTree.Entry<T>> hits = new ArrayList<>();
+        for (IntervalTree.Entry<T> entry : entries) {
+            boolean zeroLength = entry.start() == entry.end();
+            if (entry.start() < to && (entry.end() > from || (zeroLength && entry.start() >= from))) {
+                hits.add(entry);
+            }
+        }
+        return byId(hits);
+    }
+
+    private static <T> List<IntervalTree.Entry<T>> orderedByStart(List<IntervalTree.Entry<T>> hits) {
+        for (int i = 1; i < hits.size(); i++) {
+            assertTrue(hits.get(i - 1).start() <= hits.get(i).start(), () -> "ordered by start: " + hits);
+        }
+        return hits;
+    }
+
+    /**
+     * Equal starts come in no particular order, so hits are compared by id.
+     */
+    private static <T> List<IntervalTree.Entry<T>> byId(List<IntervalTree.Entry<T>> hits) {
+        List<IntervalTree.Entry<T>> sorted = new ArrayList<>(hits);
+        sorted.sort(Comparator.comparingLong(IntervalTree.Entry::id));
+        return sorted;
+    }
+
+    private static List<String> values(List<IntervalTree.Entry<String>> hits) {
+        return hits.stream().map(IntervalTree.Entry::value).toList();
+    }
+}
@@ -0,0 +1,134 @@
+package com.alp54.fastmail_caldav;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * The materialized window of {@link OccurrenceIndex} against expanding every
+ * stored resource for each query, while resources are added, replaced and
+ * removed. The events touch at their boundaries and include a zero-length
+ * one and a moved instance of a series.
+ */
+class OccurrenceIndexTest {
+
+    private static final String CALENDAR = "https://caldav.example.com/dav/calendars/user/test/Default/";
+
+    private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static final long HOUR = 3_600_000L;
+
+    private final long today = LocalDate.now(ZoneOffset.UTC).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+
+    private OccurrenceIndex index;
+
+    private EventStore store;
+
+    @BeforeEach
+    void setUp() {
+        index = new OccurrenceIndex(new CaldavMetrics(
+                new StaticListableBeanFactory().getBeanProvider(MeterRegistry.class)));
+        ReflectionTestUtils.setField(index, "pastDays", 30);
+        ReflectionTestUtils.setField(index, "futureDays", 365);
+        store = new EventStore(CALENDAR, List.of(index));
+    }
+
+    @Test
+    void matchesExpandingEveryResource() {
+        SplittableRandom random = new SplittableRandom(7);
+        // Daily 10:00-11:00, with the instance five days from now moved to 11:00-11:30
+        put("daily", "1", event("daily", at(-10, 10), at(-10, 11), "RRULE:FREQ=DAILY;COUNT=30")
+                + event("daily", at(5, 11), at(5, 11) + HOUR / 2, "RECURRENCE-ID:" + utc(at(5, 10))));
+        // Starts where an occurrence of the series ends
+        put("touching", "1", event("touching", at(0, 11), at(0, 12), null));
+        put("point", "1", event("point", at(0, 11), at(0, 11), null));
+        assertMatches(random);
+
+        put("touching", "2", event("touching", at(1, 9), at(1, 10), null));
+        put("point", "2", event("point", at(3, 0), at(3, 0), null));
+        assertMatches(random);
+
+        store.remove(CALENDAR + "daily.ics");
+        put("point", "3", event("point", at(2, 10), at(2, 10), null));
+        assertMatches(random);
+    }
+
+    private void assertMatches(SplittableRandom random) {
+        List<long[]> queries = new ArrayList<>(List.of(
+                new long[] { at(0, 11), at(0, 12) },
+                new long[] { at(0, 10), at(0, 11) },
+                new long[] { at(0, 11), at(0, 11) + 1 },
+                new long[] { at(5, 10), at(5, 11) }));
+        for (int i = 0; i < 200; i++) {
+            long from = at(random.nextInt(-12, 20), random.nextInt(24));
+            queries.add(new long[] { from, from + random.nextInt(1, 48) * HOUR / 2 });
+        }
+        for (long[] query : queries) {
+            assertEquals(expanded(query[0], query[1]), indexed(query[0], query[1]),
+                    "[" + utc(query[0]) + ", " + utc(query[1]) + ")");
+        }
+    }
+
+    private List<String> indexed(long from, long to) {
+        List<String> hits = new ArrayList<>();
+        for (OccurrenceIndex.Hit hit : index.overlapping(store, from, to)) {
+            hits.add(describe(hit.event(), hit.occurrence()));
+        }
+        hits.sort(Comparator.naturalOrder());
+        return hits;
+    }
+
+    private List<String> expanded(long from, long to) {
+        List<String> hits = new ArrayList<>();
+        for (EventStore.StoredEvent stored : store.values()) {
+            for (OccurrenceIndex.Occurrence occurrence : OccurrenceIndex.occurrencesOf(stored.calendar(), from, to)) {
+                hits.add(describe(stored, occurrence));
+            }
+        }
+        hits.sort(Comparator.naturalOrder());
+        return hits;
+    }
+
+    private static String describe(EventStore.StoredEvent stored, OccurrenceIndex.Occurrence occurrence) {
+        return stored.href() + " " + stored.etag() + " " + occurrence;
+    }
+
+    private void put(String name, String etag, String events) {
+        String icalendar = "BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//test//EN\r\n" + events + "END:VCALENDAR\r\n";
+        try {
+            store.put(new EventStore.StoredEvent(CALENDAR + name + ".ics", "\"" + etag + "\"", icalendar,
+                    ICalendarParser.parse(icalendar)));
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String event(String uid, long start, long end, String extra) {
+        return "BEGIN:VEVENT\r\nUID:" + uid + "\r\nDTSTAMP:20250101T000000Z\r\n"
+                + "DTSTART:" + utc(start) + "\r\nDTEND:" + utc(end) + "\r\n"
+                + (extra != null ? extra + "\r\n" : "") + "END:VEVENT\r\n";
+    }
+
+    private long at(int days, int hour) {
+        return today + days * 24 * HOUR + hour * HOUR;
+    }
+
+    private static String utc(long millis) {
+        return UTC_FORMAT.format(Instant.ofEpochMilli(millis));
+    }
+}